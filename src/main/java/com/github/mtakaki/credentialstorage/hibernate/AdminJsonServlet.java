@@ -0,0 +1,41 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.io.IOException;
+import java.util.function.Supplier;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.dropwizard.jackson.Jackson;
+
+/**
+ * Admin servlet that serves a snapshot of the state of a bundle as JSON, such
+ * as its slowest statements or its oldest connection holds.
+ *
+ * <pre>
+ * curl 'http://localhost:8081/slow-statements/hibernate'
+ * </pre>
+ */
+class AdminJsonServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+    private static final ObjectMapper OBJECT_MAPPER = Jackson.newObjectMapper();
+
+    private final transient Supplier<?> snapshot;
+
+    AdminJsonServlet(final Supplier<?> snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response)
+            throws IOException {
+        response.setContentType("application/json");
+        response.setHeader("Cache-Control", "must-revalidate,no-cache,no-store");
+        response.setStatus(HttpServletResponse.SC_OK);
+        OBJECT_MAPPER.writerWithDefaultPrettyPrinter().writeValue(response.getOutputStream(),
+                this.snapshot.get());
+    }
+}
@@ -0,0 +1,169 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.ServiceUnavailableException;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Limits the units of work of a bundle that run at the same time, so a slow
+ * database doesn't park every request thread waiting for a connection. A
+ * bounded number of units of work wait for their turn and the others are
+ * rejected right away with {@link ServiceUnavailableException}, which Jersey
+ * maps to {@code 503}.
+ * <p>
+ * Besides the limit of the bundle, a method can have its own limit with
+ * {@link UnitOfWork#maxConcurrent()}. All of them publish the admitted,
+ * queued and rejected units of work of the bundle as metrics.
+ * </p>
+ */
+class Bulkhead {
+    private final BulkheadConfiguration configuration;
+    private final Limit bundleLimit;
+    // Keyed by the method, or by the annotation when the method is unknown.
+    // They are never dropped, or the permits held would be lost.
+    private final ConcurrentMap<Object, Limit> methodLimits = new ConcurrentHashMap<>();
+
+    private final Meter admitted;
+    private final Meter queued;
+    private final Meter rejected;
+
+    Bulkhead(final BulkheadConfiguration configuration, final MetricRegistry metricRegistry,
+            final String name) {
+        this.configuration = configuration;
+        this.bundleLimit = configuration.getMaxConcurrent() == 0 ? null
+                : new Limit(configuration.getMaxConcurrent());
+        this.admitted = metricRegistry.meter(MetricRegistry.name(name, "bulkhead", "admitted"));
+        this.queued = metricRegistry.meter(MetricRegistry.name(name, "bulkhead", "queued"));
+        this.rejected = metricRegistry.meter(MetricRegistry.name(name, "bulkhead", "rejected"));
+    }
+
+    /**
+     * Admits a unit of work, waiting for its turn if needed.
+     *
+     * @param unitOfWork
+     *            The annotation of the unit of work.
+     * @return The permit to be released once the unit of work ends, or
+     *         {@code null} if there's no limit.
+     * @throws ServiceUnavailableException
+     *             If the queue is full or the wait timed out.
+     */
+    Permit acquire(final UnitOfWork unitOfWork) {
+        return this.acquire(unitOfWork, null);
+    }
+
+    /**
+     * Admits a unit of work, waiting for its turn if needed.
+     *
+     * @param unitOfWork
+     *            The annotation of the unit of work.
+     * @param method
+     *            The annotated method, which has its own
+     *            {@link UnitOfWork#maxConcurrent()} limit. If it's
+     *            {@code null}, the methods with equal annotations share the
+     *            limit.
+     * @return The permit to be released once the unit of work ends, or
+     *         {@code null} if there's no limit.
+     * @throws ServiceUnavailableException
+     *             If the queue is full or the wait timed out.
+     */
+    Permit acquire(final UnitOfWork unitOfWork, final Method method) {
+        final Limit methodLimit = unitOfWork.maxConcurrent() == 0 ? null
+                : this.methodLimits.computeIfAbsent(method == null ? unitOfWork : method,
+                        key -> new Limit(unitOfWork.maxConcurrent()));
+        if (methodLimit == null && this.bundleLimit == null) {
+            return null;
+        }
+        // The limit of the method is acquired first, so the units of work
+        // waiting for it don't take the permits of the bundle.
+        if (methodLimit != null) {
+            this.acquire(methodLimit);
+        }
+        if (this.bundleLimit != null) {
+            try {
+                this.acquire(this.bundleLimit);
+            } catch (final RuntimeException e) {
+                if (methodLimit != null) {
+                    methodLimit.permits.release();
+                }
+                throw e;
+            }
+        }
+        this.admitted.mark();
+        return new Permit(methodLimit, this.bundleLimit);
+    }
+
+    private void acquire(final Limit limit) {
+        try {
+            // tryAcquire() without a timeout would take the permit ahead of
+            // the queued units of work.
+            if (limit.permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                return;
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw this.reject();
+        }
+        if (!limit.queue.tryAcquire()) {
+            throw this.reject();
+        }
+        this.queued.mark();
+        try {
+            if (!limit.permits.tryAcquire(this.configuration.getMaxWait().toNanoseconds(),
+                    TimeUnit.NANOSECONDS)) {
+                throw this.reject();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw this.reject();
+        } finally {
+            limit.queue.release();
+        }
+    }
+
+    private ServiceUnavailableException reject() {
+        this.rejected.mark();
+        return new ServiceUnavailableException(
+                Math.max(1L, this.configuration.getMaxWait().toSeconds()));
+    }
+
+    private class Limit {
+        private final Semaphore permits;
+        private final Semaphore queue;
+
+        Limit(final int maxConcurrent) {
+            // Fair, so the units of work are admitted in the order they
+            // queued.
+            this.permits = new Semaphore(maxConcurrent, true);
+            this.queue = new Semaphore(Bulkhead.this.configuration.getMaxQueued());
+        }
+    }
+
+    /**
+     * The admission of a unit of work. It must be released exactly once.
+     */
+    static class Permit {
+        private final Limit methodLimit;
+        private final Limit bundleLimit;
+
+        private Permit(final Limit methodLimit, final Limit bundleLimit) {
+            this.methodLimit = methodLimit;
+            this.bundleLimit = bundleLimit;
+        }
+
+        void release() {
+            if (this.bundleLimit != null) {
+                this.bundleLimit.permits.release();
+            }
+            if (this.methodLimit != null) {
+                this.methodLimit.permits.release();
+            }
+        }
+    }
+}
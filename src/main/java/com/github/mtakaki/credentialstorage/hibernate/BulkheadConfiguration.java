@@ -0,0 +1,32 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import io.dropwizard.util.Duration;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Controls the admission of the units of work of the bundle. At most
+ * {@code maxConcurrent} units of work run at the same time, or any number if
+ * it's zero, and at most {@code maxQueued} wait up to {@code maxWait} for
+ * their turn. The others are rejected right away. The limits of
+ * {@link UnitOfWork#maxConcurrent()} share the same queue settings.
+ */
+@Getter
+@Setter
+public class BulkheadConfiguration {
+    @Min(0)
+    @JsonProperty
+    private int maxConcurrent = 0;
+    @Min(0)
+    @JsonProperty
+    private int maxQueued = 50;
+    @NotNull
+    @JsonProperty
+    private Duration maxWait = Duration.seconds(1);
+}
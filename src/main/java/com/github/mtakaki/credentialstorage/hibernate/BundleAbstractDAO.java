@@ -1,7 +1,27 @@
 package com.github.mtakaki.credentialstorage.hibernate;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hibernate.Criteria;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Conjunction;
+import org.hibernate.criterion.Disjunction;
+import org.hibernate.criterion.Order;
+import org.hibernate.criterion.Restrictions;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
 
 import io.dropwizard.hibernate.AbstractDAO;
 
@@ -14,15 +34,418 @@ import io.dropwizard.hibernate.AbstractDAO;
  *            the class which this DAO manages
  */
 public class BundleAbstractDAO<E> extends AbstractDAO<E> {
+    /**
+     * The top level {@code from} clause of a masked HQL query, with the alias
+     * of the entity in the first group.
+     */
+    private static final Pattern FROM_CLAUSE = Pattern.compile("(?i)(?:^|\\s)from\\s+[\\w.$]+"
+            + "(?:\\s+as)?(?:\\s+(?!(?:where|join|inner|left|right|full|cross|fetch|with)\\b)"
+            + "([\\w$]+))?");
+
     private final RemoteCredentialHibernateBundle<?> bundle;
 
     public BundleAbstractDAO(final RemoteCredentialHibernateBundle<?> bundle) {
-        super(bundle.getSessionFactory());
+        // The DAOs are built when the application runs, so they must not
+        // initialize a lazy bundle.
+        super(lazySessionFactory(bundle));
         this.bundle = bundle;
     }
 
+    /**
+     * @return A {@link SessionFactory} that only gets the one of the bundle
+     *         when it's used.
+     */
+    private static SessionFactory lazySessionFactory(
+            final RemoteCredentialHibernateBundle<?> bundle) {
+        return (SessionFactory) Proxy.newProxyInstance(BundleAbstractDAO.class.getClassLoader(),
+                new Class<?>[] { SessionFactory.class }, (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            return "SessionFactory of " + bundle;
+                        }
+                    }
+                    try {
+                        return method.invoke(bundle.getSessionFactory(), args);
+                    } catch (final InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
     @Override
     protected Session currentSession() {
+        // Lazy units of work only open the session when it's first needed.
+        final UnitOfWorkAspect unitOfWork = this.bundle.getCurrentUnitOfWork();
+        if (unitOfWork != null) {
+            unitOfWork.ensureSessionOpen();
+        }
         return this.bundle.getCurrentThreadSessionFactory().getCurrentSession();
     }
+
+    @Override
+    protected Query query(final String queryString) {
+        // Recorded so the new session factories can be warmed up with it.
+        final QueryWarmUp warmUp = this.bundle.getQueryWarmUp();
+        if (warmUp != null) {
+            warmUp.recordHql(queryString);
+        }
+        return this.applyHints(super.query(queryString));
+    }
+
+    @Override
+    protected Query namedQuery(final String queryName) throws HibernateException {
+        return this.applyHints(super.namedQuery(queryName));
+    }
+
+    @Override
+    protected Criteria criteria() {
+        final Criteria criteria = super.criteria();
+        final UnitOfWorkAspect unitOfWork = this.bundle.getCurrentUnitOfWork();
+        if (unitOfWork != null) {
+            unitOfWork.applyHints(criteria);
+        }
+        return criteria;
+    }
+
+    @Override
+    protected E persist(final E entity) throws HibernateException {
+        final E persisted = super.persist(entity);
+        // Units of work with a batch size flush every batch.
+        final UnitOfWorkAspect unitOfWork = this.bundle.getCurrentUnitOfWork();
+        if (unitOfWork != null) {
+            unitOfWork.afterPersist();
+        }
+        return persisted;
+    }
+
+    /**
+     * Returns a page of the criteria with keyset (seek) pagination. Rather
+     * than skipping the rows of the previous pages, like
+     * {@link Criteria#setFirstResult(int)}, the page starts after the key of
+     * the last row of the previous page, so deep pages are as fast as the
+     * first one when the key is indexed.
+     *
+     * @param criteria
+     *            The base criteria, without orders or limits.
+     * @param size
+     *            The maximum number of rows of the page.
+     * @param cursor
+     *            The {@link KeysetPage#getNextCursor()} of the previous page,
+     *            or {@code null} for the first page.
+     * @param keys
+     *            The properties of the entity the rows are ordered by. The
+     *            last one must be unique.
+     * @return The page and the cursor of the next one.
+     * @throws IllegalArgumentException
+     *             If the cursor is not valid or belongs to another query.
+     */
+    protected KeysetPage<E> page(final Criteria criteria, final int size, final String cursor,
+            final KeysetOrder... keys) throws HibernateException {
+        checkPage(size, keys);
+        final KeysetCursors cursors = this.getKeysetCursors();
+        final String scope = this.getEntityClass().getName() + '|' + describe(keys);
+        if (cursor != null) {
+            final Object[] values = this.decode(cursors, scope, cursor, keys);
+            final Disjunction seek = Restrictions.disjunction();
+            for (int i = 0; i < keys.length; i++) {
+                final Conjunction after = Restrictions.conjunction();
+                for (int j = 0; j < i; j++) {
+                    after.add(Restrictions.eq(keys[j].getProperty(), values[j]));
+                }
+                after.add(keys[i].isAscending() ? Restrictions.gt(keys[i].getProperty(), values[i])
+                        : Restrictions.lt(keys[i].getProperty(), values[i]));
+                seek.add(after);
+            }
+            criteria.add(seek);
+        }
+        for (final KeysetOrder key : keys) {
+            criteria.addOrder(key.isAscending() ? Order.asc(key.getProperty())
+                    : Order.desc(key.getProperty()));
+        }
+        // One more row tells if there is a next page.
+        criteria.setMaxResults(size + 1);
+        return this.toPage(this.list(criteria), size, cursors, scope, keys, null);
+    }
+
+    /**
+     * Returns a page of the HQL query with keyset (seek) pagination. The
+     * condition on the key of the previous page is added to the
+     * {@code where} clause of the query, and the {@code order by} clause is
+     * added from the keys.
+     *
+     * @param hql
+     *            The base query of the entity, without {@code order by} or
+     *            {@code group by} clauses, such as
+     *            {@code from Person p where p.email like :domain}.
+     * @param parameters
+     *            The named parameters of the query.
+     * @param size
+     *            The maximum number of rows of the page.
+     * @param cursor
+     *            The {@link KeysetPage#getNextCursor()} of the previous page,
+     *            or {@code null} for the first page.
+     * @param keys
+     *            The properties the rows are ordered by, prefixed by the alias
+     *            of the entity, such as {@code p.name}. The last one must be
+     *            unique.
+     * @return The page and the cursor of the next one.
+     * @throws IllegalArgumentException
+     *             If the cursor is not valid or belongs to another query.
+     */
+    protected KeysetPage<E> page(final String hql, final Map<String, ?> parameters,
+            final int size, final String cursor, final KeysetOrder... keys)
+            throws HibernateException {
+        checkPage(size, keys);
+        final String alias = getAlias(hql);
+        for (final KeysetOrder key : keys) {
+            if (alias != null && !key.getProperty().startsWith(alias + '.')) {
+                throw new IllegalArgumentException(String.format(
+                        "The keyset key %s must be prefixed by the alias %s", key, alias));
+            }
+        }
+        final KeysetCursors cursors = this.getKeysetCursors();
+        final String scope = this.getEntityClass().getName() + '|' + describe(keys) + '|' + hql;
+        Object[] values = null;
+        String queryString = hql;
+        if (cursor != null) {
+            values = this.decode(cursors, scope, cursor, keys);
+            final StringBuilder seek = new StringBuilder();
+            for (int i = 0; i < keys.length; i++) {
+                seek.append(i == 0 ? "(" : " or (");
+                for (int j = 0; j < i; j++) {
+                    seek.append(keys[j].getProperty()).append(" = :keyset").append(j)
+                            .append(" and ");
+                }
+                seek.append(keys[i].getProperty()).append(keys[i].isAscending() ? " > " : " < ")
+                        .append(":keyset").append(i).append(')');
+            }
+            queryString = addCondition(hql, seek.toString());
+        }
+        queryString += " order by " + describe(keys).replace(',', ", ");
+
+        final Query query = this.query(queryString);
+        for (final Map.Entry<String, ?> parameter : parameters.entrySet()) {
+            if (parameter.getValue() instanceof Collection) {
+                query.setParameterList(parameter.getKey(), (Collection<?>) parameter.getValue());
+            } else {
+                query.setParameter(parameter.getKey(), parameter.getValue());
+            }
+        }
+        if (values != null) {
+            for (int i = 0; i < values.length; i++) {
+                query.setParameter("keyset" + i, values[i]);
+            }
+        }
+        query.setMaxResults(size + 1);
+        return this.toPage(this.list(query), size, cursors, scope, keys, alias);
+    }
+
+    /**
+     * Adds a condition to the {@code where} clause of the HQL query, keeping
+     * the existing condition in parentheses.
+     *
+     * @throws IllegalArgumentException
+     *             If the query has {@code order by} or {@code group by}
+     *             clauses, or it can't be parsed safely.
+     */
+    static String addCondition(final String hql, final String condition) {
+        final String masked = mask(hql);
+        int where = -1;
+        for (int i = 0; i < masked.length(); i++) {
+            if (isKeyword(masked, i, "order") || isKeyword(masked, i, "group")) {
+                throw new IllegalArgumentException(
+                        "Keyset queries can't have order by or group by clauses: " + hql);
+            }
+            if (where < 0 && isKeyword(masked, i, "where")) {
+                where = i;
+            }
+        }
+        if (where < 0) {
+            return hql + " where " + condition;
+        }
+        final int start = where + "where".length();
+        return hql.substring(0, start) + " (" + hql.substring(start).trim() + ") and ("
+                + condition + ")";
+    }
+
+    /**
+     * Returns the alias of the entity of the HQL query, such as {@code p} in
+     * {@code from Person p}, or {@code null} if it has no alias.
+     *
+     * @throws IllegalArgumentException
+     *             If the query has no {@code from} clause or it can't be
+     *             parsed safely.
+     */
+    static String getAlias(final String hql) {
+        final Matcher matcher = FROM_CLAUSE.matcher(mask(hql));
+        if (!matcher.find()) {
+            throw new IllegalArgumentException("Keyset queries must have a from clause: " + hql);
+        }
+        return matcher.group(1);
+    }
+
+    /**
+     * Blanks the string literals and the contents of the parentheses of the
+     * HQL query, so only its top level clauses are left at the same
+     * positions.
+     */
+    private static String mask(final String hql) {
+        final StringBuilder masked = new StringBuilder(hql.length());
+        int depth = 0;
+        char quote = 0;
+        for (int i = 0; i < hql.length(); i++) {
+            final char c = hql.charAt(i);
+            if (quote != 0) {
+                // An escaped quote closes and opens the literal again.
+                if (c == quote) {
+                    quote = 0;
+                }
+                masked.append(' ');
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+                masked.append(' ');
+            } else if (c == '(') {
+                masked.append(depth == 0 ? c : ' ');
+                depth++;
+            } else if (c == ')') {
+                depth--;
+                if (depth < 0) {
+                    break;
+                }
+                masked.append(depth == 0 ? c : ' ');
+            } else {
+                masked.append(depth == 0 ? c : ' ');
+            }
+        }
+        if (quote != 0 || depth != 0) {
+            throw new IllegalArgumentException(
+                    "Keyset queries must have balanced quotes and parentheses: " + hql);
+        }
+        return masked.toString();
+    }
+
+    private static boolean isKeyword(final String hql, final int index, final String keyword) {
+        final int end = index + keyword.length();
+        return hql.regionMatches(true, index, keyword, 0, keyword.length())
+                && (index == 0 || Character.isWhitespace(hql.charAt(index - 1))
+                        || hql.charAt(index - 1) == ')')
+                && (end == hql.length() || Character.isWhitespace(hql.charAt(end))
+                        || hql.charAt(end) == '(');
+    }
+
+    private static void checkPage(final int size, final KeysetOrder[] keys) {
+        if (size < 1) {
+            throw new IllegalArgumentException("The page size must be greater than zero");
+        }
+        if (keys.length == 0) {
+            throw new IllegalArgumentException("Keyset pagination needs at least one key");
+        }
+    }
+
+    private static String describe(final KeysetOrder[] keys) {
+        final StringBuilder description = new StringBuilder();
+        for (final KeysetOrder key : keys) {
+            if (description.length() > 0) {
+                description.append(',');
+            }
+            description.append(key);
+        }
+        return description.toString();
+    }
+
+    private KeysetCursors getKeysetCursors() {
+        final KeysetCursors cursors = this.bundle.getKeysetCursors();
+        if (cursors == null) {
+            throw new IllegalStateException("The bundle is not running");
+        }
+        return cursors;
+    }
+
+    private Object[] decode(final KeysetCursors cursors, final String scope, final String cursor,
+            final KeysetOrder[] keys) {
+        final Object[] values = cursors.decode(scope, cursor);
+        if (values.length != keys.length) {
+            throw new IllegalArgumentException("The cursor is not valid");
+        }
+        return values;
+    }
+
+    private KeysetPage<E> toPage(final List<E> rows, final int size, final KeysetCursors cursors,
+            final String scope, final KeysetOrder[] keys, final String alias) {
+        if (rows.size() <= size) {
+            return new KeysetPage<>(rows, null);
+        }
+        final List<E> items = rows.subList(0, size);
+        final E last = items.get(size - 1);
+        final Object[] values = new Object[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            final String property = keys[i].getProperty();
+            values[i] = this.getKeyValue(last,
+                    alias == null ? property : property.substring(alias.length() + 1));
+            if (values[i] == null) {
+                throw new IllegalStateException(
+                        String.format("The keyset key %s can't be null", property));
+            }
+        }
+        return new KeysetPage<>(items, cursors.encode(scope, values));
+    }
+
+    /**
+     * Returns the value of the property path of the entity, following its
+     * many-to-one associations, such as {@code owner.name}. The paths of
+     * embedded components are resolved by the metadata of their entity.
+     */
+    private Object getKeyValue(final E entity, final String path) {
+        final Session session = this.currentSession();
+        final SessionFactory sessionFactory = session.getSessionFactory();
+        ClassMetadata metadata = sessionFactory.getClassMetadata(this.getEntityClass());
+        Object value = entity;
+        String remaining = path;
+        while (true) {
+            if (value instanceof HibernateProxy) {
+                value = ((HibernateProxy) value).getHibernateLazyInitializer().getImplementation();
+            }
+            final String identifier = metadata.getIdentifierPropertyName();
+            if (remaining.equals(identifier)) {
+                return metadata.getIdentifier(value, (SessionImplementor) session);
+            }
+            final int dot = remaining.indexOf('.');
+            if (dot < 0) {
+                return metadata.getPropertyValue(value, remaining);
+            }
+            final String property = remaining.substring(0, dot);
+            final boolean isIdentifier = property.equals(identifier);
+            final Type type = isIdentifier ? metadata.getIdentifierType()
+                    : metadata.getPropertyType(property);
+            if (type.isCollectionType()) {
+                throw new IllegalArgumentException(
+                        String.format("The keyset key %s can't go through a collection", path));
+            }
+            if (!type.isEntityType()) {
+                return metadata.getPropertyValue(value, remaining);
+            }
+            value = isIdentifier ? metadata.getIdentifier(value, (SessionImplementor) session)
+                    : metadata.getPropertyValue(value, property);
+            if (value == null) {
+                return null;
+            }
+            metadata = sessionFactory
+                    .getClassMetadata(((EntityType) type).getAssociatedEntityName());
+            remaining = remaining.substring(dot + 1);
+        }
+    }
+
+    private Query applyHints(final Query query) {
+        // The fetch size and cache usage of the unit of work, if any.
+        final UnitOfWorkAspect unitOfWork = this.bundle.getCurrentUnitOfWork();
+        if (unitOfWork != null) {
+            unitOfWork.applyHints(query);
+        }
+        return query;
+    }
 }
\ No newline at end of file
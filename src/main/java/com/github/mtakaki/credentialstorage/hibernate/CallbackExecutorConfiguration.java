@@ -0,0 +1,24 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import javax.validation.constraints.Min;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Controls the executor that runs the after-commit and after-rollback
+ * callbacks of the units of work. Callbacks are rejected once
+ * {@code queueSize} callbacks are waiting.
+ */
+@Getter
+@Setter
+public class CallbackExecutorConfiguration {
+    @Min(1)
+    @JsonProperty
+    private int threads = 2;
+    @Min(1)
+    @JsonProperty
+    private int queueSize = 1000;
+}
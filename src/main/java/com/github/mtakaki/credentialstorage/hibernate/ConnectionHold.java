@@ -0,0 +1,122 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A unit of work, or any other user of a {@link SessionHolders}, that is
+ * holding a session of the bundle. The stack trace of where it was acquired
+ * is only captured for a sample of the holds.
+ */
+public class ConnectionHold {
+    private final String bundle;
+    private final long generation;
+    private final long acquiredAt;
+    private final long acquiredNanos;
+    private final String thread;
+    private final String holder;
+    private final StackTraceElement[] stackTrace;
+    private volatile boolean reported;
+
+    ConnectionHold(final String bundle, final long generation, final Object holder,
+            final boolean captureStackTrace) {
+        this.bundle = bundle;
+        this.generation = generation;
+        this.acquiredAt = System.currentTimeMillis();
+        this.acquiredNanos = System.nanoTime();
+        this.thread = Thread.currentThread().getName();
+        this.holder = describe(holder);
+        this.stackTrace = captureStackTrace ? new Throwable().getStackTrace() : null;
+    }
+
+    private static String describe(final Object holder) {
+        if (holder instanceof UnitOfWorkAspect) {
+            final String method = ((UnitOfWorkAspect) holder).getMethodName();
+            if (method != null) {
+                return method;
+            }
+        }
+        return holder.getClass().getSimpleName();
+    }
+
+    long getAcquiredNanos() {
+        return this.acquiredNanos;
+    }
+
+    long getAgeNanos() {
+        return System.nanoTime() - this.acquiredNanos;
+    }
+
+    /**
+     * Marks the hold as reported.
+     *
+     * @return {@code true} if it wasn't reported before.
+     */
+    boolean markReported() {
+        if (this.reported) {
+            return false;
+        }
+        this.reported = true;
+        return true;
+    }
+
+    /**
+     * @return The name of the bundle.
+     */
+    @JsonProperty
+    public String getBundle() {
+        return this.bundle;
+    }
+
+    /**
+     * @return The generation of the session factory, incremented every time
+     *         the bundle creates a new one.
+     */
+    @JsonProperty
+    public long getGeneration() {
+        return this.generation;
+    }
+
+    @JsonProperty
+    public long getAcquiredAt() {
+        return this.acquiredAt;
+    }
+
+    @JsonProperty
+    public long getAgeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.getAgeNanos());
+    }
+
+    @JsonProperty
+    public String getThread() {
+        return this.thread;
+    }
+
+    /**
+     * @return The method of the unit of work, such as
+     *         {@code PersonResource.find}, or the class of any other holder.
+     */
+    @JsonProperty
+    public String getHolder() {
+        return this.holder;
+    }
+
+    /**
+     * @return Where the session was acquired, or {@code null} if it wasn't
+     *         sampled.
+     */
+    @JsonProperty
+    public List<String> getStackTrace() {
+        return this.stackTrace == null ? null
+                : Arrays.stream(this.stackTrace).map(StackTraceElement::toString)
+                        .collect(Collectors.toList());
+    }
+
+    boolean hasStackTrace() {
+        return this.stackTrace != null;
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reports the units of work that hold a session of the bundle for longer than
+ * the threshold, before they drain the pool. The session holders of every
+ * generation of the session factory are swept in the background until they
+ * are closed, so the units of work themselves only pay for recording when
+ * they acquired the session.
+ * <p>
+ * A hold is reported once, with the stack trace of where it was acquired if
+ * it was sampled. The age of the oldest in-flight hold is published as a
+ * gauge, and the distribution of the hold durations as a timer updated when
+ * every hold is released, including the ones shorter than the sweep interval.
+ * </p>
+ */
+@Slf4j
+class ConnectionHoldDetector {
+    private final LeakDetectionConfiguration configuration;
+    private final long thresholdNanos;
+    private final List<SessionHolders> sessionHolders = new CopyOnWriteArrayList<>();
+
+    private final Meter leaks;
+    private final Timer durations;
+    private volatile int held;
+    private volatile long oldestAgeMillis;
+
+    ConnectionHoldDetector(final LeakDetectionConfiguration configuration,
+            final MetricRegistry metricRegistry, final String name) {
+        this.configuration = configuration;
+        this.thresholdNanos = configuration.getThreshold().toNanoseconds();
+        this.leaks = metricRegistry.meter(MetricRegistry.name(name, "connectionHolds", "leaks"));
+        metricRegistry.register(MetricRegistry.name(name, "connectionHolds", "overThreshold"),
+                (Gauge<Integer>) () -> this.held);
+        metricRegistry.register(MetricRegistry.name(name, "connectionHolds", "oldestAge"),
+                (Gauge<Long>) () -> this.oldestAgeMillis);
+        this.durations = metricRegistry
+                .timer(MetricRegistry.name(name, "connectionHolds", "duration"));
+    }
+
+    /**
+     * Starts sweeping the holders of a new session factory. They are dropped
+     * once they're closed.
+     *
+     * @param holders
+     *            The holders of the session factory.
+     */
+    void track(final SessionHolders holders) {
+        holders.setReleaseListener(this::released);
+        this.sessionHolders.add(holders);
+    }
+
+    private void released(final ConnectionHold hold) {
+        this.durations.update(hold.getAgeNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Reports the holds that passed the threshold. It never throws, as it's
+     * run periodically.
+     */
+    void sweep() {
+        try {
+            int overThreshold = 0;
+            long oldestAgeNanos = 0;
+            for (final SessionHolders holders : this.sessionHolders) {
+                if (holders.isClosed()) {
+                    this.sessionHolders.remove(holders);
+                    continue;
+                }
+                for (final ConnectionHold hold : holders.getHolds()) {
+                    final long ageNanos = hold.getAgeNanos();
+                    oldestAgeNanos = Math.max(oldestAgeNanos, ageNanos);
+                    if (ageNanos >= this.thresholdNanos) {
+                        overThreshold++;
+                        if (hold.markReported()) {
+                            this.report(hold);
+                        }
+                    }
+                }
+            }
+            this.held = overThreshold;
+            this.oldestAgeMillis = TimeUnit.NANOSECONDS.toMillis(oldestAgeNanos);
+        } catch (final RuntimeException e) {
+            log.warn("Failed to sweep the connection holds.", e);
+        }
+    }
+
+    private void report(final ConnectionHold hold) {
+        this.leaks.mark();
+        if (hold.hasStackTrace()) {
+            log.warn("{} has held a session of bundle '{}', generation {}, on thread '{}' "
+                    + "for {} ms. It was acquired at:\n\t{}", hold.getHolder(),
+                    hold.getBundle(), hold.getGeneration(), hold.getThread(),
+                    hold.getAgeMillis(), String.join("\n\t", hold.getStackTrace()));
+        } else {
+            log.warn("{} has held a session of bundle '{}', generation {}, on thread '{}' "
+                    + "for {} ms.", hold.getHolder(), hold.getBundle(), hold.getGeneration(),
+                    hold.getThread(), hold.getAgeMillis());
+        }
+    }
+
+    /**
+     * @return The oldest in-flight holds, of every generation, the oldest
+     *         first.
+     */
+    List<ConnectionHold> getOldestHolds() {
+        final List<ConnectionHold> holds = new ArrayList<>();
+        for (final SessionHolders holders : this.sessionHolders) {
+            holds.addAll(holders.getHolds());
+        }
+        return holds.stream()
+                .sorted(Comparator.comparingLong(ConnectionHold::getAcquiredNanos))
+                .limit(this.configuration.getMaxReported())
+                .collect(Collectors.toList());
+    }
+}
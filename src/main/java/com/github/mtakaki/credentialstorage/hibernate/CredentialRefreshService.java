@@ -0,0 +1,289 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.client.Client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.mtakaki.credentialstorage.client.CredentialStorageServiceClient;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.lifecycle.Managed;
+
+import lombok.EqualsAndHashCode;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Coordinates the credential retrieval of all the
+ * {@link RemoteCredentialHibernateBundle} running in the same JVM. The bundles
+ * are scheduled on a small pool of daemon threads and share one
+ * {@link CredentialStorageServiceClient} per credential service, key pair and
+ * client configuration. The maintenance tasks of the bundles, like the leak
+ * sweeps and the idle shutdown, run on their own thread, so a slow rotation
+ * doesn't hold them back.
+ * <p>
+ * Each bundle gets a {@link Registration}, which is managed by the application
+ * lifecycle. Once the last registration is stopped the threads are shut down
+ * and the clients are closed. Idle threads also exit on their own, so the
+ * tasks scheduled after that don't keep a thread alive.
+ * </p>
+ */
+@Slf4j
+public class CredentialRefreshService {
+    public static final int DEFAULT_THREADS = 2;
+
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 60L;
+
+    private static final CredentialRefreshService INSTANCE = new CredentialRefreshService(
+            DEFAULT_THREADS);
+    private static final ObjectMapper OBJECT_MAPPER = Jackson.newObjectMapper();
+
+    private final int threads;
+    private final Map<ClientKey, CredentialStorageServiceClient> clients = new HashMap<>();
+    private final Set<Registration> registrations = new HashSet<>();
+
+    private ScheduledExecutorService scheduler;
+    private ScheduledExecutorService maintenanceScheduler;
+
+    public CredentialRefreshService(final int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * @return The {@link CredentialRefreshService} shared by the whole JVM.
+     */
+    public static CredentialRefreshService getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets the client for the credential service, key pair and client
+     * configuration of the given configuration, creating it if no other
+     * bundle is using it yet.
+     *
+     * @param dataSourceFactory
+     *            The bundle configuration.
+     * @return A shared {@link CredentialStorageServiceClient}.
+     * @throws NoSuchAlgorithmException
+     *             Thrown if the encryption/decryption algorithm is not
+     *             available.
+     * @throws InvalidKeySpecException
+     *             If the private/public key are invalid.
+     * @throws IOException
+     *             Thrown if the private/public key files could not be opened.
+     */
+    public synchronized CredentialStorageServiceClient getClient(
+            final RemoteCredentialDataSourceFactory dataSourceFactory)
+            throws NoSuchAlgorithmException, InvalidKeySpecException, IOException {
+        // The client configuration has no equals, so it's compared by its
+        // JSON form.
+        final ClientKey key = new ClientKey(dataSourceFactory.getCredentialServiceURL(),
+                dataSourceFactory.getPrivateKeyFile(), dataSourceFactory.getPublicKeyFile(),
+                OBJECT_MAPPER.writeValueAsString(
+                        dataSourceFactory.getCredentialClientConfiguration()));
+        CredentialStorageServiceClient client = this.clients.get(key);
+        if (client == null) {
+            client = new CredentialStorageServiceClient(
+                    new File(dataSourceFactory.getPrivateKeyFile()),
+                    new File(dataSourceFactory.getPublicKeyFile()),
+                    dataSourceFactory.getCredentialServiceURL(),
+                    dataSourceFactory.getCredentialClientConfiguration());
+            this.clients.put(key, client);
+        }
+        return client;
+    }
+
+    /**
+     * Schedules the given task to run periodically until the returned
+     * {@link Registration} is stopped.
+     *
+     * @param name
+     *            The name of the bundle, used for logging.
+     * @param task
+     *            The credential retrieval task.
+     * @param period
+     *            The period between two executions, which is also used as the
+     *            initial delay.
+     * @param unit
+     *            The unit of the period.
+     * @return The {@link Registration} that should be managed by the
+     *         application lifecycle.
+     */
+    public synchronized Registration register(final String name, final Runnable task,
+            final long period, final TimeUnit unit) {
+        final Registration registration = new Registration(name);
+        registration.future = this.getScheduler().scheduleAtFixedRate(task, period, period, unit);
+        this.registrations.add(registration);
+        return registration;
+    }
+
+    /**
+     * Schedules the given maintenance task to run periodically until the
+     * returned {@link Registration} is stopped. The maintenance tasks run on
+     * their own thread, apart from the credential retrievals.
+     *
+     * @param name
+     *            The name of the task, used for logging.
+     * @param task
+     *            The maintenance task.
+     * @param period
+     *            The period between two executions, which is also used as the
+     *            initial delay.
+     * @param unit
+     *            The unit of the period.
+     * @return The {@link Registration} that should be managed by the
+     *         application lifecycle.
+     */
+    public synchronized Registration registerMaintenance(final String name, final Runnable task,
+            final long period, final TimeUnit unit) {
+        final Registration registration = new Registration(name);
+        registration.future = this.getMaintenanceScheduler().scheduleAtFixedRate(task, period,
+                period, unit);
+        this.registrations.add(registration);
+        return registration;
+    }
+
+    /**
+     * Runs the given task once after the given delay.
+     *
+     * @param task
+     *            The task to be executed.
+     * @param delay
+     *            How long to wait before running the task.
+     * @param unit
+     *            The unit of the delay.
+     * @return The {@link ScheduledFuture} of the task.
+     */
+    public synchronized ScheduledFuture<?> schedule(final Runnable task, final long delay,
+            final TimeUnit unit) {
+        return this.getScheduler().schedule(task, delay, unit);
+    }
+
+    @VisibleForTesting
+    synchronized boolean isRunning() {
+        return this.scheduler != null || this.maintenanceScheduler != null;
+    }
+
+    private ScheduledExecutorService getScheduler() {
+        if (this.scheduler == null) {
+            this.scheduler = createScheduler(this.threads, "credential-refresh-%d");
+        }
+        return this.scheduler;
+    }
+
+    private ScheduledExecutorService getMaintenanceScheduler() {
+        if (this.maintenanceScheduler == null) {
+            this.maintenanceScheduler = createScheduler(1, "credential-maintenance-%d");
+        }
+        return this.maintenanceScheduler;
+    }
+
+    private static ScheduledExecutorService createScheduler(final int threads,
+            final String nameFormat) {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(threads,
+                new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build());
+        executor.setRemoveOnCancelPolicy(true);
+        // The threads only stay around while there are tasks waiting.
+        executor.setKeepAliveTime(THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private synchronized void unregister(final Registration registration) {
+        if (registration.future != null) {
+            registration.future.cancel(false);
+        }
+        this.registrations.remove(registration);
+
+        if (this.registrations.isEmpty() && this.isRunning()) {
+            log.info("No bundles left. Shutting down the credential refresh threads.");
+            if (this.scheduler != null) {
+                this.scheduler.shutdownNow();
+                this.scheduler = null;
+            }
+            if (this.maintenanceScheduler != null) {
+                this.maintenanceScheduler.shutdownNow();
+                this.maintenanceScheduler = null;
+            }
+            for (final CredentialStorageServiceClient client : this.clients.values()) {
+                closeQuietly(client);
+            }
+            this.clients.clear();
+        }
+    }
+
+    /**
+     * Closes the Jersey clients held by the given credential storage client.
+     * The credential storage client has no close method of its own, so its
+     * fields are looked up instead.
+     *
+     * @param client
+     *            The credential storage client.
+     */
+    @VisibleForTesting
+    static void closeQuietly(final Object client) {
+        for (Class<?> type = client.getClass(); type != null
+                && type != Object.class; type = type.getSuperclass()) {
+            for (final Field field : type.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                    continue;
+                }
+                try {
+                    field.setAccessible(true);
+                    final Object value = field.get(client);
+                    if (value instanceof Client) {
+                        ((Client) value).close();
+                    }
+                } catch (final IllegalAccessException | RuntimeException e) {
+                    log.warn("Failed to close the HTTP client of the credential storage client.",
+                            e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The scheduled credential retrieval of one bundle. Stopping it cancels
+     * the retrieval.
+     */
+    @RequiredArgsConstructor
+    public class Registration implements Managed {
+        private final String name;
+        private ScheduledFuture<?> future;
+
+        @Override
+        public void start() throws Exception {
+        }
+
+        @Override
+        public void stop() throws Exception {
+            log.debug("Stopping credential retrieval for {}.", this.name);
+            CredentialRefreshService.this.unregister(this);
+        }
+    }
+
+    @EqualsAndHashCode
+    @RequiredArgsConstructor
+    private static class ClientKey {
+        private final String credentialServiceURL;
+        private final String privateKeyFile;
+        private final String publicKeyFile;
+        private final String clientConfiguration;
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import io.dropwizard.util.Duration;
+import io.dropwizard.validation.ValidationMethod;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Controls how failed credential retrievals are retried. The delay between
+ * retries grows exponentially, with some random jitter so the pods don't retry
+ * at the same time. After {@code failureThreshold} consecutive failures the
+ * circuit is opened and the credential service is left alone for
+ * {@code circuitBreakerDelay}.
+ */
+@Getter
+@Setter
+public class CredentialRetryConfiguration {
+    @NotNull
+    @JsonProperty
+    private Duration initialBackoff = Duration.seconds(30);
+    @NotNull
+    @JsonProperty
+    private Duration maxBackoff = Duration.hours(1);
+    @DecimalMin("1.0")
+    @JsonProperty
+    private double backoffMultiplier = 2.0;
+    @DecimalMin("0.0")
+    @DecimalMax("1.0")
+    @JsonProperty
+    private double jitter = 0.2;
+    @Min(1)
+    @JsonProperty
+    private int failureThreshold = 5;
+    @NotNull
+    @JsonProperty
+    private Duration circuitBreakerDelay = Duration.minutes(15);
+
+    @JsonIgnore
+    @ValidationMethod(message = ".maxBackoff must be greater than or equal to initialBackoff")
+    public boolean isMaxBackoffGreaterThanInitialBackoff() {
+        return this.maxBackoff.toMilliseconds() >= this.initialBackoff.toMilliseconds();
+    }
+}
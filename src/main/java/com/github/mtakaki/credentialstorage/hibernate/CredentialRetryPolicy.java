@@ -0,0 +1,104 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.time.Clock;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Keeps track of the credential retrievals of a bundle: it computes the
+ * backoff of the retries, opens the circuit after too many consecutive
+ * failures and exposes the retrieval metrics.
+ */
+class CredentialRetryPolicy {
+    private final CredentialRetryConfiguration configuration;
+    private final Clock clock;
+    private final Random random = new Random();
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long lastSuccessfulFetch;
+    private volatile long credentialUpdated;
+    private volatile long circuitOpenUntil;
+
+    CredentialRetryPolicy(final CredentialRetryConfiguration configuration) {
+        this(configuration, Clock.systemUTC());
+    }
+
+    CredentialRetryPolicy(final CredentialRetryConfiguration configuration, final Clock clock) {
+        this.configuration = configuration;
+        this.clock = clock;
+    }
+
+    /**
+     * Records a successful retrieval, which closes the circuit.
+     */
+    void recordSuccess() {
+        this.consecutiveFailures.set(0);
+        this.circuitOpenUntil = 0L;
+        this.lastSuccessfulFetch = this.clock.millis();
+    }
+
+    /**
+     * Records that the connections are now using newly retrieved credentials.
+     */
+    void recordCredentialUpdated() {
+        this.credentialUpdated = this.clock.millis();
+    }
+
+    /**
+     * Records a failed retrieval and opens the circuit if the failure
+     * threshold was reached.
+     */
+    void recordFailure() {
+        final int failures = this.consecutiveFailures.incrementAndGet();
+        if (failures >= this.configuration.getFailureThreshold()) {
+            this.circuitOpenUntil = this.clock.millis()
+                    + this.configuration.getCircuitBreakerDelay().toMilliseconds();
+        }
+    }
+
+    /**
+     * @return How long to wait, in milliseconds, before retrying. It's never
+     *         shorter than the time left until the circuit is closed.
+     */
+    long getRetryDelay() {
+        final long backoff = this.getBackoff(Math.max(this.consecutiveFailures.get(), 1));
+        return Math.max(backoff, this.circuitOpenUntil - this.clock.millis());
+    }
+
+    /**
+     * @return {@code true} if the credential service should not be called
+     *         right now.
+     */
+    boolean isCircuitOpen() {
+        return this.clock.millis() < this.circuitOpenUntil;
+    }
+
+    int getConsecutiveFailures() {
+        return this.consecutiveFailures.get();
+    }
+
+    long getBackoff(final int failures) {
+        final double backoff = Math.min(
+                this.configuration.getInitialBackoff().toMilliseconds()
+                        * Math.pow(this.configuration.getBackoffMultiplier(), failures - 1),
+                this.configuration.getMaxBackoff().toMilliseconds());
+        // Spreads the retries in [backoff * (1 - jitter), backoff * (1 + jitter)].
+        final double jitter = this.configuration.getJitter() * (2 * this.random.nextDouble() - 1);
+        return Math.round(backoff * (1 + jitter));
+    }
+
+    void registerMetrics(final MetricRegistry metricRegistry, final String name) {
+        metricRegistry.register(MetricRegistry.name(name, "credentials", "lastSuccessfulFetch"),
+                (Gauge<Long>) () -> this.lastSuccessfulFetch);
+        metricRegistry.register(MetricRegistry.name(name, "credentials", "consecutiveFailures"),
+                (Gauge<Integer>) this::getConsecutiveFailures);
+        metricRegistry.register(MetricRegistry.name(name, "credentials", "age"),
+                (Gauge<Long>) () -> this.credentialUpdated == 0L ? 0L
+                        : this.clock.millis() - this.credentialUpdated);
+        metricRegistry.register(MetricRegistry.name(name, "credentials", "circuitOpen"),
+                (Gauge<Boolean>) this::isCircuitOpen);
+    }
+}
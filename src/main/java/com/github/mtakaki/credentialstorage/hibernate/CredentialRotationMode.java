@@ -0,0 +1,20 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+/**
+ * How the connections are rotated once the credentials are updated.
+ */
+public enum CredentialRotationMode {
+    /**
+     * A new connection pool and session factory are created with the new
+     * credentials, and the old ones are closed once the last unit of work
+     * using them is done.
+     */
+    REPLACE_POOL,
+    /**
+     * The credentials of the existing HikariCP pool are swapped, so only new
+     * connections use the new credentials. The old connections are retired by
+     * the pool max lifetime or by the configured soft eviction. It requires the
+     * database to accept both credentials during the rotation window.
+     */
+    SOFT
+}
@@ -0,0 +1,67 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.io.PrintWriter;
+
+import com.google.common.collect.ImmutableMultimap;
+
+import io.dropwizard.servlets.tasks.Task;
+
+/**
+ * Admin task that retrieves the credentials right away, instead of waiting for
+ * the next scheduled retrieval. If the credentials were updated the connection
+ * is swapped the same way the scheduled retrieval does it.
+ * <p>
+ * Supported parameters:
+ * </p>
+ * <ul>
+ * <li>{@code dryRun=true}: only reports if the credentials have changed.</li>
+ * <li>{@code force=true}: recycles the connection even if the credentials have
+ * not changed.</li>
+ * </ul>
+ *
+ * <pre>
+ * curl -X POST 'http://localhost:8081/tasks/rotate-credentials-hibernate?dryRun=true'
+ * </pre>
+ */
+public class CredentialRotationTask extends Task {
+    static final String DRY_RUN_PARAMETER = "dryRun";
+    static final String FORCE_PARAMETER = "force";
+
+    private final RemoteCredentialHibernateBundle<?> bundle;
+
+    public CredentialRotationTask(final String name,
+            final RemoteCredentialHibernateBundle<?> bundle) {
+        super(name);
+        this.bundle = bundle;
+    }
+
+    @Override
+    public void execute(final ImmutableMultimap<String, String> parameters,
+            final PrintWriter output) throws Exception {
+        final boolean dryRun = this.isEnabled(parameters, DRY_RUN_PARAMETER);
+        final boolean force = this.isEnabled(parameters, FORCE_PARAMETER);
+
+        final boolean updated = this.bundle.refreshCredentials(dryRun, force);
+        if (dryRun) {
+            output.println(updated ? "Credentials have changed. Nothing was done (dry run)."
+                    : "Credentials are unchanged. Nothing was done (dry run).");
+        } else if (updated) {
+            output.println("Credentials have changed. Connection rotated.");
+        } else if (force) {
+            output.println("Credentials are unchanged. Connection recycled.");
+        } else {
+            output.println("Credentials are unchanged.");
+        }
+        output.flush();
+    }
+
+    private boolean isEnabled(final ImmutableMultimap<String, String> parameters,
+            final String parameter) {
+        for (final String value : parameters.get(parameter)) {
+            if (Boolean.parseBoolean(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,138 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import javax.sql.DataSource;
+
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.service.UnknownUnwrapTypeException;
+
+/**
+ * A {@link ConnectionProvider} backed by a {@link DataSource} that may still be
+ * starting. It allows the session factory to be built, which binds all the
+ * entity metadata, while the credentials are being retrieved and the
+ * connection pool is being started. Connections are only requested once the
+ * data source is available.
+ * <p>
+ * If the bundle records the statements, the connections are wrapped so their
+ * statements are timed, and the time waiting for them is recorded too.
+ * </p>
+ * <p>
+ * If the running unit of work selected a pool partition, the connections are
+ * taken from the pool of the partition instead.
+ * </p>
+ * <p>
+ * The acquisitions are recorded as Flight Recorder events of the running unit
+ * of work.
+ * </p>
+ */
+class DeferredDataSourceConnectionProvider implements ConnectionProvider {
+    private static final long serialVersionUID = 1L;
+
+    private final transient CompletableFuture<? extends DataSource> dataSource;
+    private final transient StatementRecorder recorder;
+    private final transient Supplier<DataSource> partition;
+    private final transient Supplier<UnitOfWorkAspect> unitOfWork;
+
+    DeferredDataSourceConnectionProvider(final CompletableFuture<? extends DataSource> dataSource) {
+        this(dataSource, null, null);
+    }
+
+    DeferredDataSourceConnectionProvider(final CompletableFuture<? extends DataSource> dataSource,
+            final StatementRecorder recorder) {
+        this(dataSource, recorder, null);
+    }
+
+    DeferredDataSourceConnectionProvider(final CompletableFuture<? extends DataSource> dataSource,
+            final StatementRecorder recorder, final Supplier<DataSource> partition) {
+        this(dataSource, recorder, partition, null);
+    }
+
+    DeferredDataSourceConnectionProvider(final CompletableFuture<? extends DataSource> dataSource,
+            final StatementRecorder recorder, final Supplier<DataSource> partition,
+            final Supplier<UnitOfWorkAspect> unitOfWork) {
+        this.dataSource = dataSource;
+        this.recorder = recorder;
+        this.partition = partition;
+        this.unitOfWork = unitOfWork;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        final Object event = FlightRecorderEvents.beginConnection();
+        try {
+            return this.acquireConnection();
+        } finally {
+            if (event != null) {
+                // The connection is acquired by the running unit of work.
+                final UnitOfWorkAspect current = this.unitOfWork == null ? null
+                        : this.unitOfWork.get();
+                FlightRecorderEvents.commit(event,
+                        current == null ? null : current.getBundleName(),
+                        current == null ? 0 : current.getGeneration(),
+                        current == null ? null : current.getMethodName(), "acquire");
+            }
+        }
+    }
+
+    private Connection acquireConnection() throws SQLException {
+        final DataSource partitionDataSource = this.partition == null ? null
+                : this.partition.get();
+        final DataSource currentDataSource = partitionDataSource != null ? partitionDataSource
+                : this.getDataSource();
+        if (this.recorder == null) {
+            return currentDataSource.getConnection();
+        }
+        final long start = System.nanoTime();
+        final Connection connection = currentDataSource.getConnection();
+        this.recorder.recordConnectionWait(currentDataSource, System.nanoTime() - start);
+        return TimedConnections.wrap(connection, currentDataSource, this.recorder);
+    }
+
+    @Override
+    public void closeConnection(final Connection connection) throws SQLException {
+        connection.close();
+    }
+
+    @Override
+    public boolean supportsAggressiveRelease() {
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public boolean isUnwrappableAs(final Class unwrapType) {
+        return ConnectionProvider.class.equals(unwrapType)
+                || DeferredDataSourceConnectionProvider.class.isAssignableFrom(unwrapType)
+                || DataSource.class.isAssignableFrom(unwrapType);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(final Class<T> unwrapType) {
+        if (ConnectionProvider.class.equals(unwrapType)
+                || DeferredDataSourceConnectionProvider.class.isAssignableFrom(unwrapType)) {
+            return (T) this;
+        } else if (DataSource.class.isAssignableFrom(unwrapType)) {
+            try {
+                return (T) this.getDataSource();
+            } catch (final SQLException e) {
+                throw new IllegalStateException(e.getMessage(), e.getCause());
+            }
+        } else {
+            throw new UnknownUnwrapTypeException(unwrapType);
+        }
+    }
+
+    private DataSource getDataSource() throws SQLException {
+        try {
+            return this.dataSource.join();
+        } catch (final CompletionException e) {
+            throw new SQLException("The data source failed to start.", e.getCause());
+        }
+    }
+}
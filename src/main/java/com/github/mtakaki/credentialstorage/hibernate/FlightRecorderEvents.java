@@ -0,0 +1,81 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+/**
+ * Emits the Java Flight Recorder events of the bundles: the phases of the
+ * units of work, the opening and closing of their sessions, the connections
+ * they acquire, the users added to and removed from the
+ * {@link SessionHolders} and the phases of the credential rotations. Each
+ * event has its duration, the bundle, the generation of the session factory
+ * and the method of the unit of work.
+ * <p>
+ * Flight Recorder events need Java 11, so this implementation does nothing
+ * and it's replaced by the one in {@code META-INF/versions/11} of the
+ * multi-release jar. The events are started with one of the {@code begin}
+ * methods, which return {@code null} when the event is not enabled, and
+ * committed with {@link #commit(Object, String, long, String, String)}.
+ * </p>
+ */
+final class FlightRecorderEvents {
+    private FlightRecorderEvents() {
+    }
+
+    /**
+     * @return The event of a unit of work phase, or {@code null} if it's not
+     *         recorded.
+     */
+    static Object beginUnitOfWork() {
+        return null;
+    }
+
+    /**
+     * @return The event of a session being opened or closed, or {@code null}
+     *         if it's not recorded.
+     */
+    static Object beginSession() {
+        return null;
+    }
+
+    /**
+     * @return The event of a connection acquisition, or {@code null} if it's
+     *         not recorded.
+     */
+    static Object beginConnection() {
+        return null;
+    }
+
+    /**
+     * @return The event of a user added to or removed from the
+     *         {@link SessionHolders}, or {@code null} if it's not recorded.
+     */
+    static Object beginSessionHolders() {
+        return null;
+    }
+
+    /**
+     * @return The event of a credential rotation phase, or {@code null} if
+     *         it's not recorded.
+     */
+    static Object beginRotation() {
+        return null;
+    }
+
+    /**
+     * Ends the event and commits it, if it passes the threshold of the
+     * recording.
+     *
+     * @param event
+     *            The event returned by a {@code begin} method. Nothing is done
+     *            if it's {@code null}.
+     * @param bundle
+     *            The name of the bundle.
+     * @param generation
+     *            The generation of the session factory.
+     * @param method
+     *            The method of the unit of work, or {@code null}.
+     * @param phase
+     *            What happened, such as {@code afterEnd} or {@code open}.
+     */
+    static void commit(final Object event, final String bundle, final long generation,
+            final String method, final String phase) {
+    }
+}
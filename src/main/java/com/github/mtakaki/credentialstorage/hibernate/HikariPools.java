@@ -0,0 +1,129 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+/**
+ * Operations on the live HikariCP pool behind a {@link DataSource}.
+ */
+final class HikariPools {
+    private HikariPools() {
+    }
+
+    /**
+     * @param dataSource
+     *            The data source built by the bundle.
+     * @return {@code true} if the data source is backed by HikariCP.
+     */
+    static boolean isHikari(final DataSource dataSource) {
+        return dataSource instanceof HikariDataSource;
+    }
+
+    /**
+     * Swaps the credentials used by the pool to open new connections. The
+     * existing connections are not affected.
+     *
+     * @param dataSource
+     *            The HikariCP data source.
+     * @param user
+     *            The new user.
+     * @param password
+     *            The new password.
+     */
+    static void swapCredentials(final DataSource dataSource, final String user,
+            final String password) {
+        final HikariDataSource hikariDataSource = (HikariDataSource) dataSource;
+        hikariDataSource.setUsername(user);
+        hikariDataSource.setPassword(password);
+    }
+
+    /**
+     * Applies the sizing and timeouts to the running pool. The pool grows or
+     * shrinks to the new size as connections are requested and retired.
+     *
+     * @param dataSource
+     *            The HikariCP data source.
+     * @param minSize
+     *            The minimum number of idle connections.
+     * @param maxSize
+     *            The maximum number of connections.
+     * @param maxWaitForConnection
+     *            How long to wait for a connection, in milliseconds.
+     * @param validationTimeout
+     *            How long to wait for a connection to be validated, in
+     *            milliseconds, or {@code null} to keep the current one.
+     */
+    static void reconfigure(final DataSource dataSource, final int minSize, final int maxSize,
+            final long maxWaitForConnection, final Long validationTimeout) {
+        final HikariDataSource hikariDataSource = (HikariDataSource) dataSource;
+        // The minimum can never be greater than the maximum, so the order
+        // depends on whether the pool is growing or shrinking.
+        if (maxSize >= hikariDataSource.getMaximumPoolSize()) {
+            hikariDataSource.setMaximumPoolSize(maxSize);
+            hikariDataSource.setMinimumIdle(minSize);
+        } else {
+            hikariDataSource.setMinimumIdle(minSize);
+            hikariDataSource.setMaximumPoolSize(maxSize);
+        }
+        hikariDataSource.setConnectionTimeout(maxWaitForConnection);
+        if (validationTimeout != null) {
+            hikariDataSource.setValidationTimeout(validationTimeout);
+        }
+    }
+
+    /**
+     * Evicts the idle connections right away and the active ones once they
+     * are returned to the pool. It does nothing if the pool is closed or was
+     * not started.
+     *
+     * @param dataSource
+     *            The HikariCP data source.
+     */
+    static void softEvictConnections(final DataSource dataSource) {
+        final HikariDataSource hikariDataSource = (HikariDataSource) dataSource;
+        if (hikariDataSource.isClosed()) {
+            return;
+        }
+        final HikariPoolMXBean pool = hikariDataSource.getHikariPoolMXBean();
+        if (pool != null) {
+            pool.softEvictConnections();
+        }
+    }
+
+    /**
+     * Opens a connection to the database of the pool, with its current
+     * credentials, without taking it from the pool. The caller must close it.
+     *
+     * @param dataSource
+     *            The HikariCP data source.
+     * @return A new physical connection.
+     * @throws SQLException
+     *             Thrown if the connection could not be opened, or the pool
+     *             is not configured with a JDBC URL.
+     */
+    static Connection openUnpooledConnection(final DataSource dataSource) throws SQLException {
+        final HikariDataSource hikariDataSource = (HikariDataSource) dataSource;
+        if (hikariDataSource.getDataSource() != null) {
+            return hikariDataSource.getDataSource().getConnection(
+                    hikariDataSource.getUsername(), hikariDataSource.getPassword());
+        }
+        if (hikariDataSource.getJdbcUrl() == null) {
+            throw new SQLException("The pool has no JDBC URL to open a connection outside of it.");
+        }
+        if (hikariDataSource.getDriverClassName() != null) {
+            try {
+                Class.forName(hikariDataSource.getDriverClassName());
+            } catch (final ClassNotFoundException e) {
+                throw new SQLException("The JDBC driver was not found.", e);
+            }
+        }
+        return DriverManager.getConnection(hikariDataSource.getJdbcUrl(),
+                hikariDataSource.getUsername(), hikariDataSource.getPassword());
+    }
+}
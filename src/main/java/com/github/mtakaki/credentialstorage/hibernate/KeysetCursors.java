@@ -0,0 +1,246 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.UUID;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * Encodes the last key of a keyset page as the cursor of the next page. The
+ * values are written in a compact binary form, signed with HMAC-SHA256 and
+ * encoded in URL-safe base64, without padding, so they can be sent in the
+ * responses and query strings as they are. The signature also covers the
+ * query the cursor belongs to, so a cursor can't be changed or given to
+ * another query.
+ */
+final class KeysetCursors {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int SIGNATURE_LENGTH = 16;
+    private static final int VERSION = 1;
+
+    private static final byte LONG = 'J';
+    private static final byte INTEGER = 'I';
+    private static final byte SHORT = 'S';
+    private static final byte BOOLEAN = 'Z';
+    private static final byte DOUBLE = 'D';
+    private static final byte FLOAT = 'F';
+    private static final byte STRING = 'T';
+    private static final byte BIG_DECIMAL = 'M';
+    private static final byte BIG_INTEGER = 'G';
+    private static final byte UUID_VALUE = 'U';
+    private static final byte DATE = 'd';
+    private static final byte SQL_DATE = 'q';
+    private static final byte TIMESTAMP = 't';
+    private static final byte DATE_TIME = 'j';
+
+    private final SecretKeySpec key;
+
+    KeysetCursors(final byte[] secret) {
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+    }
+
+    /**
+     * @return The cursors signed with a random key. They are only accepted by
+     *         this instance of the application.
+     */
+    static KeysetCursors random() {
+        final byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        return new KeysetCursors(secret);
+    }
+
+    /**
+     * @param scope
+     *            The query the cursor belongs to.
+     * @param values
+     *            The values of the key of the last row of the page.
+     * @return The signed cursor.
+     */
+    String encode(final String scope, final Object[] values) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            output.writeByte(VERSION);
+            output.writeByte(values.length);
+            for (final Object value : values) {
+                writeValue(output, value);
+            }
+            final byte[] payload = bytes.toByteArray();
+            output.write(this.sign(scope, payload));
+        } catch (final IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * @param scope
+     *            The query the cursor belongs to.
+     * @param cursor
+     *            The cursor returned by {@link #encode(String, Object[])}.
+     * @return The values of the key.
+     * @throws IllegalArgumentException
+     *             If the cursor is malformed, was changed or belongs to
+     *             another query.
+     */
+    Object[] decode(final String scope, final String cursor) {
+        final byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(cursor);
+        } catch (final IllegalArgumentException e) {
+            throw invalidCursor();
+        }
+        if (bytes.length < 2 + SIGNATURE_LENGTH) {
+            throw invalidCursor();
+        }
+        final byte[] payload = Arrays.copyOf(bytes, bytes.length - SIGNATURE_LENGTH);
+        final byte[] signature = Arrays.copyOfRange(bytes, payload.length, bytes.length);
+        if (!MessageDigest.isEqual(signature, this.sign(scope, payload))) {
+            throw invalidCursor();
+        }
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload))) {
+            if (input.readUnsignedByte() != VERSION) {
+                throw invalidCursor();
+            }
+            final Object[] values = new Object[input.readUnsignedByte()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readValue(input);
+            }
+            if (input.available() > 0) {
+                throw invalidCursor();
+            }
+            return values;
+        } catch (final IOException e) {
+            throw invalidCursor();
+        }
+    }
+
+    private byte[] sign(final String scope, final byte[] payload) {
+        try {
+            // Mac instances are not thread safe, so one is created every time.
+            final Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(this.key);
+            mac.update(scope.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return Arrays.copyOf(mac.doFinal(payload), SIGNATURE_LENGTH);
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeValue(final DataOutputStream output, final Object value)
+            throws IOException {
+        if (value instanceof Long) {
+            output.writeByte(LONG);
+            output.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            output.writeByte(INTEGER);
+            output.writeInt((Integer) value);
+        } else if (value instanceof Short) {
+            output.writeByte(SHORT);
+            output.writeShort((Short) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte(BOOLEAN);
+            output.writeBoolean((Boolean) value);
+        } else if (value instanceof Double) {
+            output.writeByte(DOUBLE);
+            output.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            output.writeByte(FLOAT);
+            output.writeFloat((Float) value);
+        } else if (value instanceof String) {
+            output.writeByte(STRING);
+            output.writeUTF((String) value);
+        } else if (value instanceof BigDecimal) {
+            output.writeByte(BIG_DECIMAL);
+            output.writeUTF(value.toString());
+        } else if (value instanceof BigInteger) {
+            output.writeByte(BIG_INTEGER);
+            output.writeUTF(value.toString());
+        } else if (value instanceof UUID) {
+            output.writeByte(UUID_VALUE);
+            output.writeLong(((UUID) value).getMostSignificantBits());
+            output.writeLong(((UUID) value).getLeastSignificantBits());
+        } else if (value instanceof Timestamp) {
+            // The nanoseconds are kept, or the rows in the same millisecond
+            // would be repeated.
+            output.writeByte(TIMESTAMP);
+            output.writeLong(((Timestamp) value).getTime());
+            output.writeInt(((Timestamp) value).getNanos());
+        } else if (value instanceof java.sql.Date) {
+            output.writeByte(SQL_DATE);
+            output.writeLong(((Date) value).getTime());
+        } else if (value instanceof Date) {
+            output.writeByte(DATE);
+            output.writeLong(((Date) value).getTime());
+        } else if (value instanceof DateTime) {
+            output.writeByte(DATE_TIME);
+            output.writeLong(((DateTime) value).getMillis());
+            output.writeUTF(((DateTime) value).getZone().getID());
+        } else {
+            throw new IllegalArgumentException(String.format(
+                    "Keyset pagination doesn't support keys of type %s",
+                    value == null ? null : value.getClass().getName()));
+        }
+    }
+
+    private static Object readValue(final DataInputStream input) throws IOException {
+        final byte type = input.readByte();
+        switch (type) {
+        case LONG:
+            return input.readLong();
+        case INTEGER:
+            return input.readInt();
+        case SHORT:
+            return input.readShort();
+        case BOOLEAN:
+            return input.readBoolean();
+        case DOUBLE:
+            return input.readDouble();
+        case FLOAT:
+            return input.readFloat();
+        case STRING:
+            return input.readUTF();
+        case BIG_DECIMAL:
+            return new BigDecimal(input.readUTF());
+        case BIG_INTEGER:
+            return new BigInteger(input.readUTF());
+        case UUID_VALUE:
+            return new UUID(input.readLong(), input.readLong());
+        case TIMESTAMP:
+            final Timestamp timestamp = new Timestamp(input.readLong());
+            timestamp.setNanos(input.readInt());
+            return timestamp;
+        case SQL_DATE:
+            return new java.sql.Date(input.readLong());
+        case DATE:
+            return new Date(input.readLong());
+        case DATE_TIME:
+            final long millis = input.readLong();
+            return new DateTime(millis, DateTimeZone.forID(input.readUTF()));
+        default:
+            throw invalidCursor();
+        }
+    }
+
+    private static IllegalArgumentException invalidCursor() {
+        return new IllegalArgumentException("The cursor is not valid");
+    }
+}
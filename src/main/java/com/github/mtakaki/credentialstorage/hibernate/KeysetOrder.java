@@ -0,0 +1,43 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * A property of the key of a keyset pagination and its direction. The last
+ * property of the key must be unique, such as the identifier, so the rows
+ * with the same values in the other properties are not skipped or repeated.
+ * The values of the key can't be {@code null}.
+ */
+@Getter
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+public final class KeysetOrder {
+    private final String property;
+    private final boolean ascending;
+
+    /**
+     * @param property
+     *            The property of the entity. In HQL queries, it's prefixed by
+     *            the alias of the entity, such as {@code p.name}.
+     * @return The property in ascending order.
+     */
+    public static KeysetOrder asc(final String property) {
+        return new KeysetOrder(property, true);
+    }
+
+    /**
+     * @param property
+     *            The property of the entity. In HQL queries, it's prefixed by
+     *            the alias of the entity, such as {@code p.name}.
+     * @return The property in descending order.
+     */
+    public static KeysetOrder desc(final String property) {
+        return new KeysetOrder(property, false);
+    }
+
+    @Override
+    public String toString() {
+        return this.property + (this.ascending ? " asc" : " desc");
+    }
+}
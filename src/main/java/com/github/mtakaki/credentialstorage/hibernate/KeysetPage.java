@@ -0,0 +1,32 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * A page of a keyset pagination, returned by {@link BundleAbstractDAO}. The
+ * cursor can be sent as is in the responses and given back to get the next
+ * page.
+ *
+ * @param <E>
+ *            The entity of the page.
+ */
+@Getter
+@RequiredArgsConstructor
+public class KeysetPage<E> {
+    @JsonProperty
+    private final List<E> items;
+    /**
+     * The cursor of the next page, or {@code null} if this is the last page.
+     */
+    @JsonProperty
+    private final String nextCursor;
+
+    public boolean hasNext() {
+        return this.nextCursor != null;
+    }
+}
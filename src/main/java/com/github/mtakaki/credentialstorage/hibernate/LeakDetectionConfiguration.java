@@ -0,0 +1,39 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import io.dropwizard.util.Duration;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Controls the detection of units of work that hold a session of the bundle
+ * for too long. Every {@code sweepInterval} the in-flight units of work are
+ * checked and the ones held for longer than {@code threshold} are reported.
+ * The stack trace of where the session was acquired is captured for a
+ * {@code stackSamplingRate} of the units of work, and the {@code maxReported}
+ * oldest ones are listed by the admin endpoint.
+ */
+@Getter
+@Setter
+public class LeakDetectionConfiguration {
+    @NotNull
+    @JsonProperty
+    private Duration threshold = Duration.seconds(30);
+    @NotNull
+    @JsonProperty
+    private Duration sweepInterval = Duration.seconds(5);
+    @DecimalMin("0")
+    @DecimalMax("1")
+    @JsonProperty
+    private double stackSamplingRate = 0.01;
+    @Min(1)
+    @JsonProperty
+    private int maxReported = 20;
+}
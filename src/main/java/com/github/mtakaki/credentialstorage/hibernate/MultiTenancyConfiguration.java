@@ -0,0 +1,41 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import javax.validation.constraints.NotNull;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import io.dropwizard.util.Duration;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Routes the units of work of a bundle to one database, or schema, per tenant
+ * through a single {@code SessionFactory}. The {@code {tenant}} placeholder of
+ * the templates is replaced by the tenant identifier. Each tenant gets its own
+ * connection pool, created when it's first used and closed once it's idle for
+ * {@code idleTimeout}.
+ * <p>
+ * If the key file templates are set, every tenant retrieves its own
+ * credentials, which are rotated like the credentials of the bundle.
+ * </p>
+ */
+@Getter
+@Setter
+public class MultiTenancyConfiguration {
+    public static final String TENANT_PLACEHOLDER = "{tenant}";
+
+    @NotNull
+    @JsonProperty
+    private String urlTemplate;
+    @JsonProperty
+    private String privateKeyFileTemplate;
+    @JsonProperty
+    private String publicKeyFileTemplate;
+    @NotNull
+    @JsonProperty
+    private Duration idleTimeout = Duration.minutes(30);
+    @NotNull
+    @JsonProperty
+    private String defaultTenant = "default";
+}
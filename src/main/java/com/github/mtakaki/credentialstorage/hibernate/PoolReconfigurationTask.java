@@ -0,0 +1,101 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+import com.google.common.collect.ImmutableCollection;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Iterables;
+
+import io.dropwizard.servlets.tasks.Task;
+import io.dropwizard.util.Duration;
+
+/**
+ * Admin task that applies new sizing and timeouts to the live connection pool,
+ * so pools can be shrunk or grown without restarting the application. The new
+ * values are validated the same way the configuration is.
+ * <p>
+ * Supported parameters:
+ * </p>
+ * <ul>
+ * <li>{@code minSize}: the minimum number of idle connections.</li>
+ * <li>{@code maxSize}: the maximum number of connections.</li>
+ * <li>{@code maxWaitForConnection}: how long to wait for a connection, such as
+ * {@code 500ms}.</li>
+ * <li>{@code validationQueryTimeout}: how long to wait for a connection to be
+ * validated, such as {@code 2s}.</li>
+ * </ul>
+ *
+ * <pre>
+ * curl -X POST 'http://localhost:8081/tasks/reconfigure-pool-hibernate?maxSize=50&amp;minSize=10'
+ * </pre>
+ */
+public class PoolReconfigurationTask extends Task {
+    static final String MIN_SIZE_PARAMETER = "minSize";
+    static final String MAX_SIZE_PARAMETER = "maxSize";
+    static final String MAX_WAIT_FOR_CONNECTION_PARAMETER = "maxWaitForConnection";
+    static final String VALIDATION_QUERY_TIMEOUT_PARAMETER = "validationQueryTimeout";
+
+    private final RemoteCredentialHibernateBundle<?> bundle;
+
+    public PoolReconfigurationTask(final String name,
+            final RemoteCredentialHibernateBundle<?> bundle) {
+        super(name);
+        this.bundle = bundle;
+    }
+
+    @Override
+    public void execute(final ImmutableMultimap<String, String> parameters,
+            final PrintWriter output) throws Exception {
+        final PoolSettings settings = new PoolSettings();
+        try {
+            final String minSize = this.getParameter(parameters, MIN_SIZE_PARAMETER);
+            if (minSize != null) {
+                settings.setMinSize(Integer.valueOf(minSize));
+            }
+            final String maxSize = this.getParameter(parameters, MAX_SIZE_PARAMETER);
+            if (maxSize != null) {
+                settings.setMaxSize(Integer.valueOf(maxSize));
+            }
+            final String maxWaitForConnection = this.getParameter(parameters,
+                    MAX_WAIT_FOR_CONNECTION_PARAMETER);
+            if (maxWaitForConnection != null) {
+                settings.setMaxWaitForConnection(Duration.parse(maxWaitForConnection));
+            }
+            final String validationQueryTimeout = this.getParameter(parameters,
+                    VALIDATION_QUERY_TIMEOUT_PARAMETER);
+            if (validationQueryTimeout != null) {
+                settings.setValidationQueryTimeout(Duration.parse(validationQueryTimeout));
+            }
+        } catch (final IllegalArgumentException e) {
+            output.println("Invalid parameter: " + e.getMessage());
+            output.flush();
+            return;
+        }
+
+        if (settings.isEmpty()) {
+            output.println("No pool settings were given. Nothing was done.");
+        } else {
+            try {
+                final List<String> changes = this.bundle.reconfigurePool(settings);
+                if (changes.isEmpty()) {
+                    output.println("Pool settings are unchanged.");
+                } else {
+                    output.println("Pool reconfigured.");
+                    for (final String change : changes) {
+                        output.println(change);
+                    }
+                }
+            } catch (final IllegalArgumentException e) {
+                output.println(e.getMessage());
+            }
+        }
+        output.flush();
+    }
+
+    private String getParameter(final ImmutableMultimap<String, String> parameters,
+            final String parameter) {
+        final ImmutableCollection<String> values = parameters.get(parameter);
+        return values.isEmpty() ? null : Iterables.getLast(values);
+    }
+}
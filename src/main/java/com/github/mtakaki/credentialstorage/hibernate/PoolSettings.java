@@ -0,0 +1,32 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import io.dropwizard.util.Duration;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * The pool sizing and timeouts applied to the live pool by
+ * {@link RemoteCredentialHibernateBundle#reconfigurePool(PoolSettings)}, or to
+ * a pool partition. The settings that are {@code null} are left unchanged, or
+ * taken from the bundle configuration.
+ */
+@Getter
+@Setter
+public class PoolSettings {
+    private Integer minSize;
+    private Integer maxSize;
+    private Duration maxWaitForConnection;
+    private Duration validationQueryTimeout;
+
+    /**
+     * @return {@code true} if none of the settings is set.
+     */
+    @JsonIgnore
+    public boolean isEmpty() {
+        return this.minSize == null && this.maxSize == null
+                && this.maxWaitForConnection == null && this.validationQueryTimeout == null;
+    }
+}
@@ -0,0 +1,364 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.sql.DataSource;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.annotations.VisibleForTesting;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Warms up a new session factory and its pool before it starts serving units
+ * of work. It records a sample of the read-only HQL queries of
+ * {@link BundleAbstractDAO} and of the {@code SELECT} statements executed by
+ * the connections, keeping the most frequent ones, and replays them against
+ * the new session factory:
+ * <ul>
+ * <li>The HQL queries are compiled into the query plan cache of the session
+ * factory. The ones without parameters are also executed.</li>
+ * <li>The statements are prepared on a connection of the new pool, and of
+ * each of its partitions, so the database prepares them. The ones without
+ * parameters are also executed, so their pages are loaded. If
+ * {@link WarmUpConfiguration#isReplayParameters()} is set, the last
+ * parameters of each statement are kept and the statements with parameters
+ * are executed with them too.</li>
+ * </ul>
+ * <p>
+ * Only the first {@code maxRows} rows are read and the warm-up stops once its
+ * time budget is spent. A query that fails is skipped.
+ * </p>
+ */
+@Slf4j
+class QueryWarmUp implements StatementRecorder {
+    private final WarmUpConfiguration configuration;
+    private final HotQueries hqlQueries;
+    private final HotQueries sqlQueries;
+
+    private final Timer duration;
+    private final Meter replayed;
+    private final Meter failed;
+    private final Meter skipped;
+
+    QueryWarmUp(final WarmUpConfiguration configuration, final MetricRegistry metricRegistry,
+            final String name) {
+        this.configuration = configuration;
+        this.hqlQueries = new HotQueries(configuration.getTrackedQueries());
+        this.sqlQueries = new HotQueries(configuration.getTrackedQueries());
+        this.duration = metricRegistry.timer(MetricRegistry.name(name, "warmUp", "duration"));
+        this.replayed = metricRegistry.meter(MetricRegistry.name(name, "warmUp", "replayed"));
+        this.failed = metricRegistry.meter(MetricRegistry.name(name, "warmUp", "failed"));
+        this.skipped = metricRegistry.meter(MetricRegistry.name(name, "warmUp", "skipped"));
+    }
+
+    @Override
+    public void record(final DataSource dataSource, final String sql, final Object[] parameters,
+            final long nanos) {
+        if (this.isSampled() && SlowStatementLog.isSelect(sql)) {
+            // The bind values may be personal data, so they are only kept when
+            // they are replayed.
+            this.sqlQueries.add(sql,
+                    parameters == null || !this.configuration.isReplayParameters() ? null
+                            : Arrays.copyOf(parameters, parameters.length));
+        }
+    }
+
+    /**
+     * Records an HQL query created by a DAO. Only queries are recorded.
+     *
+     * @param hql
+     *            The HQL query.
+     */
+    void recordHql(final String hql) {
+        if (this.isSampled() && isQuery(hql)) {
+            this.hqlQueries.add(hql, null);
+        }
+    }
+
+    private boolean isSampled() {
+        return ThreadLocalRandom.current().nextDouble() < this.configuration.getSamplingRate();
+    }
+
+    /**
+     * Replays the most frequent queries against the new session factory.
+     *
+     * @param sessionFactory
+     *            The new session factory.
+     * @param dataSource
+     *            The data source of the new session factory.
+     * @param tenantIdentifier
+     *            The default tenant of a multi-tenant session factory, or
+     *            {@code null}.
+     */
+    void warmUp(final SessionFactory sessionFactory, final DataSource dataSource,
+            final String tenantIdentifier) {
+        this.warmUp(sessionFactory, dataSource, Collections.emptyList(), tenantIdentifier);
+    }
+
+    /**
+     * Replays the most frequent queries against the new session factory. The
+     * statements are replayed on the main pool and then on every partition,
+     * within the same time budget.
+     *
+     * @param sessionFactory
+     *            The new session factory.
+     * @param dataSource
+     *            The data source of the new session factory.
+     * @param partitions
+     *            The pools of the partitions of the new session factory.
+     * @param tenantIdentifier
+     *            The default tenant of a multi-tenant session factory, or
+     *            {@code null}.
+     */
+    void warmUp(final SessionFactory sessionFactory, final DataSource dataSource,
+            final Collection<? extends DataSource> partitions, final String tenantIdentifier) {
+        final Set<String> hql = new LinkedHashSet<>(this.configuration.getHql());
+        for (final HotQuery query : this.hqlQueries
+                .getMostFrequent(this.configuration.getQueries())) {
+            hql.add(query.getQuery());
+        }
+        final List<HotQuery> sql = this.sqlQueries
+                .getMostFrequent(this.configuration.getQueries());
+        if (hql.isEmpty() && sql.isEmpty()) {
+            return;
+        }
+
+        final Timer.Context context = this.duration.time();
+        final long deadline = System.nanoTime()
+                + this.configuration.getTimeBudget().toNanoseconds();
+        int skippedQueries = this.replayHql(sessionFactory, tenantIdentifier, hql, deadline)
+                + this.replaySql(dataSource, sql, deadline);
+        for (final DataSource partition : partitions) {
+            skippedQueries += this.replaySql(partition, sql, deadline);
+        }
+        this.skipped.mark(skippedQueries);
+        log.info("Warm-up of {} queries on {} pools finished in {} ms ({} skipped by the time "
+                + "budget).", hql.size() + sql.size(), partitions.size() + 1,
+                TimeUnit.NANOSECONDS.toMillis(context.stop()), skippedQueries);
+    }
+
+    private int replayHql(final SessionFactory sessionFactory, final String tenantIdentifier,
+            final Set<String> queries, final long deadline) {
+        if (queries.isEmpty()) {
+            return 0;
+        }
+        // Multi-tenant session factories need a tenant to open a session.
+        final Session session = tenantIdentifier == null ? sessionFactory.openSession()
+                : sessionFactory.withOptions().tenantIdentifier(tenantIdentifier).openSession();
+        try {
+            session.setDefaultReadOnly(true);
+            final Transaction transaction = session.beginTransaction();
+            try {
+                final Iterator<String> iterator = queries.iterator();
+                while (iterator.hasNext()) {
+                    if (System.nanoTime() - deadline >= 0) {
+                        return this.count(iterator);
+                    }
+                    this.replayHql(session, iterator.next(), deadline);
+                }
+            } finally {
+                transaction.rollback();
+            }
+        } catch (final HibernateException e) {
+            log.warn("Failed to warm up the session factory.", e);
+        } finally {
+            session.close();
+        }
+        return 0;
+    }
+
+    private void replayHql(final Session session, final String hql, final long deadline) {
+        try {
+            // Creating the query compiles it into the query plan cache.
+            final Query query = session.createQuery(hql);
+            if (query.getNamedParameters().length == 0 && hql.indexOf('?') < 0) {
+                query.setReadOnly(true)
+                        .setMaxResults(this.configuration.getMaxRows())
+                        .setTimeout(this.getRemainingSeconds(deadline))
+                        .list();
+            }
+            this.replayed.mark();
+        } catch (final HibernateException e) {
+            this.failed.mark();
+            log.debug("Failed to replay the query: {}", hql, e);
+        }
+    }
+
+    private int replaySql(final DataSource dataSource, final List<HotQuery> queries,
+            final long deadline) {
+        if (queries.isEmpty()) {
+            return 0;
+        }
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setReadOnly(true);
+            try {
+                final Iterator<HotQuery> iterator = queries.iterator();
+                while (iterator.hasNext()) {
+                    if (System.nanoTime() - deadline >= 0) {
+                        return this.count(iterator);
+                    }
+                    this.replaySql(connection, iterator.next(), deadline);
+                }
+            } finally {
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                }
+            }
+        } catch (final SQLException e) {
+            log.warn("Failed to warm up the data source.", e);
+        }
+        return 0;
+    }
+
+    private void replaySql(final Connection connection, final HotQuery query,
+            final long deadline) {
+        try (PreparedStatement statement = connection.prepareStatement(query.getQuery())) {
+            final Object[] parameters = query.getParameters();
+            if (parameters == null && query.getQuery().indexOf('?') >= 0) {
+                // Preparing it is all that can be done without its parameters.
+                this.replayed.mark();
+                return;
+            }
+            statement.setMaxRows(this.configuration.getMaxRows());
+            statement.setQueryTimeout(this.getRemainingSeconds(deadline));
+            if (parameters != null) {
+                for (int i = 0; i < parameters.length; i++) {
+                    statement.setObject(i + 1, parameters[i]);
+                }
+            }
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    // Reads the rows, so they are actually fetched.
+                }
+            }
+            this.replayed.mark();
+        } catch (final SQLException e) {
+            this.failed.mark();
+            log.debug("Failed to replay the statement: {}", query.getQuery(), e);
+        }
+    }
+
+    private int getRemainingSeconds(final long deadline) {
+        final long remaining = deadline - System.nanoTime();
+        return (int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining + 999_999_999L));
+    }
+
+    private int count(final Iterator<?> iterator) {
+        int count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+
+    @VisibleForTesting
+    List<String> getRecordedHql() {
+        return this.hqlQueries.getMostFrequent(Integer.MAX_VALUE).stream()
+                .map(HotQuery::getQuery).collect(Collectors.toList());
+    }
+
+    @VisibleForTesting
+    List<String> getRecordedSql() {
+        return this.sqlQueries.getMostFrequent(Integer.MAX_VALUE).stream()
+                .map(HotQuery::getQuery).collect(Collectors.toList());
+    }
+
+    private static boolean isQuery(final String hql) {
+        final String query = hql.trim();
+        return query.regionMatches(true, 0, "select", 0, 6)
+                || query.regionMatches(true, 0, "from", 0, 4);
+    }
+
+    /**
+     * The most frequent queries, tracked with the Space-Saving algorithm. Once
+     * it's full, a new query replaces the least frequent one and starts from
+     * its count, so the frequent queries are never evicted by many unique
+     * ones, while a new hot query can still climb.
+     */
+    private static class HotQueries {
+        private final int capacity;
+        private final Map<String, HotQuery> queries = new HashMap<>();
+
+        HotQueries(final int capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized void add(final String query, final Object[] parameters) {
+            HotQuery hotQuery = this.queries.get(query);
+            if (hotQuery == null) {
+                hotQuery = new HotQuery(query);
+                if (this.queries.size() >= this.capacity) {
+                    final HotQuery leastFrequent = Collections.min(this.queries.values(),
+                            Comparator.comparingLong(
+                                    (final HotQuery candidate) -> candidate.count));
+                    this.queries.remove(leastFrequent.query);
+                    hotQuery.count = leastFrequent.count;
+                }
+                this.queries.put(query, hotQuery);
+            }
+            hotQuery.count++;
+            hotQuery.parameters = parameters;
+        }
+
+        synchronized List<HotQuery> getMostFrequent(final int limit) {
+            return this.queries.values().stream()
+                    .sorted(Comparator.comparingLong((final HotQuery query) -> query.count)
+                            .reversed())
+                    .limit(limit)
+                    .map(HotQuery::copy)
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    private static class HotQuery {
+        private final String query;
+        private long count;
+        private Object[] parameters;
+
+        HotQuery(final String query) {
+            this.query = query;
+        }
+
+        HotQuery copy() {
+            final HotQuery copy = new HotQuery(this.query);
+            copy.count = this.count;
+            copy.parameters = this.parameters;
+            return copy;
+        }
+
+        String getQuery() {
+            return this.query;
+        }
+
+        Object[] getParameters() {
+            return this.parameters;
+        }
+    }
+}
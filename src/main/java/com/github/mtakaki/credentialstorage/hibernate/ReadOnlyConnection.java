@@ -0,0 +1,54 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.hibernate.Session;
+
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A connection marked as read-only by a read-only {@link UnitOfWork}, and the
+ * flag it had before, which is restored before the connection goes back to
+ * the pool.
+ */
+@Slf4j
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+final class ReadOnlyConnection {
+    private final Connection connection;
+    private final boolean wasReadOnly;
+
+    /**
+     * Marks the connection of the session as read-only. No statement should
+     * have been executed yet, so the database starts a read-only
+     * transaction.
+     *
+     * @param session
+     *            The session of the unit of work.
+     * @return The marked connection.
+     */
+    static ReadOnlyConnection mark(final Session session) {
+        final ReadOnlyConnection[] marked = new ReadOnlyConnection[1];
+        session.doWork(connection -> {
+            marked[0] = new ReadOnlyConnection(connection, connection.isReadOnly());
+            connection.setReadOnly(true);
+        });
+        return marked[0];
+    }
+
+    /**
+     * Restores the read-only flag of the connection. If the connection was
+     * already released to the pool, the pool has restored it.
+     */
+    void reset() {
+        try {
+            if (!this.connection.isClosed()) {
+                this.connection.setReadOnly(this.wasReadOnly);
+            }
+        } catch (final SQLException e) {
+            log.warn("Failed to restore the read-only flag of the connection.", e);
+        }
+    }
+}
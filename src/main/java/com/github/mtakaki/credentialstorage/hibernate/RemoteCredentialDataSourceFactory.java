@@ -1,14 +1,21 @@
 package com.github.mtakaki.credentialstorage.hibernate;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.validation.Valid;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 
+import org.hibernate.validator.constraints.Length;
+
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import io.dropwizard.client.JerseyClientConfiguration;
 import io.dropwizard.db.DataSourceFactory;
+import io.dropwizard.util.Duration;
 import io.dropwizard.validation.ValidationMethod;
 
 import lombok.Getter;
@@ -17,6 +24,15 @@ import lombok.Setter;
 @Getter
 @Setter
 public class RemoteCredentialDataSourceFactory extends DataSourceFactory {
+    /**
+     * The partition used by the read-only units of work, if it's configured.
+     */
+    public static final String READ_PARTITION = "read";
+    /**
+     * The partition used by the read-write units of work, if it's configured.
+     */
+    public static final String WRITE_PARTITION = "write";
+
     @JsonProperty
     @Min(1)
     @Max(365)
@@ -34,6 +50,47 @@ public class RemoteCredentialDataSourceFactory extends DataSourceFactory {
     private String publicKeyFile;
     @JsonProperty
     private boolean retrieveCredentials = true;
+    @NotNull
+    @JsonProperty
+    private CredentialRotationMode rotationMode = CredentialRotationMode.REPLACE_POOL;
+    @JsonProperty
+    private Duration softEvictionDelay;
+    @Valid
+    @NotNull
+    @JsonProperty
+    private CredentialRetryConfiguration credentialRetry = new CredentialRetryConfiguration();
+    @Valid
+    @NotNull
+    @JsonProperty
+    private CallbackExecutorConfiguration callbacks = new CallbackExecutorConfiguration();
+    @Valid
+    @NotNull
+    @JsonProperty
+    private BulkheadConfiguration bulkhead = new BulkheadConfiguration();
+    @Valid
+    @JsonProperty
+    private MultiTenancyConfiguration multiTenancy;
+    @Valid
+    @JsonProperty
+    private SlowStatementConfiguration slowStatements;
+    @Valid
+    @JsonProperty
+    private WarmUpConfiguration warmUp;
+    @Valid
+    @JsonProperty
+    private LeakDetectionConfiguration leakDetection;
+    @NotNull
+    @JsonProperty
+    private Map<String, PoolSettings> partitions = new HashMap<>();
+    @JsonProperty
+    private boolean lazyInitialization = false;
+    @JsonProperty
+    private Duration idleShutdownTimeout;
+    @JsonProperty
+    private boolean serverTiming = false;
+    @Length(min = 32)
+    @JsonProperty
+    private String cursorSecret;
 
     @JsonIgnore
     @ValidationMethod(
@@ -41,4 +98,10 @@ public class RemoteCredentialDataSourceFactory extends DataSourceFactory {
     public boolean isRefreshFrequencySetWhenFeatureIsEnabled() {
         return this.retrieveCredentials ? this.refreshFrequency > 1 : true;
     }
-}
\ No newline at end of file
+
+    @JsonIgnore
+    @ValidationMethod(message = ".idleShutdownTimeout requires lazyInitialization to be enabled")
+    public boolean isIdleShutdownTimeoutSetOnlyWhenLazy() {
+        return this.idleShutdownTimeout == null || this.lazyInitialization;
+    }
+}
@@ -1,38 +1,57 @@
 package com.github.mtakaki.credentialstorage.hibernate;
 
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.security.InvalidKeyException;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import javax.sql.DataSource;
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
 
 import org.hibernate.SessionFactory;
 
 import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.hibernate4.Hibernate4Module;
 import com.github.mtakaki.credentialstorage.client.CredentialStorageServiceClient;
 import com.github.mtakaki.credentialstorage.client.model.Credential;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import io.dropwizard.Configuration;
 import io.dropwizard.ConfiguredBundle;
 import io.dropwizard.db.DatabaseConfiguration;
 import io.dropwizard.db.ManagedDataSource;
 import io.dropwizard.db.PooledDataSourceFactory;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.jersey.validation.Validators;
+import io.dropwizard.lifecycle.Managed;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
 import io.dropwizard.util.Duration;
+import io.dropwizard.validation.ConstraintViolations;
 
-import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 @Slf4j
@@ -40,22 +59,43 @@ public abstract class RemoteCredentialHibernateBundle<T extends Configuration>
         implements ConfiguredBundle<T>, DatabaseConfiguration<T> {
     public static final String DEFAULT_NAME = "hibernate";
 
+    // Shared by all the bundles, so they are initialized concurrently.
+    private static final ExecutorService STARTUP_EXECUTOR = Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("hibernate-bundle-startup-%d")
+                    .setDaemon(true).build());
+    private static final ObjectMapper OBJECT_MAPPER = Jackson.newObjectMapper();
+    private static final Validator VALIDATOR = Validators.newValidator();
+
     private final ImmutableList<Class<?>> entities;
     private final SessionFactoryFactory sessionFactoryFactory;
 
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
     private final AtomicReference<SessionFactory> sessionFactory = new AtomicReference<>();
 
     private Environment environment;
 
     private Credential credential;
     private CredentialStorageServiceClient client;
+    private CredentialRetryPolicy retryPolicy;
+    private ScheduledFuture<?> pendingRetry;
+    private UnitOfWorkCallbackExecutor callbackExecutor;
+    private TenantResolver tenantResolver;
+    private TenantDataSources tenants;
+    private SlowStatementLog slowStatementLog;
+    private QueryWarmUp queryWarmUp;
+    private ConnectionHoldDetector connectionHoldDetector;
+    private Bulkhead bulkhead;
+    private KeysetCursors keysetCursors;
 
-    @Getter
-    private SessionHolders sessionHolders;
+    private final Object initializationLock = new Object();
+    private volatile CompletableFuture<Void> initialization;
+    private volatile long lastAccess;
+    private volatile SessionHolders sessionHolders;
+    private final AtomicLong generation = new AtomicLong();
     private ManagedDataSource dataSource;
     private RemoteCredentialDataSourceFactory dataSourceFactory;
     private final ThreadLocal<SessionFactory> localSessionFactory = new ThreadLocal<>();
+    private final ThreadLocal<UnitOfWorkAspect> localUnitOfWork = new ThreadLocal<>();
+    private final ThreadLocal<DataSource> localPartition = new ThreadLocal<>();
 
     protected RemoteCredentialHibernateBundle(final Class<?> entity, final Class<?>... entities) {
         this.entities = ImmutableList.<Class<?>> builder().add(entity).add(entities).build();
@@ -68,37 +108,323 @@ public abstract class RemoteCredentialHibernateBundle<T extends Configuration>
      * @return The current {@link SessionFactory}.
      */
     public SessionFactory getSessionFactory() {
+        this.awaitInitialization();
         final SessionFactory sessionFactory = this.sessionFactory.get();
         this.localSessionFactory.set(sessionFactory);
         return sessionFactory;
     }
 
+    private void applyCredential() {
+        applyCredential(this.dataSourceFactory, this.credential);
+    }
+
+    static void applyCredential(final RemoteCredentialDataSourceFactory dataSourceFactory,
+            final Credential credential) {
+        dataSourceFactory.setUser(credential.getPrimary());
+        dataSourceFactory.setPassword(getPassword(credential));
+    }
+
+    static String getPassword(final Credential credential) {
+        return credential.getPrimary() != null && credential.getSecondary() == null ? ""
+                : credential.getSecondary();
+    }
+
+    /**
+     * @return The {@link SessionHolders} of the current connection.
+     */
+    public SessionHolders getSessionHolders() {
+        this.awaitInitialization();
+        return this.sessionHolders;
+    }
+
+    /**
+     * Adds the user to the {@link SessionHolders} of the current connection.
+     * It's done under the same lock as the idle shutdown, so a lazy bundle
+     * that was shut down after it was initialized for this user is
+     * initialized again, instead of the user joining the closed connection.
+     *
+     * @param user
+     *            The unit of work, or any other user of the connection.
+     * @return The {@link SessionHolders} the user was added to.
+     */
+    SessionHolders addSessionHolder(final Object user) {
+        while (true) {
+            final SessionHolders currentSessionHolders = this.getSessionHolders();
+            synchronized (this.initializationLock) {
+                // Only lazy bundles are initialized again.
+                if (currentSessionHolders == this.sessionHolders
+                        && !currentSessionHolders.isClosed()
+                        || !this.dataSourceFactory.isLazyInitialization()) {
+                    currentSessionHolders.add(user);
+                    return currentSessionHolders;
+                }
+            }
+        }
+    }
+
+    private void awaitInitialization() {
+        CompletableFuture<Void> initialization = this.initialization;
+        if (initialization == null) {
+            // Lazy bundles are only initialized when they are first used.
+            if (this.dataSourceFactory == null || !this.dataSourceFactory.isLazyInitialization()) {
+                return;
+            }
+            initialization = this.startInitialization();
+        }
+        try {
+            initialization.join();
+        } catch (final CompletionException e) {
+            if (this.dataSourceFactory.isLazyInitialization()) {
+                // The next unit of work tries again.
+                synchronized (this.initializationLock) {
+                    if (this.initialization == initialization) {
+                        this.initialization = null;
+                    }
+                }
+            }
+            throw new IllegalStateException(
+                    "The bundle '" + this.name() + "' failed to initialize.", e.getCause());
+        }
+        this.lastAccess = System.nanoTime();
+    }
+
+    private CompletableFuture<Void> startInitialization() {
+        synchronized (this.initializationLock) {
+            if (this.initialization == null) {
+                this.initialization = CompletableFuture.runAsync(this::initialize,
+                        STARTUP_EXECUTOR);
+            }
+            return this.initialization;
+        }
+    }
+
+    private boolean isInitialized() {
+        final CompletableFuture<Void> initialization = this.initialization;
+        return initialization != null && initialization.isDone()
+                && !initialization.isCompletedExceptionally();
+    }
+
+    /**
+     * @return The current {@link SessionFactory}, or {@code null} if the
+     *         bundle is lazy and was not initialized yet. It never triggers
+     *         the initialization.
+     */
+    private SessionFactory getInitializedSessionFactory() {
+        if (this.dataSourceFactory.isLazyInitialization() && !this.isInitialized()) {
+            return null;
+        }
+        return this.getSessionFactory();
+    }
+
+    /**
+     * Releases the session factory and the connections of a lazy bundle that
+     * was not used for longer than the idle shutdown timeout. It's initialized
+     * again by the next unit of work.
+     */
+    private synchronized void shutdownIfIdle() {
+        final Duration timeout = this.dataSourceFactory.getIdleShutdownTimeout();
+        synchronized (this.initializationLock) {
+            final SessionHolders currentSessionHolders = this.sessionHolders;
+            if (!this.isInitialized()
+                    || System.nanoTime() - this.lastAccess < timeout.toNanoseconds()
+                    || !currentSessionHolders.isEmpty()) {
+                return;
+            }
+            log.info("Bundle '{}' was idle for {}. Releasing its connections.", this.name(),
+                    timeout);
+            this.initialization = null;
+            currentSessionHolders.setCloseSession(true);
+            if (currentSessionHolders.isEmpty()) {
+                currentSessionHolders.closeConnections();
+            }
+        }
+    }
+
+    /**
+     * Closes the session factory and the connections of the bundle when the
+     * application stops, once the initialization in progress, if any, is
+     * done.
+     */
+    private void shutdown() {
+        final CompletableFuture<Void> initialization;
+        synchronized (this.initializationLock) {
+            initialization = this.initialization;
+            this.initialization = null;
+        }
+        if (initialization == null) {
+            return;
+        }
+        try {
+            initialization.join();
+        } catch (final CompletionException e) {
+            // A failed initialization closes what it created.
+            return;
+        }
+        this.sessionHolders.closeConnections();
+    }
+
+    private void initialize() {
+        final Stopwatch total = Stopwatch.createStarted();
+        final AtomicLong credentialTime = new AtomicLong();
+        final AtomicLong dataSourceTime = new AtomicLong();
+
+        // The credentials are retrieved and the pool is started while the
+        // session factory binds the entity metadata, if it doesn't need a
+        // connection to resolve the dialect.
+        final boolean overlapped = SessionFactoryFactory
+                .isBuiltWithoutConnection(this.dataSourceFactory.getProperties());
+        final CompletableFuture<ManagedDataSource> dataSource = CompletableFuture.supplyAsync(() -> {
+            if (this.dataSourceFactory.isRetrieveCredentials()) {
+                final Stopwatch stopwatch = Stopwatch.createStarted();
+                this.retrieveInitialCredential();
+                credentialTime.set(stopwatch.elapsed(TimeUnit.MILLISECONDS));
+            }
+            final Stopwatch stopwatch = Stopwatch.createStarted();
+            final ManagedDataSource startedDataSource = this.startDataSource(
+                    this.environment.metrics());
+            dataSourceTime.set(stopwatch.elapsed(TimeUnit.MILLISECONDS));
+            return startedDataSource;
+        }, STARTUP_EXECUTOR);
+
+        final Stopwatch sessionFactoryTime = Stopwatch.createStarted();
+        this.createSessionFactory(dataSource);
+
+        log.info(
+                "Bundle '{}' initialized in {} ms (credentials: {} ms, data source: {} ms, session factory: {} ms, {}).",
+                this.name(), total.elapsed(TimeUnit.MILLISECONDS), credentialTime.get(),
+                dataSourceTime.get(), sessionFactoryTime.elapsed(TimeUnit.MILLISECONDS),
+                overlapped ? "built while the data source started"
+                        : "including the wait for the data source");
+    }
+
+    private void retrieveInitialCredential() {
+        final Object event = FlightRecorderEvents.beginRotation();
+        try {
+            this.credential = this.client.getCredential();
+        } catch (final Exception e) {
+            throw new RuntimeException("Failed to initialize credential storage client.", e);
+        } finally {
+            this.commitRotationEvent(event, "retrieve");
+        }
+        this.retryPolicy.recordSuccess();
+        this.retryPolicy.recordCredentialUpdated();
+    }
+
     private void createDataSourceAndSessionFactory(final MetricRegistry metricRegistry) {
+        this.createSessionFactory(
+                CompletableFuture.completedFuture(this.startDataSource(metricRegistry)));
+    }
+
+    private ManagedDataSource startDataSource(final MetricRegistry metricRegistry) {
         // The credential retrieval needs to be enabled to override the
         // settings.
         if (this.dataSourceFactory.isRetrieveCredentials()) {
-            this.dataSourceFactory.setUser(this.credential.getPrimary());
-            this.dataSourceFactory.setPassword(
-                    this.dataSourceFactory.getUser() != null
-                            && this.credential.getSecondary() == null
-                                    ? ""
-                                    : this.credential.getSecondary());
+            this.applyCredential();
         }
         // Unregister metrics to we can wire the new data source into it.
         this.unregisterCurrentMetrics(metricRegistry);
 
-        this.dataSource = this.dataSourceFactory.build(metricRegistry,
+        final ManagedDataSource dataSource = this.dataSourceFactory.build(metricRegistry,
                 this.name());
         try {
-            this.dataSource.start();
+            dataSource.start();
         } catch (final Exception e) {
+            this.stopQuietly(dataSource);
             throw new RuntimeException("Failed to initialize the data source.", e);
         }
-        final SessionFactory sessionFactory = this.sessionFactoryFactory.build(this,
-                this.environment, this.dataSourceFactory, this.dataSource, this.entities);
+        return dataSource;
+    }
+
+    private void createSessionFactory(final CompletableFuture<ManagedDataSource> dataSource) {
+        final SessionFactory sessionFactory;
+        try {
+            sessionFactory = this.sessionFactoryFactory.build(this, this.dataSourceFactory,
+                    dataSource, this.tenants, this.entities);
+        } catch (final RuntimeException e) {
+            // The current connection is kept if the new one couldn't be
+            // created.
+            dataSource.thenAccept(this::stopQuietly);
+            throw e;
+        }
+        final ManagedDataSource startedDataSource = dataSource.join();
+        final Map<String, ManagedDataSource> partitions;
+        try {
+            // The credentials were applied when the data source was started.
+            partitions = this.startPartitions(this.environment.metrics());
+        } catch (final RuntimeException e) {
+            sessionFactory.close();
+            this.stopQuietly(startedDataSource);
+            throw e;
+        }
+        if (this.queryWarmUp != null) {
+            // The units of work only use it once it's warmed up.
+            try {
+                this.queryWarmUp.warmUp(sessionFactory, startedDataSource, partitions.values(),
+                        this.getDefaultTenant());
+            } catch (final RuntimeException e) {
+                log.warn("Failed to warm up the session factory.", e);
+            }
+        }
+        this.dataSource = startedDataSource;
         this.sessionFactory.set(sessionFactory);
 
-        this.sessionHolders = new SessionHolders(sessionFactory, this.dataSource);
+        final LeakDetectionConfiguration leakDetection = this.dataSourceFactory
+                .getLeakDetection();
+        final SessionHolders sessionHolders = new SessionHolders(this.name(), sessionFactory,
+                startedDataSource, partitions, this.generation.incrementAndGet(),
+                leakDetection == null ? 0 : leakDetection.getStackSamplingRate());
+        if (this.connectionHoldDetector != null) {
+            this.connectionHoldDetector.track(sessionHolders);
+        }
+        this.sessionHolders = sessionHolders;
+    }
+
+    /**
+     * Starts the pools of the partitions, with the settings of the bundle
+     * overridden by the ones of each partition, and the current credentials.
+     */
+    private Map<String, ManagedDataSource> startPartitions(final MetricRegistry metricRegistry) {
+        final Map<String, PoolSettings> settings = this.dataSourceFactory.getPartitions();
+        if (settings.isEmpty()) {
+            return ImmutableMap.of();
+        }
+        final Map<String, ManagedDataSource> partitions = new HashMap<>();
+        try {
+            for (final Map.Entry<String, PoolSettings> partition : settings.entrySet()) {
+                final RemoteCredentialDataSourceFactory partitionFactory = OBJECT_MAPPER
+                        .convertValue(this.dataSourceFactory,
+                                RemoteCredentialDataSourceFactory.class);
+                applyPoolSettings(partitionFactory, partition.getValue());
+                final Set<ConstraintViolation<RemoteCredentialDataSourceFactory>> violations =
+                        VALIDATOR.validate(partitionFactory);
+                if (!violations.isEmpty()) {
+                    throw new IllegalArgumentException("Invalid settings of the partition '"
+                            + partition.getKey() + "': "
+                            + ConstraintViolations.format(violations));
+                }
+                final String poolName = MetricRegistry.name(this.name(), "partitions",
+                        partition.getKey());
+                metricRegistry.removeMatching(
+                        (metricName, metric) -> metricName.startsWith(poolName + "."));
+                final ManagedDataSource partitionDataSource = partitionFactory
+                        .build(metricRegistry, poolName);
+                partitions.put(partition.getKey(), partitionDataSource);
+                partitionDataSource.start();
+            }
+        } catch (final Exception e) {
+            partitions.values().forEach(this::stopQuietly);
+            throw new RuntimeException("Failed to initialize the data sources of the partitions.",
+                    e);
+        }
+        return partitions;
+    }
+
+    private void stopQuietly(final ManagedDataSource dataSource) {
+        try {
+            dataSource.stop();
+        } catch (final Exception e) {
+            log.warn("Failed to stop the data source.", e);
+        }
     }
 
     private void unregisterCurrentMetrics(final MetricRegistry metricRegistry) {
@@ -116,38 +442,439 @@ public abstract class RemoteCredentialHibernateBundle<T extends Configuration>
         this.localSessionFactory.set(sessionFactory);
     }
 
+    /**
+     * @return The pool of the partition selected by the unit of work running
+     *         in the current thread, or {@code null} if it uses the pool of
+     *         the bundle.
+     */
+    DataSource getCurrentPartition() {
+        return this.localPartition.get();
+    }
+
+    void setCurrentPartition(final DataSource partition) {
+        if (partition == null) {
+            this.localPartition.remove();
+        } else {
+            this.localPartition.set(partition);
+        }
+    }
+
+    /**
+     * @return The {@link UnitOfWorkAspect} running in the current thread for
+     *         this bundle, or {@code null} if there is none.
+     */
+    UnitOfWorkAspect getCurrentUnitOfWork() {
+        return this.localUnitOfWork.get();
+    }
+
+    void setCurrentUnitOfWork(final UnitOfWorkAspect unitOfWork) {
+        if (unitOfWork == null) {
+            this.localUnitOfWork.remove();
+        } else {
+            this.localUnitOfWork.set(unitOfWork);
+        }
+    }
+
+    /**
+     * Registers a callback that runs, off the request thread, after the
+     * transaction of the current unit of work is committed.
+     *
+     * @param callback
+     *            The callback, such as a cache invalidation or a notification.
+     * @throws IllegalStateException
+     *             Thrown if there's no unit of work running for this bundle.
+     */
+    public void afterCommit(final Runnable callback) {
+        this.requireCurrentUnitOfWork().afterCommit(callback);
+    }
+
+    /**
+     * Registers a callback that runs, off the request thread, after the
+     * transaction of the current unit of work is rolled back.
+     *
+     * @param callback
+     *            The callback to be executed.
+     * @throws IllegalStateException
+     *             Thrown if there's no unit of work running for this bundle.
+     */
+    public void afterRollback(final Runnable callback) {
+        this.requireCurrentUnitOfWork().afterRollback(callback);
+    }
+
+    private UnitOfWorkAspect requireCurrentUnitOfWork() {
+        final UnitOfWorkAspect unitOfWork = this.getCurrentUnitOfWork();
+        Preconditions.checkState(unitOfWork != null,
+                "There is no unit of work running for the bundle '%s'.", this.name());
+        return unitOfWork;
+    }
+
+    /**
+     * @return The tenant of the unit of work being started, or {@code null} if
+     *         the bundle is not multi-tenant.
+     */
+    String resolveTenantIdentifier() {
+        if (this.tenants == null) {
+            return null;
+        }
+        final String tenant = this.tenantResolver.resolveTenantIdentifier();
+        return tenant == null ? this.tenants.getDefaultTenant() : tenant;
+    }
+
+    /**
+     * @return The tenant of the sessions opened outside of the units of work,
+     *         or {@code null} if the bundle is not multi-tenant.
+     */
+    String getDefaultTenant() {
+        return this.tenants == null ? null : this.tenants.getDefaultTenant();
+    }
+
+    /**
+     * @return The recorder of the statements executed by the connections, or
+     *         {@code null} if they are not recorded.
+     */
+    StatementRecorder getStatementRecorder() {
+        return StatementRecorder.of(StatementRecorder.of(this.slowStatementLog, this.queryWarmUp),
+                this.isServerTiming() ? ServerTiming.RECORDER : null);
+    }
+
+    /**
+     * @return {@code true} if the database time of the requests is sent in
+     *         the {@code Server-Timing} header.
+     */
+    boolean isServerTiming() {
+        return this.dataSourceFactory != null && this.dataSourceFactory.isServerTiming();
+    }
+
+    /**
+     * @return The signer of the keyset pagination cursors, or {@code null} if
+     *         the bundle is not running.
+     */
+    KeysetCursors getKeysetCursors() {
+        return this.keysetCursors;
+    }
+
+    /**
+     * @return The warm-up of the new session factories, or {@code null} if
+     *         it's disabled.
+     */
+    QueryWarmUp getQueryWarmUp() {
+        return this.queryWarmUp;
+    }
+
+    /**
+     * @return The admission of the units of work, or {@code null} if the
+     *         bundle is not running.
+     */
+    Bulkhead getBulkhead() {
+        return this.bulkhead;
+    }
+
+    /**
+     * @return The executor of the unit of work callbacks, or {@code null} if
+     *         the bundle is not running.
+     */
+    UnitOfWorkCallbackExecutor getCallbackExecutor() {
+        return this.callbackExecutor;
+    }
+
     private void scheduleCredentialRetrieval(
             final RemoteCredentialDataSourceFactory dataSourceFactory) {
-        this.scheduler.scheduleAtFixedRate(() -> {
+        // The credentials were just retrieved, so the first execution only
+        // happens after a full period.
+        final CredentialRefreshService.Registration registration = this
+                .getCredentialRefreshService().register(this.name(), this::retrieveCredentials,
+                        dataSourceFactory.getRefreshFrequency(), TimeUnit.DAYS);
+        this.environment.lifecycle().manage(registration);
+    }
+
+    private void retrieveCredentials() {
+        // Lazy bundles retrieve the credentials when they are initialized.
+        if (this.dataSourceFactory.isLazyInitialization() && !this.isInitialized()) {
+            log.debug("Bundle '{}' is not initialized. Skipping credential retrieval.",
+                    this.name());
+            return;
+        }
+        // A retry is already scheduled for when the circuit is closed.
+        if (this.retryPolicy.isCircuitOpen()) {
+            log.warn("The credential service circuit is open. Skipping credential retrieval.");
+            return;
+        }
+        try {
+            log.info("Retrieving credentials.");
+            // A failure schedules a retry.
+            this.refreshCredentials(false, false);
+        } catch (final Exception e) {
+            log.error("Failed to retrieve credentials. The credentials will not be updated.",
+                    e);
+        }
+        if (this.tenants != null) {
+            this.tenants.refreshCredentials();
+        }
+    }
+
+    private synchronized void scheduleRetry() {
+        if (this.pendingRetry != null) {
+            return;
+        }
+        final long delay = this.retryPolicy.getRetryDelay();
+        log.info("Retrying credential retrieval in {} ms.", delay);
+        this.pendingRetry = this.getCredentialRefreshService().schedule(() -> {
+            synchronized (this) {
+                this.pendingRetry = null;
+            }
+            this.retrieveCredentials();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Retrieves the credentials from the credential service and, if they were
+     * updated, creates a new data source and session factory. The old
+     * connection is closed once the last unit of work using it is done. If it
+     * fails, the previous credentials are kept and a retry is scheduled, the
+     * same way for the scheduled retrievals and the admin task.
+     *
+     * @param dryRun
+     *            If {@code true} the credentials are only compared and nothing
+     *            is changed.
+     * @param forceRecycle
+     *            If {@code true} the connection is recycled even when the
+     *            credentials have not changed.
+     * @return {@code true} if the retrieved credentials are different from the
+     *         current ones.
+     * @throws Exception
+     *             Thrown if the credentials could not be retrieved or the new
+     *             connection could not be created.
+     */
+    synchronized boolean refreshCredentials(final boolean dryRun, final boolean forceRecycle)
+            throws Exception {
+        try {
+            return this.doRefreshCredentials(dryRun, forceRecycle);
+        } catch (final Exception e) {
+            this.scheduleRetry();
+            throw e;
+        }
+    }
+
+    private boolean doRefreshCredentials(final boolean dryRun, final boolean forceRecycle)
+            throws Exception {
+        this.awaitInitialization();
+        final Credential newCredential;
+        final Object retrieveEvent = FlightRecorderEvents.beginRotation();
+        try {
+            newCredential = this.client.getCredential();
+        } catch (final Exception e) {
+            this.retryPolicy.recordFailure();
+            throw e;
+        } finally {
+            this.commitRotationEvent(retrieveEvent, "retrieve");
+        }
+        this.retryPolicy.recordSuccess();
+        final boolean updated = !newCredential.equals(this.credential);
+        if (dryRun) {
+            return updated;
+        }
+        // We only create a new connection if the credentials were updated,
+        // unless we were asked to recycle it anyway.
+        if (updated || forceRecycle) {
+            log.info(updated ? "Credentials updated. Creating new connection."
+                    : "Recycling connection with the current credentials.");
+            final Credential previousCredential = this.credential;
+            this.credential = newCredential;
+            final Object rotateEvent = FlightRecorderEvents.beginRotation();
             try {
-                log.info("Retrieving credentials.");
-                final Credential newCredential = this.client.getCredential();
-                // We only create a new connection if the credentials were
-                // updated.
-                if (!newCredential.equals(this.credential)) {
-                    log.info("Credentials updated. Creating new connection.");
-                    this.credential = newCredential;
-
-                    final SessionHolders oldSessionHolders = this.sessionHolders;
-                    this.sessionHolders.setCloseSession(true);
-
-                    // TODO Need to figure out a way of registering the new
-                    // datasource metrics.
-                    // this.dataSource.setMetricRegistry(null);
-                    this.createDataSourceAndSessionFactory(this.environment.metrics());
-
-                    // If there's no active connection at the moment we can
-                    // close the old connection right now. New requests will
-                    // already use the new session factory.
-                    if (oldSessionHolders.isEmpty()) {
-                        oldSessionHolders.closeConnections();
-                    }
-                }
+                this.rotate(forceRecycle);
             } catch (final Exception e) {
-                log.error("Failed to retrieve credentials. The credentials will not be updated.",
-                        e);
+                // Keeps the previous credentials so the next retrieval tries
+                // again, including the ones applied to the factory, which the
+                // pools and the following rotations use.
+                this.credential = previousCredential;
+                if (previousCredential != null) {
+                    this.applyCredential();
+                }
+                throw e;
+            } finally {
+                this.commitRotationEvent(rotateEvent, "rotate");
             }
-        }, 0L, dataSourceFactory.getRefreshFrequency(), TimeUnit.DAYS);
+            this.retryPolicy.recordCredentialUpdated();
+        }
+        return updated;
+    }
+
+    private void rotate(final boolean forceRecycle) {
+        if (this.dataSourceFactory.getRotationMode() == CredentialRotationMode.SOFT) {
+            if (HikariPools.isHikari(this.dataSource)) {
+                this.rotateCredentialsInPlace(forceRecycle);
+                return;
+            }
+            log.warn("Soft rotation requires a HikariCP data source. Replacing the pool.");
+        }
+        this.rotateDataSource();
+    }
+
+    private void rotateCredentialsInPlace(final boolean forceRecycle) {
+        final Object event = FlightRecorderEvents.beginRotation();
+        try {
+            this.swapCredentials(forceRecycle);
+        } finally {
+            this.commitRotationEvent(event, "swapCredentials");
+        }
+    }
+
+    private void swapCredentials(final boolean forceRecycle) {
+        final String previousUser = this.dataSourceFactory.getUser();
+        final String previousPassword = this.dataSourceFactory.getPassword();
+        this.applyCredential();
+        // The partitions share the credentials of the bundle.
+        final List<ManagedDataSource> pools = new ArrayList<>();
+        pools.add(this.dataSource);
+        for (final ManagedDataSource partition : this.sessionHolders.getPartitions().values()) {
+            if (HikariPools.isHikari(partition)) {
+                pools.add(partition);
+            }
+        }
+        final List<ManagedDataSource> swapped = new ArrayList<>();
+        try {
+            for (final ManagedDataSource pool : pools) {
+                HikariPools.swapCredentials(pool, this.dataSourceFactory.getUser(),
+                        this.dataSourceFactory.getPassword());
+                swapped.add(pool);
+            }
+        } catch (final RuntimeException e) {
+            // All the pools keep using the same credentials.
+            for (final ManagedDataSource pool : swapped) {
+                HikariPools.swapCredentials(pool, previousUser, previousPassword);
+            }
+            throw e;
+        }
+
+        // The old connections are retired by the pool max lifetime, unless we
+        // were asked to evict them.
+        final Duration softEvictionDelay = this.dataSourceFactory.getSoftEvictionDelay();
+        if (forceRecycle) {
+            pools.forEach(HikariPools::softEvictConnections);
+        } else if (softEvictionDelay != null) {
+            this.getCredentialRefreshService().schedule(
+                    () -> pools.forEach(HikariPools::softEvictConnections),
+                    softEvictionDelay.toMilliseconds(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void rotateDataSource() {
+        final SessionHolders oldSessionHolders = this.sessionHolders;
+
+        // TODO Need to figure out a way of registering the new
+        // datasource metrics.
+        // this.dataSource.setMetricRegistry(null);
+        final Object event = FlightRecorderEvents.beginRotation();
+        try {
+            this.createDataSourceAndSessionFactory(this.environment.metrics());
+        } finally {
+            this.commitRotationEvent(event, "replacePool");
+        }
+        oldSessionHolders.setCloseSession(true);
+
+        // If there's no active connection at the moment we can
+        // close the old connection right now. New requests will
+        // already use the new session factory.
+        if (oldSessionHolders.isEmpty()) {
+            oldSessionHolders.closeConnections();
+        }
+    }
+
+    private void commitRotationEvent(final Object event, final String phase) {
+        if (event != null) {
+            FlightRecorderEvents.commit(event, this.name(), this.generation.get(), null, phase);
+        }
+    }
+
+    /**
+     * Applies new pool sizing and timeouts to the live HikariCP pool, without
+     * recreating it. The settings are validated with the same constraints as
+     * the configuration and are kept by the following rotations. The pools
+     * of the tenants only use them once they are recreated, and the pools of
+     * the partitions keep their own settings.
+     *
+     * @param settings
+     *            The new settings. The ones that are {@code null} are
+     *            unchanged.
+     * @return The settings that changed, such as {@code maxSize: 100 -> 50}.
+     * @throws IllegalArgumentException
+     *             Thrown if the new settings are invalid.
+     * @throws IllegalStateException
+     *             Thrown if the pool is not a HikariCP pool.
+     */
+    public synchronized List<String> reconfigurePool(final PoolSettings settings) {
+        // A lazy bundle that is not running only keeps the settings for when
+        // it's initialized.
+        final boolean running = !this.dataSourceFactory.isLazyInitialization()
+                || this.isInitialized();
+        if (running) {
+            this.awaitInitialization();
+            Preconditions.checkState(HikariPools.isHikari(this.dataSource),
+                    "The pool of the bundle '%s' can only be reconfigured if it's HikariCP.",
+                    this.name());
+        }
+
+        final RemoteCredentialDataSourceFactory candidate = OBJECT_MAPPER
+                .convertValue(this.dataSourceFactory, RemoteCredentialDataSourceFactory.class);
+        applyPoolSettings(candidate, settings);
+        final Set<ConstraintViolation<RemoteCredentialDataSourceFactory>> violations = VALIDATOR
+                .validate(candidate);
+        if (!violations.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "Invalid pool settings: " + ConstraintViolations.format(violations));
+        }
+
+        final List<String> changes = new ArrayList<>();
+        addChange(changes, "minSize", this.dataSourceFactory.getMinSize(),
+                candidate.getMinSize());
+        addChange(changes, "maxSize", this.dataSourceFactory.getMaxSize(),
+                candidate.getMaxSize());
+        addChange(changes, "maxWaitForConnection",
+                this.dataSourceFactory.getMaxWaitForConnection(),
+                candidate.getMaxWaitForConnection());
+        addChange(changes, "validationQueryTimeout",
+                this.dataSourceFactory.getValidationQueryTimeout().orNull(),
+                candidate.getValidationQueryTimeout().orNull());
+        if (changes.isEmpty()) {
+            return changes;
+        }
+
+        applyPoolSettings(this.dataSourceFactory, settings);
+        if (running) {
+            final Optional<Duration> validationQueryTimeout = this.dataSourceFactory
+                    .getValidationQueryTimeout();
+            HikariPools.reconfigure(this.dataSource, this.dataSourceFactory.getMinSize(),
+                    this.dataSourceFactory.getMaxSize(),
+                    this.dataSourceFactory.getMaxWaitForConnection().toMilliseconds(),
+                    validationQueryTimeout.isPresent()
+                            ? validationQueryTimeout.get().toMilliseconds() : null);
+        }
+        log.info("Pool of bundle '{}' reconfigured: {}", this.name(), changes);
+        return changes;
+    }
+
+    private static void applyPoolSettings(final RemoteCredentialDataSourceFactory dataSourceFactory,
+            final PoolSettings settings) {
+        if (settings.getMinSize() != null) {
+            dataSourceFactory.setMinSize(settings.getMinSize());
+        }
+        if (settings.getMaxSize() != null) {
+            dataSourceFactory.setMaxSize(settings.getMaxSize());
+        }
+        if (settings.getMaxWaitForConnection() != null) {
+            dataSourceFactory.setMaxWaitForConnection(settings.getMaxWaitForConnection());
+        }
+        if (settings.getValidationQueryTimeout() != null) {
+            dataSourceFactory.setValidationQueryTimeout(settings.getValidationQueryTimeout());
+        }
+    }
+
+    private static void addChange(final List<String> changes, final String setting,
+            final Object current, final Object updated) {
+        if (!Objects.equal(current, updated)) {
+            changes.add(setting + ": " + current + " -> " + updated);
+        }
     }
 
     @Override
@@ -164,6 +891,48 @@ public abstract class RemoteCredentialHibernateBundle<T extends Configuration>
         return new Hibernate4Module();
     }
 
+    /**
+     * Creates a {@link WriteBehindBuffer} that writes to this bundle. It's
+     * managed by the application lifecycle, so the remaining entities are
+     * written when the application stops.
+     *
+     * @param name
+     *            The name of the buffer, used for its metrics and thread.
+     * @param configuration
+     *            The buffer configuration.
+     * @return The created {@link WriteBehindBuffer}.
+     */
+    public WriteBehindBuffer createWriteBehindBuffer(final String name,
+            final WriteBehindConfiguration configuration) {
+        Preconditions.checkState(this.environment != null,
+                "The bundle '%s' is not running yet.", this.name());
+        final WriteBehindBuffer buffer = new WriteBehindBuffer(this, name, configuration,
+                this.environment.metrics());
+        this.environment.lifecycle().manage(buffer);
+        return buffer;
+    }
+
+    /**
+     * Override to resolve the tenant of the units of work. It's required when
+     * {@code multiTenancy} is configured.
+     *
+     * @return The {@link TenantResolver} of this bundle.
+     */
+    protected TenantResolver getTenantResolver() {
+        return null;
+    }
+
+    /**
+     * Override to use a different {@link CredentialRefreshService}. By default
+     * all the bundles in the JVM share the same one.
+     *
+     * @return The {@link CredentialRefreshService} used to schedule the
+     *         credential retrieval.
+     */
+    protected CredentialRefreshService getCredentialRefreshService() {
+        return CredentialRefreshService.getInstance();
+    }
+
     /**
      * Override to configure the name of the bundle (It's used for the bundle
      * health check and database pool metrics)
@@ -179,58 +948,145 @@ public abstract class RemoteCredentialHibernateBundle<T extends Configuration>
         this.environment = environment;
 
         final PooledDataSourceFactory dbConfig = this.getDataSourceFactory(configuration);
-        this.registerUnitOfWorkListerIfAbsent(environment).registerBundle(this.name(), this);
+        this.dataSourceFactory = (RemoteCredentialDataSourceFactory) dbConfig;
+        final MultiTenancyConfiguration multiTenancy = this.dataSourceFactory.getMultiTenancy();
+        final UnitOfWorkApplicationListener listener = this
+                .registerUnitOfWorkListerIfAbsent(environment);
+        listener.registerBundle(this.name(), this);
+        if (this.dataSourceFactory.isServerTiming()) {
+            listener.enableServerTiming();
+        }
+        // Multi-tenant bundles validate the database of the default tenant.
         environment.healthChecks().register(this.name(),
                 new SessionFactoryHealthCheck(
                         environment.getHealthCheckExecutorService(),
                         dbConfig.getValidationQueryTimeout().or(Duration.seconds(5)),
-                        this.sessionFactory.get(),
-                        dbConfig.getValidationQuery()));
+                        this::getInitializedSessionFactory,
+                        dbConfig.getValidationQuery(),
+                        multiTenancy == null ? null : multiTenancy.getDefaultTenant()));
 
-        this.dataSourceFactory = (RemoteCredentialDataSourceFactory) this
-                .getDataSourceFactory(configuration);
+        final CallbackExecutorConfiguration callbacks = this.dataSourceFactory.getCallbacks();
+        final BlockingQueue<Runnable> callbackQueue = new ArrayBlockingQueue<>(
+                callbacks.getQueueSize());
+        this.callbackExecutor = new UnitOfWorkCallbackExecutor(
+                environment.lifecycle().executorService(this.name() + "-callbacks-%d")
+                        .minThreads(callbacks.getThreads())
+                        .maxThreads(callbacks.getThreads())
+                        .workQueue(callbackQueue)
+                        .build(),
+                callbackQueue, environment.metrics(), this.name());
+        this.bulkhead = new Bulkhead(this.dataSourceFactory.getBulkhead(), environment.metrics(),
+                this.name());
+        final String cursorSecret = this.dataSourceFactory.getCursorSecret();
+        if (cursorSecret == null) {
+            log.warn("Bundle '{}' has no cursorSecret. Its keyset cursors are only accepted by "
+                    + "this instance, until it restarts.", this.name());
+            this.keysetCursors = KeysetCursors.random();
+        } else {
+            this.keysetCursors = new KeysetCursors(cursorSecret.getBytes(StandardCharsets.UTF_8));
+        }
+        final SlowStatementConfiguration slowStatements = this.dataSourceFactory
+                .getSlowStatements();
+        if (slowStatements != null) {
+            // Plans that can't be queued are skipped.
+            this.slowStatementLog = new SlowStatementLog(slowStatements,
+                    environment.lifecycle().executorService(this.name() + "-explain-%d")
+                            .minThreads(1)
+                            .maxThreads(1)
+                            .workQueue(new ArrayBlockingQueue<>(16))
+                            .build(),
+                    environment.metrics(), this.name());
+            environment.admin()
+                    .addServlet(this.name() + "-slow-statements",
+                            new AdminJsonServlet(this.slowStatementLog::getStatements))
+                    .addMapping("/slow-statements/" + this.name());
+        }
+        final WarmUpConfiguration warmUp = this.dataSourceFactory.getWarmUp();
+        if (warmUp != null) {
+            this.queryWarmUp = new QueryWarmUp(warmUp, environment.metrics(), this.name());
+        }
+        final LeakDetectionConfiguration leakDetection = this.dataSourceFactory
+                .getLeakDetection();
+        if (leakDetection != null) {
+            this.connectionHoldDetector = new ConnectionHoldDetector(leakDetection,
+                    environment.metrics(), this.name());
+            environment.lifecycle().manage(this.getCredentialRefreshService()
+                    .registerMaintenance(
+                    this.name() + "-leak-detection", this.connectionHoldDetector::sweep,
+                    leakDetection.getSweepInterval().toMilliseconds(), TimeUnit.MILLISECONDS));
+            environment.admin()
+                    .addServlet(this.name() + "-connection-holds",
+                            new AdminJsonServlet(this.connectionHoldDetector::getOldestHolds))
+                    .addMapping("/connection-holds/" + this.name());
+        }
         // If the feature is disabled we don't need to create the client and
         // retrieve the credentials.
         if (this.dataSourceFactory.isRetrieveCredentials()) {
+            this.retryPolicy = new CredentialRetryPolicy(this.dataSourceFactory.getCredentialRetry());
+            this.retryPolicy.registerMetrics(environment.metrics(), this.name());
             try {
-                this.client = this.createCredentialClient();
-                this.credential = this.client.getCredential();
-            } catch (NoSuchAlgorithmException | InvalidKeySpecException | IOException
-                    | InvalidKeyException | NoSuchPaddingException | IllegalBlockSizeException
-                    | BadPaddingException e) {
+                this.client = this.getCredentialRefreshService()
+                        .getClient(this.dataSourceFactory);
+            } catch (NoSuchAlgorithmException | InvalidKeySpecException | IOException e) {
                 throw new RuntimeException("Failed to initialize credential storage client.", e);
             }
         }
-        this.createDataSourceAndSessionFactory(this.environment.metrics());
+        if (multiTenancy != null) {
+            this.tenantResolver = this.getTenantResolver();
+            Preconditions.checkState(this.tenantResolver != null,
+                    "The bundle '%s' is multi-tenant, but it has no TenantResolver.",
+                    this.name());
+            this.tenants = new TenantDataSources(this.name(), this.dataSourceFactory,
+                    environment.metrics(), this.getCredentialRefreshService());
+            environment.lifecycle().manage(this.tenants);
+            environment.lifecycle().manage(this.getCredentialRefreshService()
+                    .registerMaintenance(
+                    this.name() + "-tenant-eviction", this.tenants::evictIdle,
+                    Math.max(multiTenancy.getIdleTimeout().toMilliseconds() / 2, 1000L),
+                    TimeUnit.MILLISECONDS));
+        }
+        // The bundle is initialized in the background, so all the bundles of
+        // the application start at the same time. Anything that needs the
+        // session factory waits for it, and the application doesn't start if
+        // it fails. Lazy bundles are only initialized by the first unit of
+        // work.
+        final boolean lazy = this.dataSourceFactory.isLazyInitialization();
+        if (!lazy) {
+            this.startInitialization();
+        }
+        // The session factories are created in the background and replaced
+        // by the rotations, so they are not managed one by one: the current
+        // one is closed when the application stops.
+        environment.lifecycle().manage(new Managed() {
+            @Override
+            public void start() throws Exception {
+                if (!lazy) {
+                    RemoteCredentialHibernateBundle.this.awaitInitialization();
+                }
+            }
+
+            @Override
+            public void stop() throws Exception {
+                RemoteCredentialHibernateBundle.this.shutdown();
+            }
+        });
+        final Duration idleShutdownTimeout = this.dataSourceFactory.getIdleShutdownTimeout();
+        if (lazy && idleShutdownTimeout != null) {
+            environment.lifecycle().manage(this.getCredentialRefreshService()
+                    .registerMaintenance(
+                    this.name() + "-idle-shutdown", this::shutdownIfIdle,
+                    Math.max(idleShutdownTimeout.toMilliseconds() / 2, 1000L),
+                    TimeUnit.MILLISECONDS));
+        }
         // The scheduled credential retrieval is useless if the feature is
         // disabled.
         if (this.dataSourceFactory.isRetrieveCredentials()) {
             this.scheduleCredentialRetrieval(this.dataSourceFactory);
+            environment.admin().addTask(
+                    new CredentialRotationTask("rotate-credentials-" + this.name(), this));
         }
-    }
-
-    /**
-     * Creates the {@link CredentialStorageServiceClient} with the configuration
-     * stored under {@link RemoteCredentialDataSourceFactory}.
-     *
-     * @return A {@link CredentialStorageServiceClient}.
-     * @throws NoSuchAlgorithmException
-     *             Thrown if the encryption/decryption algorithm is not
-     *             available.
-     * @throws InvalidKeySpecException
-     *             If the private/public key are invalid.
-     * @throws FileNotFoundException
-     *             Thrown if the private/public key files were not available.
-     * @throws IOException
-     *             Thrown if the private/public key files could not be opened.
-     */
-    private CredentialStorageServiceClient createCredentialClient() throws NoSuchAlgorithmException,
-            InvalidKeySpecException, FileNotFoundException, IOException {
-        return new CredentialStorageServiceClient(
-                new File(this.dataSourceFactory.getPrivateKeyFile()),
-                new File(this.dataSourceFactory.getPublicKeyFile()),
-                this.dataSourceFactory.getCredentialServiceURL(),
-                this.dataSourceFactory.getCredentialClientConfiguration());
+        environment.admin().addTask(
+                new PoolReconfigurationTask("reconfigure-pool-" + this.name(), this));
     }
 
     private UnitOfWorkApplicationListener registerUnitOfWorkListerIfAbsent(
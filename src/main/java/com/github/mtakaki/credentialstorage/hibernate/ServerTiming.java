@@ -0,0 +1,113 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.util.Locale;
+
+import javax.sql.DataSource;
+
+/**
+ * The database time of one request, which is sent in the
+ * {@code Server-Timing} header of the response by the
+ * {@link UnitOfWorkApplicationListener}. It's kept by the thread serving the
+ * request, so only the work done by that thread is counted:
+ * <ul>
+ * <li>{@code db-wait}: the time waiting for connections from the pool.</li>
+ * <li>{@code db-exec}: the number of statements and their execution
+ * time.</li>
+ * <li>{@code db-flush} and {@code db-commit}: the time flushing the session
+ * and committing the transaction of the unit of work.</li>
+ * </ul>
+ * <p>
+ * The statements and connections are only counted by the bundles with
+ * {@code serverTiming} enabled, see {@link #RECORDER}.
+ * </p>
+ */
+final class ServerTiming {
+    static final String HEADER = "Server-Timing";
+
+    private static final ThreadLocal<ServerTiming> CURRENT = new ThreadLocal<>();
+
+    /**
+     * Records the statements and connections of the current request.
+     */
+    static final StatementRecorder RECORDER = new StatementRecorder() {
+        @Override
+        public void record(final DataSource dataSource, final String sql,
+                final Object[] parameters, final long nanos) {
+            final ServerTiming timing = CURRENT.get();
+            if (timing != null) {
+                timing.statements++;
+                timing.statementNanos += nanos;
+            }
+        }
+
+        @Override
+        public void recordConnectionWait(final DataSource dataSource, final long nanos) {
+            final ServerTiming timing = CURRENT.get();
+            if (timing != null) {
+                timing.connections++;
+                timing.connectionWaitNanos += nanos;
+            }
+        }
+    };
+
+    private int connections;
+    private long connectionWaitNanos;
+    private int statements;
+    private long statementNanos;
+    private long flushNanos;
+    private long commitNanos;
+
+    private ServerTiming() {
+    }
+
+    /**
+     * Starts counting the database time of the current thread.
+     *
+     * @return The timing of the request.
+     */
+    static ServerTiming start() {
+        final ServerTiming timing = new ServerTiming();
+        CURRENT.set(timing);
+        return timing;
+    }
+
+    /**
+     * Stops counting the database time of the current thread.
+     */
+    static void stop() {
+        CURRENT.remove();
+    }
+
+    /**
+     * @return The timing of the request served by the current thread, or
+     *         {@code null}.
+     */
+    static ServerTiming current() {
+        return CURRENT.get();
+    }
+
+    void recordFlush(final long nanos) {
+        this.flushNanos += nanos;
+    }
+
+    void recordCommit(final long nanos) {
+        this.commitNanos += nanos;
+    }
+
+    /**
+     * @return The value of the {@code Server-Timing} header, such as
+     *         {@code db-wait;dur=0.12;desc="1 connections", db-exec;dur=3.40;desc="5 statements", db-flush;dur=0.80, db-commit;dur=0.31}.
+     */
+    String toHeader() {
+        return String.format(Locale.ROOT,
+                "db-wait;dur=%.2f;desc=\"%d connections\", db-exec;dur=%.2f;desc=\"%d statements\", "
+                        + "db-flush;dur=%.2f, db-commit;dur=%.2f",
+                toMillis(this.connectionWaitNanos), this.connections,
+                toMillis(this.statementNanos), this.statements, toMillis(this.flushNanos),
+                toMillis(this.commitNanos));
+    }
+
+    private static double toMillis(final long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -3,15 +3,16 @@ package com.github.mtakaki.credentialstorage.hibernate;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
-import javax.sql.DataSource;
-
+import org.hibernate.MultiTenancyStrategy;
 import org.hibernate.SessionFactory;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
 import org.hibernate.cfg.AvailableSettings;
 import org.hibernate.cfg.Configuration;
-import org.hibernate.engine.jdbc.connections.internal.DatasourceConnectionProviderImpl;
 import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.jdbc.connections.spi.MultiTenantConnectionProvider;
 import org.hibernate.service.ServiceRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +25,8 @@ import io.dropwizard.setup.Environment;
 
 public class SessionFactoryFactory {
     private static final Logger LOGGER = LoggerFactory.getLogger(SessionFactoryFactory.class);
+    // Hibernate 4.3 has no constant for it.
+    static final String USE_JDBC_METADATA_DEFAULTS = "hibernate.temp.use_jdbc_metadata_defaults";
 
     public SessionFactory build(final RemoteCredentialHibernateBundle<?> bundle,
             final Environment environment,
@@ -39,29 +42,97 @@ public class SessionFactoryFactory {
             final PooledDataSourceFactory dbConfig,
             final ManagedDataSource dataSource,
             final List<Class<?>> entities) {
-        final ConnectionProvider provider = this.buildConnectionProvider(dataSource,
-                dbConfig.getProperties());
+        return this.build(bundle, environment, dbConfig, CompletableFuture.completedFuture(dataSource),
+                entities);
+    }
+
+    /**
+     * Builds the {@link SessionFactory} while the data source is still being
+     * started, if {@code hibernate.dialect} is configured. The entity metadata
+     * is bound right away and the connections are only requested once the
+     * data source is available. Without the dialect, Hibernate needs a
+     * connection to resolve it, so it waits for the data source first. The
+     * session factory and the data source are managed by the application
+     * lifecycle, so it must be called before the application starts.
+     *
+     * @param bundle
+     *            The bundle the session factory belongs to.
+     * @param environment
+     *            The application environment.
+     * @param dbConfig
+     *            The database configuration.
+     * @param dataSource
+     *            The data source, which completes once it's started.
+     * @param entities
+     *            The entity classes.
+     * @return The {@link SessionFactory}.
+     */
+    public SessionFactory build(final RemoteCredentialHibernateBundle<?> bundle,
+            final Environment environment,
+            final PooledDataSourceFactory dbConfig,
+            final CompletableFuture<? extends ManagedDataSource> dataSource,
+            final List<Class<?>> entities) {
+        final SessionFactory factory = this.build(bundle, dbConfig, dataSource, null, entities);
+        environment.lifecycle().manage(new SessionFactoryManager(factory, dataSource.join()));
+        return factory;
+    }
+
+    /**
+     * Builds the {@link SessionFactory}, which is multi-tenant if the tenant
+     * pools are given. It's not managed by the application lifecycle: the
+     * bundle builds it in the background and closes it itself.
+     *
+     * @param bundle
+     *            The bundle the session factory belongs to.
+     * @param dbConfig
+     *            The database configuration.
+     * @param dataSource
+     *            The data source, which completes once it's started.
+     * @param tenants
+     *            The tenant pools of a multi-tenant bundle, or {@code null}.
+     *            The data source is used by the default tenant.
+     * @param entities
+     *            The entity classes.
+     * @return The {@link SessionFactory}.
+     */
+    SessionFactory build(final RemoteCredentialHibernateBundle<?> bundle,
+            final PooledDataSourceFactory dbConfig,
+            final CompletableFuture<? extends ManagedDataSource> dataSource,
+            final TenantDataSources tenants,
+            final List<Class<?>> entities) {
+        final ConnectionProvider provider = new DeferredDataSourceConnectionProvider(dataSource,
+                bundle.getStatementRecorder(), bundle::getCurrentPartition,
+                bundle::getCurrentUnitOfWork);
         final SessionFactory factory = this.buildSessionFactory(bundle,
                 dbConfig,
                 provider,
+                tenants == null ? null : new TenantConnectionProvider(provider, tenants),
                 dbConfig.getProperties(),
                 entities);
-        final SessionFactoryManager managedFactory = new SessionFactoryManager(factory, dataSource);
-        environment.lifecycle().manage(managedFactory);
+        try {
+            dataSource.join();
+        } catch (final CompletionException e) {
+            factory.close();
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
         return factory;
     }
 
-    private ConnectionProvider buildConnectionProvider(final DataSource dataSource,
-            final Map<String, String> properties) {
-        final DatasourceConnectionProviderImpl connectionProvider = new DatasourceConnectionProviderImpl();
-        connectionProvider.setDataSource(dataSource);
-        connectionProvider.configure(properties);
-        return connectionProvider;
+    /**
+     * @param properties
+     *            The Hibernate properties of the bundle.
+     * @return {@code true} if the session factory is built without a
+     *         connection, so it's built while the data source starts.
+     */
+    static boolean isBuiltWithoutConnection(final Map<String, String> properties) {
+        return properties.containsKey(AvailableSettings.DIALECT)
+                && !Boolean.parseBoolean(properties.get(USE_JDBC_METADATA_DEFAULTS));
     }
 
     private SessionFactory buildSessionFactory(final RemoteCredentialHibernateBundle<?> bundle,
             final PooledDataSourceFactory dbConfig,
             final ConnectionProvider connectionProvider,
+            final MultiTenantConnectionProvider multiTenantConnectionProvider,
             final Map<String, String> properties,
             final List<Class<?>> entities) {
         final Configuration configuration = new Configuration();
@@ -81,10 +152,29 @@ public class SessionFactoryFactory {
 
         this.addAnnotatedClasses(configuration, entities);
 
-        final ServiceRegistry registry = new StandardServiceRegistryBuilder()
+        final StandardServiceRegistryBuilder registryBuilder = new StandardServiceRegistryBuilder()
                 .addService(ConnectionProvider.class, connectionProvider)
-                .applySettings(properties)
-                .build();
+                .applySettings(properties);
+        if (multiTenantConnectionProvider != null) {
+            // Both the session factory and the JDBC services read it.
+            configuration.setProperty(AvailableSettings.MULTI_TENANT,
+                    MultiTenancyStrategy.DATABASE.name());
+            registryBuilder.applySetting(AvailableSettings.MULTI_TENANT,
+                    MultiTenancyStrategy.DATABASE.name())
+                    .addService(MultiTenantConnectionProvider.class,
+                            multiTenantConnectionProvider);
+        }
+        if (isBuiltWithoutConnection(properties)) {
+            // Hibernate reads the JDBC metadata of a connection by default,
+            // which would wait for the data source before binding the
+            // entities. The dialect is known, so the defaults are enough.
+            configuration.setProperty(USE_JDBC_METADATA_DEFAULTS, "false");
+            registryBuilder.applySetting(USE_JDBC_METADATA_DEFAULTS, "false");
+        } else {
+            LOGGER.info("The session factory waits for the data source, as {} is not set or {} "
+                    + "is enabled.", AvailableSettings.DIALECT, USE_JDBC_METADATA_DEFAULTS);
+        }
+        final ServiceRegistry registry = registryBuilder.build();
 
         this.configure(configuration, registry);
 
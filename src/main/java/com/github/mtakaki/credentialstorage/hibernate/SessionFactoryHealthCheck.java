@@ -2,6 +2,7 @@ package com.github.mtakaki.credentialstorage.hibernate;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
 
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
@@ -14,8 +15,9 @@ import io.dropwizard.db.TimeBoundHealthCheck;
 import io.dropwizard.util.Duration;
 
 public class SessionFactoryHealthCheck extends HealthCheck {
-    private final SessionFactory sessionFactory;
+    private final Supplier<SessionFactory> sessionFactory;
     private final String validationQuery;
+    private final String tenantIdentifier;
     private final TimeBoundHealthCheck timeBoundHealthCheck;
 
     public SessionFactoryHealthCheck(final SessionFactory sessionFactory,
@@ -27,14 +29,58 @@ public class SessionFactoryHealthCheck extends HealthCheck {
                                      final Duration duration,
                                      final SessionFactory sessionFactory,
                                      final String validationQuery) {
+        this(executorService, duration, () -> sessionFactory, validationQuery);
+    }
+
+    /**
+     * Creates a health check that always validates the current
+     * {@link SessionFactory}, which changes when the credentials are rotated.
+     *
+     * @param executorService
+     *            The executor used to run the validation query.
+     * @param duration
+     *            How long the validation query can take.
+     * @param sessionFactory
+     *            Supplies the current {@link SessionFactory}.
+     * @param validationQuery
+     *            The validation query.
+     */
+    public SessionFactoryHealthCheck(final ExecutorService executorService,
+                                     final Duration duration,
+                                     final Supplier<SessionFactory> sessionFactory,
+                                     final String validationQuery) {
+        this(executorService, duration, sessionFactory, validationQuery, null);
+    }
+
+    /**
+     * Creates a health check for a multi-tenant {@link SessionFactory}, which
+     * validates the database of the given tenant.
+     *
+     * @param executorService
+     *            The executor used to run the validation query.
+     * @param duration
+     *            How long the validation query can take.
+     * @param sessionFactory
+     *            Supplies the current {@link SessionFactory}.
+     * @param validationQuery
+     *            The validation query.
+     * @param tenantIdentifier
+     *            The tenant to validate, or {@code null} if the session
+     *            factory is not multi-tenant.
+     */
+    public SessionFactoryHealthCheck(final ExecutorService executorService,
+                                     final Duration duration,
+                                     final Supplier<SessionFactory> sessionFactory,
+                                     final String validationQuery,
+                                     final String tenantIdentifier) {
         this.sessionFactory = sessionFactory;
         this.validationQuery = validationQuery;
+        this.tenantIdentifier = tenantIdentifier;
         this.timeBoundHealthCheck = new TimeBoundHealthCheck(executorService, duration);
     }
 
-
     public SessionFactory getSessionFactory() {
-        return this.sessionFactory;
+        return this.sessionFactory.get();
     }
 
     public String getValidationQuery() {
@@ -46,7 +92,16 @@ public class SessionFactoryHealthCheck extends HealthCheck {
         return this.timeBoundHealthCheck.check(new Callable<Result>() {
             @Override
             public Result call() throws Exception {
-                final Session session = SessionFactoryHealthCheck.this.sessionFactory.openSession();
+                final SessionFactory sessionFactory = SessionFactoryHealthCheck.this.getSessionFactory();
+                // Lazy bundles don't have a session factory until they are used.
+                if (sessionFactory == null) {
+                    return Result.healthy("Not initialized.");
+                }
+                final Session session = SessionFactoryHealthCheck.this.tenantIdentifier == null
+                        ? sessionFactory.openSession()
+                        : sessionFactory.withOptions()
+                                .tenantIdentifier(SessionFactoryHealthCheck.this.tenantIdentifier)
+                                .openSession();
                 try {
                     final Transaction txn = session.beginTransaction();
                     try {
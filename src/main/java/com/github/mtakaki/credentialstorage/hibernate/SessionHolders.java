@@ -1,9 +1,13 @@
 package com.github.mtakaki.credentialstorage.hibernate;
 
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import org.hibernate.SessionFactory;
 import org.slf4j.Logger;
@@ -11,39 +15,97 @@ import org.slf4j.LoggerFactory;
 
 import io.dropwizard.db.ManagedDataSource;
 
-import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 
 /**
- * Holds the current active {@link SessionFactory} and {@link ManagedDataSource}
- * . Once the connection is set to be closed, the last user of the connection
- * will close it.
+ * Holds the current active {@link SessionFactory} and
+ * {@link ManagedDataSource}, with the pools of its partitions. Once the
+ * connection is set to be closed, the last user of the connection will close
+ * it. Every user is kept with the moment it acquired the session, so the ones
+ * holding it for too long can be reported by the
+ * {@link ConnectionHoldDetector}. The users added and removed, and the
+ * closing of the connection, are recorded as Flight Recorder events.
  *
  * @author mtakaki
  *
  */
-@RequiredArgsConstructor
 class SessionHolders {
     private static final Logger LOGGER = LoggerFactory.getLogger(SessionHolders.class);
 
-    private final Set<UnitOfWorkAspect> unitOfWorks = Collections.synchronizedSet(new HashSet<>());
+    private final Map<Object, ConnectionHold> unitOfWorks = new ConcurrentHashMap<>();
     private final AtomicInteger sessionCounter = new AtomicInteger();
 
+    private final String name;
     private final SessionFactory sessionFactory;
     private final ManagedDataSource dataSource;
+    private final Map<String, ManagedDataSource> partitions;
+    private final long generation;
+    private final double stackSamplingRate;
 
     @Setter
     private boolean closeSession = false;
+    private volatile boolean closed = false;
+    /**
+     * Notified of every hold once it's released, with its final age.
+     */
+    @Setter
+    private volatile Consumer<ConnectionHold> releaseListener;
+
+    SessionHolders(final SessionFactory sessionFactory, final ManagedDataSource dataSource) {
+        this(sessionFactory, dataSource, 0, 0);
+    }
+
+    SessionHolders(final SessionFactory sessionFactory, final ManagedDataSource dataSource,
+            final long generation, final double stackSamplingRate) {
+        this(sessionFactory, dataSource, Collections.emptyMap(), generation, stackSamplingRate);
+    }
+
+    SessionHolders(final SessionFactory sessionFactory, final ManagedDataSource dataSource,
+            final Map<String, ManagedDataSource> partitions, final long generation,
+            final double stackSamplingRate) {
+        this(null, sessionFactory, dataSource, partitions, generation, stackSamplingRate);
+    }
+
+    /**
+     * @param name
+     *            The name of the bundle.
+     * @param sessionFactory
+     *            The session factory.
+     * @param dataSource
+     *            The data source of the session factory.
+     * @param partitions
+     *            The pools of the partitions, by name.
+     * @param generation
+     *            The generation of the session factory.
+     * @param stackSamplingRate
+     *            The rate of the users that have the stack trace of where they
+     *            acquired the session captured.
+     */
+    SessionHolders(final String name, final SessionFactory sessionFactory,
+            final ManagedDataSource dataSource, final Map<String, ManagedDataSource> partitions,
+            final long generation, final double stackSamplingRate) {
+        this.name = name;
+        this.sessionFactory = sessionFactory;
+        this.dataSource = dataSource;
+        this.partitions = partitions;
+        this.generation = generation;
+        this.stackSamplingRate = stackSamplingRate;
+    }
 
     /**
-     * Adds a {@link UnitOfWorkAspect} to the list of users of the connection.
+     * Adds a {@link UnitOfWorkAspect}, or any other user such as the
+     * {@link WriteBehindBuffer} writer, to the list of users of the connection.
      *
      * @param unitOfWork
      *            The unit of work that is using the database connection.
      */
-    public void add(final UnitOfWorkAspect unitOfWork) {
-        this.unitOfWorks.add(unitOfWork);
+    public void add(final Object unitOfWork) {
+        final Object event = FlightRecorderEvents.beginSessionHolders();
+        this.unitOfWorks.put(unitOfWork, new ConnectionHold(this.name, this.generation,
+                unitOfWork, this.stackSamplingRate > 0
+                        && ThreadLocalRandom.current().nextDouble() < this.stackSamplingRate));
         this.sessionCounter.incrementAndGet();
+        this.commitEvent(event, unitOfWork, "add");
     }
 
     /**
@@ -54,21 +116,107 @@ class SessionHolders {
      * @param unitOfWork
      *            The unit of work that was using the database connection.
      */
-    public synchronized void remove(final UnitOfWorkAspect unitOfWork) {
+    public void remove(final Object unitOfWork) {
+        // The event includes the time waiting for the lock.
+        final Object event = FlightRecorderEvents.beginSessionHolders();
+        try {
+            this.removeHolder(unitOfWork);
+        } finally {
+            this.commitEvent(event, unitOfWork, "remove");
+        }
+    }
+
+    private synchronized void removeHolder(final Object unitOfWork) {
         // TODO This method shouldn't be synchronized as every request will
         // become serial in the end.
-        this.unitOfWorks.remove(unitOfWork);
+        final ConnectionHold hold = this.unitOfWorks.remove(unitOfWork);
+        final Consumer<ConnectionHold> listener = this.releaseListener;
+        if (hold != null && listener != null) {
+            listener.accept(hold);
+        }
 
         if (this.closeSession && this.unitOfWorks.isEmpty()) {
             this.closeConnections();
         }
     }
 
+    /**
+     * @return The {@link SessionFactory} of this connection.
+     */
+    SessionFactory getSessionFactory() {
+        return this.sessionFactory;
+    }
+
+    /**
+     * @param name
+     *            The name of the partition.
+     * @return The pool of the partition, or {@code null} if it's not
+     *         configured.
+     */
+    ManagedDataSource getPartition(final String name) {
+        return this.partitions.get(name);
+    }
+
+    /**
+     * @return The pools of the partitions, by name.
+     */
+    Map<String, ManagedDataSource> getPartitions() {
+        return this.partitions;
+    }
+
+    /**
+     * @return The generation of the session factory of this connection.
+     */
+    long getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * @return The users currently holding the connection.
+     */
+    List<ConnectionHold> getHolds() {
+        return new ArrayList<>(this.unitOfWorks.values());
+    }
+
+    /**
+     * @return {@code true} if the connection was closed.
+     */
+    boolean isClosed() {
+        return this.closed;
+    }
+
     /**
      * Closes the current database connection. It suppress exceptions if the
      * internal {@link ManagedDataSource} fails to stop, but it will be logged.
      */
     public void closeConnections() {
+        final Object event = FlightRecorderEvents.beginSessionHolders();
+        try {
+            this.doCloseConnections();
+        } finally {
+            if (event != null) {
+                FlightRecorderEvents.commit(event, this.name, this.generation, null,
+                        "closeConnections");
+            }
+        }
+    }
+
+    private void commitEvent(final Object event, final Object unitOfWork, final String phase) {
+        if (event == null) {
+            return;
+        }
+        if (unitOfWork instanceof UnitOfWorkAspect) {
+            final UnitOfWorkAspect aspect = (UnitOfWorkAspect) unitOfWork;
+            FlightRecorderEvents.commit(event, this.name, this.generation,
+                    aspect.getMethodName(), phase);
+        } else {
+            FlightRecorderEvents.commit(event, this.name, this.generation,
+                    unitOfWork.getClass().getSimpleName(), phase);
+        }
+    }
+
+    private void doCloseConnections() {
+        this.closed = true;
         this.sessionFactory.close();
         try {
             this.dataSource.stop();
@@ -77,6 +225,14 @@ class SessionHolders {
                     "Failed to close database connections. The application is going to leak connections.",
                     e);
         }
+        for (final Map.Entry<String, ManagedDataSource> partition : this.partitions.entrySet()) {
+            try {
+                partition.getValue().stop();
+            } catch (final Exception e) {
+                LOGGER.error("Failed to close the database connections of partition '{}'. "
+                        + "The application is going to leak connections.", partition.getKey(), e);
+            }
+        }
     }
 
     /**
@@ -0,0 +1,85 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * A normalized statement that passed the slow statement threshold, with its
+ * latency and the last execution plan captured for it. The parameters are
+ * never kept.
+ */
+public class SlowStatement {
+    private final String sql;
+    private long count;
+    private long totalNanos;
+    private long maxNanos;
+    private long lastSeen;
+    private String plan;
+    private long planCapturedAt;
+    private long planCapturedNanos;
+
+    SlowStatement(final String sql) {
+        this.sql = sql;
+    }
+
+    synchronized void record(final long nanos) {
+        this.count++;
+        this.totalNanos += nanos;
+        this.maxNanos = Math.max(this.maxNanos, nanos);
+        this.lastSeen = System.currentTimeMillis();
+    }
+
+    synchronized void setPlan(final String plan) {
+        this.plan = plan;
+        this.planCapturedAt = System.currentTimeMillis();
+        this.planCapturedNanos = System.nanoTime();
+    }
+
+    /**
+     * @return {@code true} if no plan was captured or it's older than the
+     *         interval.
+     */
+    synchronized boolean isPlanStale(final long intervalNanos) {
+        return this.plan == null || System.nanoTime() - this.planCapturedNanos >= intervalNanos;
+    }
+
+    synchronized long getMaxNanos() {
+        return this.maxNanos;
+    }
+
+    @JsonProperty
+    public String getSql() {
+        return this.sql;
+    }
+
+    @JsonProperty
+    public synchronized long getCount() {
+        return this.count;
+    }
+
+    @JsonProperty
+    public synchronized double getMeanMillis() {
+        return this.count == 0 ? 0 : (double) this.totalNanos / this.count / 1_000_000;
+    }
+
+    @JsonProperty
+    public synchronized long getMaxMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(this.maxNanos);
+    }
+
+    @JsonProperty
+    public synchronized long getLastSeen() {
+        return this.lastSeen;
+    }
+
+    @JsonProperty
+    public synchronized String getPlan() {
+        return this.plan;
+    }
+
+    @JsonProperty
+    public synchronized Long getPlanCapturedAt() {
+        return this.plan == null ? null : this.planCapturedAt;
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import org.hibernate.validator.constraints.NotEmpty;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import io.dropwizard.util.Duration;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Controls the capture of slow statements. The statements that take longer
+ * than {@code threshold} are kept in a top-N of the slowest ones and, for a
+ * sample of them, the execution plan is captured by running
+ * {@code explainPrefix} followed by the statement on a dedicated connection,
+ * opened outside of the pool.
+ * At most {@code maxExplainsPerMinute} plans are captured and a plan is only
+ * captured again after {@code planRefreshInterval}.
+ */
+@Getter
+@Setter
+public class SlowStatementConfiguration {
+    @NotNull
+    @JsonProperty
+    private Duration threshold = Duration.milliseconds(500);
+    @Min(1)
+    @JsonProperty
+    private int topStatements = 20;
+    @DecimalMin("0")
+    @DecimalMax("1")
+    @JsonProperty
+    private double samplingRate = 1.0;
+    @Min(0)
+    @JsonProperty
+    private int maxExplainsPerMinute = 6;
+    @NotNull
+    @JsonProperty
+    private Duration planRefreshInterval = Duration.minutes(10);
+    @NotEmpty
+    @JsonProperty
+    private String explainPrefix = "EXPLAIN ";
+}
@@ -0,0 +1,224 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps the slowest statements of a bundle and captures their execution
+ * plans. The statements are timed by the connections of the bundle, see
+ * {@link TimedConnections}, and the ones that pass the threshold are
+ * normalized, so the same query with different values is counted once.
+ * <p>
+ * The plans are captured asynchronously, for a sample of the slow
+ * {@code SELECT} statements and at a limited rate, on a dedicated connection
+ * opened outside of the pool, so they never take a connection from the
+ * requests that are already slow. Only HikariCP pools can be explained. Other
+ * statements are never explained, since some databases execute them to build
+ * the plan.
+ * </p>
+ */
+@Slf4j
+class SlowStatementLog implements StatementRecorder {
+    private static final Pattern COMMENTS = Pattern.compile("/\\*.*?\\*/", Pattern.DOTALL);
+    private static final Pattern STRING_LITERALS = Pattern.compile("'(?:[^']|'')*'");
+    private static final Pattern NUMERIC_LITERALS = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+    private static final Pattern IN_LISTS = Pattern.compile("\\(\\s*\\?(?:\\s*,\\s*\\?)+\\s*\\)");
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final int EXPLAIN_TIMEOUT_SECONDS = 10;
+
+    private final SlowStatementConfiguration configuration;
+    private final Executor executor;
+    private final long thresholdNanos;
+    private final long explainIntervalNanos;
+
+    private final Map<String, SlowStatement> statements = new HashMap<>();
+    private final AtomicLong nextExplain = new AtomicLong(System.nanoTime());
+
+    private final Meter recorded;
+    private final Meter explained;
+    private final Meter explainFailures;
+
+    SlowStatementLog(final SlowStatementConfiguration configuration, final Executor executor,
+            final MetricRegistry metricRegistry, final String name) {
+        this.configuration = configuration;
+        this.executor = executor;
+        this.thresholdNanos = configuration.getThreshold().toNanoseconds();
+        this.explainIntervalNanos = configuration.getMaxExplainsPerMinute() == 0 ? -1
+                : TimeUnit.MINUTES.toNanos(1) / configuration.getMaxExplainsPerMinute();
+        this.recorded = metricRegistry.meter(MetricRegistry.name(name, "slowStatements", "recorded"));
+        this.explained = metricRegistry.meter(MetricRegistry.name(name, "slowStatements", "explained"));
+        this.explainFailures = metricRegistry
+                .meter(MetricRegistry.name(name, "slowStatements", "explainFailures"));
+    }
+
+    /**
+     * Records an executed statement. It does nothing if the statement was
+     * faster than the threshold. The parameters are only used to capture the
+     * plan.
+     */
+    @Override
+    public void record(final DataSource dataSource, final String sql, final Object[] parameters,
+            final long nanos) {
+        if (nanos < this.thresholdNanos) {
+            return;
+        }
+        this.recorded.mark();
+        final String normalizedSql = normalize(sql);
+        final SlowStatement statement;
+        synchronized (this.statements) {
+            statement = this.getOrAdd(normalizedSql, nanos);
+        }
+        if (statement == null) {
+            return;
+        }
+        statement.record(nanos);
+        if (HikariPools.isHikari(dataSource) && this.shouldExplain(sql, statement)) {
+            final Object[] explainParameters = parameters == null ? new Object[0]
+                    : Arrays.copyOf(parameters, parameters.length);
+            try {
+                this.executor.execute(() -> this.explain(dataSource, sql, explainParameters,
+                        statement));
+            } catch (final RejectedExecutionException e) {
+                log.debug("Execution plan capture rejected.", e);
+            }
+        }
+    }
+
+    /**
+     * @return The slow statements, the slowest first.
+     */
+    List<SlowStatement> getStatements() {
+        final List<SlowStatement> slowest;
+        synchronized (this.statements) {
+            slowest = new ArrayList<>(this.statements.values());
+        }
+        slowest.sort(Comparator.comparingLong(SlowStatement::getMaxNanos).reversed());
+        return slowest;
+    }
+
+    private SlowStatement getOrAdd(final String normalizedSql, final long nanos) {
+        SlowStatement statement = this.statements.get(normalizedSql);
+        if (statement != null) {
+            return statement;
+        }
+        if (this.statements.size() >= this.configuration.getTopStatements()) {
+            // Only replaces the fastest one if this one is slower.
+            SlowStatement fastest = null;
+            for (final SlowStatement candidate : this.statements.values()) {
+                if (fastest == null || candidate.getMaxNanos() < fastest.getMaxNanos()) {
+                    fastest = candidate;
+                }
+            }
+            if (fastest.getMaxNanos() >= nanos) {
+                return null;
+            }
+            this.statements.remove(fastest.getSql());
+        }
+        statement = new SlowStatement(normalizedSql);
+        this.statements.put(normalizedSql, statement);
+        return statement;
+    }
+
+    private boolean shouldExplain(final String sql, final SlowStatement statement) {
+        if (this.explainIntervalNanos < 0 || !isSelect(sql)
+                || !statement.isPlanStale(this.configuration.getPlanRefreshInterval()
+                        .toNanoseconds())
+                || ThreadLocalRandom.current().nextDouble() >= this.configuration
+                        .getSamplingRate()) {
+            return false;
+        }
+        final long now = System.nanoTime();
+        final long next = this.nextExplain.get();
+        return now - next >= 0 && this.nextExplain.compareAndSet(next,
+                now + this.explainIntervalNanos);
+    }
+
+    private void explain(final DataSource dataSource, final String sql,
+            final Object[] parameters, final SlowStatement statement) {
+        try (Connection connection = HikariPools.openUnpooledConnection(dataSource)) {
+            connection.setReadOnly(true);
+            try (PreparedStatement preparedStatement = connection
+                    .prepareStatement(this.configuration.getExplainPrefix() + sql)) {
+                preparedStatement.setQueryTimeout(EXPLAIN_TIMEOUT_SECONDS);
+                for (int i = 0; i < parameters.length; i++) {
+                    preparedStatement.setObject(i + 1, parameters[i]);
+                }
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    statement.setPlan(this.format(resultSet));
+                }
+            }
+            this.explained.mark();
+        } catch (final SQLException | RuntimeException e) {
+            this.explainFailures.mark();
+            log.warn("Failed to capture the execution plan of: {}", statement.getSql(), e);
+        }
+    }
+
+    private String format(final ResultSet resultSet) throws SQLException {
+        final ResultSetMetaData metaData = resultSet.getMetaData();
+        final StringBuilder plan = new StringBuilder();
+        while (resultSet.next()) {
+            if (plan.length() > 0) {
+                plan.append('\n');
+            }
+            for (int column = 1; column <= metaData.getColumnCount(); column++) {
+                if (column > 1) {
+                    plan.append(" | ");
+                }
+                plan.append(resultSet.getString(column));
+            }
+        }
+        return plan.toString();
+    }
+
+    /**
+     * @param sql
+     *            The statement.
+     * @return {@code true} if the statement is a query.
+     */
+    static boolean isSelect(final String sql) {
+        final String statement = COMMENTS.matcher(sql).replaceAll("").trim();
+        return statement.regionMatches(true, 0, "select", 0, 6)
+                || statement.regionMatches(true, 0, "with", 0, 4);
+    }
+
+    /**
+     * Replaces the literals of the statement by placeholders, so the same
+     * query with different values has the same shape.
+     *
+     * @param sql
+     *            The statement.
+     * @return The normalized statement.
+     */
+    @VisibleForTesting
+    static String normalize(final String sql) {
+        String normalized = COMMENTS.matcher(sql).replaceAll(" ");
+        normalized = STRING_LITERALS.matcher(normalized).replaceAll("?");
+        normalized = NUMERIC_LITERALS.matcher(normalized).replaceAll("?");
+        normalized = IN_LISTS.matcher(normalized).replaceAll("(?)");
+        return WHITESPACE.matcher(normalized).replaceAll(" ").trim();
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import javax.sql.DataSource;
+
+/**
+ * Receives the statements executed by the connections of a bundle, see
+ * {@link TimedConnections}.
+ */
+interface StatementRecorder {
+    /**
+     * Records an executed statement. It's called by the thread that executed
+     * it, so it should be cheap.
+     *
+     * @param dataSource
+     *            The data source the statement was executed on.
+     * @param sql
+     *            The statement.
+     * @param parameters
+     *            The parameters of a prepared statement, or {@code null}. The
+     *            array is reused by the statement, so it must be copied to be
+     *            kept.
+     * @param nanos
+     *            How long the statement took.
+     */
+    void record(DataSource dataSource, String sql, Object[] parameters, long nanos);
+
+    /**
+     * Records the time spent waiting for a connection. It's called by the
+     * thread that requested it.
+     *
+     * @param dataSource
+     *            The data source the connection was taken from.
+     * @param nanos
+     *            How long it took to get the connection.
+     */
+    default void recordConnectionWait(final DataSource dataSource, final long nanos) {
+    }
+
+    /**
+     * @param first
+     *            A recorder, or {@code null}.
+     * @param second
+     *            Another recorder, or {@code null}.
+     * @return A recorder that records to both, or {@code null} if both are
+     *         {@code null}.
+     */
+    static StatementRecorder of(final StatementRecorder first, final StatementRecorder second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        return new StatementRecorder() {
+            @Override
+            public void record(final DataSource dataSource, final String sql,
+                    final Object[] parameters, final long nanos) {
+                first.record(dataSource, sql, parameters, nanos);
+                second.record(dataSource, sql, parameters, nanos);
+            }
+
+            @Override
+            public void recordConnectionWait(final DataSource dataSource, final long nanos) {
+                first.recordConnectionWait(dataSource, nanos);
+                second.recordConnectionWait(dataSource, nanos);
+            }
+        };
+    }
+}
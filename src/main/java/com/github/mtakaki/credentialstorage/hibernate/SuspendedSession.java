@@ -0,0 +1,48 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.context.internal.ManagedSessionContext;
+
+import lombok.AccessLevel;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * The session bound to the thread by an outer unit of work, which is unbound
+ * while a {@link UnitOfWorkPropagation#REQUIRES_NEW} unit of work runs and
+ * bound again once it ends.
+ */
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+final class SuspendedSession {
+    private final RemoteCredentialHibernateBundle<?> bundle;
+    private final SessionFactory sessionFactory;
+    private final Session session;
+
+    /**
+     * Unbinds the session of the current thread.
+     *
+     * @param bundle
+     *            The bundle of the units of work.
+     * @return The suspended session, which must be resumed.
+     */
+    static SuspendedSession suspend(final RemoteCredentialHibernateBundle<?> bundle) {
+        final SessionFactory sessionFactory = bundle.getCurrentThreadSessionFactory();
+        Session session = null;
+        if (sessionFactory != null && ManagedSessionContext.hasBind(sessionFactory)) {
+            session = ManagedSessionContext.unbind(sessionFactory);
+        }
+        return new SuspendedSession(bundle, sessionFactory, session);
+    }
+
+    /**
+     * Binds the session to the current thread again.
+     */
+    void resume() {
+        if (this.session != null) {
+            ManagedSessionContext.bind(this.session);
+        }
+        if (this.sessionFactory != null) {
+            this.bundle.setCurrentThreadSessionFactory(this.sessionFactory);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.jdbc.connections.spi.MultiTenantConnectionProvider;
+import org.hibernate.service.UnknownUnwrapTypeException;
+
+/**
+ * The {@link MultiTenantConnectionProvider} of a multi-tenant session factory.
+ * The default tenant uses the data source of the bundle, and the other tenants
+ * use their own pools from {@link TenantDataSources}.
+ */
+class TenantConnectionProvider implements MultiTenantConnectionProvider {
+    private static final long serialVersionUID = 1L;
+
+    private final transient ConnectionProvider defaultConnectionProvider;
+    private final transient TenantDataSources tenants;
+
+    TenantConnectionProvider(final ConnectionProvider defaultConnectionProvider,
+            final TenantDataSources tenants) {
+        this.defaultConnectionProvider = defaultConnectionProvider;
+        this.tenants = tenants;
+    }
+
+    @Override
+    public Connection getAnyConnection() throws SQLException {
+        return this.defaultConnectionProvider.getConnection();
+    }
+
+    @Override
+    public void releaseAnyConnection(final Connection connection) throws SQLException {
+        this.defaultConnectionProvider.closeConnection(connection);
+    }
+
+    @Override
+    public Connection getConnection(final String tenantIdentifier) throws SQLException {
+        if (this.tenants.getDefaultTenant().equals(tenantIdentifier)) {
+            return this.getAnyConnection();
+        }
+        return this.tenants.getConnection(tenantIdentifier);
+    }
+
+    @Override
+    public void releaseConnection(final String tenantIdentifier, final Connection connection)
+            throws SQLException {
+        if (this.tenants.getDefaultTenant().equals(tenantIdentifier)) {
+            this.releaseAnyConnection(connection);
+        } else {
+            this.tenants.releaseConnection(connection);
+        }
+    }
+
+    @Override
+    public boolean supportsAggressiveRelease() {
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public boolean isUnwrappableAs(final Class unwrapType) {
+        return MultiTenantConnectionProvider.class.equals(unwrapType)
+                || TenantConnectionProvider.class.isAssignableFrom(unwrapType);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T unwrap(final Class<T> unwrapType) {
+        if (this.isUnwrappableAs(unwrapType)) {
+            return (T) this;
+        }
+        throw new UnknownUnwrapTypeException(unwrapType);
+    }
+}
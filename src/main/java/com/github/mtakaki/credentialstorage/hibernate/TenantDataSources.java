@@ -0,0 +1,340 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.mtakaki.credentialstorage.client.CredentialStorageServiceClient;
+import com.github.mtakaki.credentialstorage.client.model.Credential;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import io.dropwizard.db.ManagedDataSource;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.lifecycle.Managed;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The connection pools of the tenants of a multi-tenant bundle. A pool is
+ * created the first time its tenant is used, with the bundle configuration
+ * and the URL and key files of the tenant, and it's closed once it's idle.
+ * The pools are created by the first thread that needs them, outside of the
+ * map, and the other threads of the same tenant wait for them.
+ */
+@Slf4j
+class TenantDataSources implements Managed {
+    private static final Pattern TENANT_PATTERN = Pattern.compile("[A-Za-z0-9_-]+");
+    private static final ObjectMapper OBJECT_MAPPER = Jackson.newObjectMapper();
+
+    private final String name;
+    private final RemoteCredentialDataSourceFactory dataSourceFactory;
+    private final MultiTenancyConfiguration configuration;
+    private final MetricRegistry metricRegistry;
+    private final CredentialRefreshService refreshService;
+
+    private final ConcurrentMap<String, CompletableFuture<TenantPool>> pools =
+            new ConcurrentHashMap<>();
+    private final Map<Connection, TenantPool> leases = new ConcurrentHashMap<>();
+
+    TenantDataSources(final String name, final RemoteCredentialDataSourceFactory dataSourceFactory,
+            final MetricRegistry metricRegistry, final CredentialRefreshService refreshService) {
+        this.name = name;
+        this.dataSourceFactory = dataSourceFactory;
+        this.configuration = dataSourceFactory.getMultiTenancy();
+        this.metricRegistry = metricRegistry;
+        this.refreshService = refreshService;
+        metricRegistry.register(MetricRegistry.name(name, "tenants", "pools"),
+                (Gauge<Integer>) this.pools::size);
+    }
+
+    /**
+     * @return The identifier of the tenant that uses the data source of the
+     *         bundle.
+     */
+    String getDefaultTenant() {
+        return this.configuration.getDefaultTenant();
+    }
+
+    /**
+     * Gets a connection from the pool of the tenant, creating the pool if
+     * it's not open yet.
+     *
+     * @param tenant
+     *            The tenant identifier.
+     * @return A connection to the database of the tenant.
+     * @throws SQLException
+     *             Thrown if the connection could not be acquired.
+     */
+    Connection getConnection(final String tenant) throws SQLException {
+        final TenantPool pool = this.acquire(tenant);
+        try {
+            final Connection connection = pool.dataSource.getConnection();
+            this.leases.put(connection, pool);
+            return connection;
+        } catch (final SQLException | RuntimeException e) {
+            this.release(pool);
+            throw e;
+        }
+    }
+
+    void releaseConnection(final Connection connection) throws SQLException {
+        final TenantPool pool = this.leases.remove(connection);
+        try {
+            connection.close();
+        } finally {
+            if (pool != null) {
+                this.release(pool);
+            }
+        }
+    }
+
+    private TenantPool acquire(final String tenant) {
+        while (true) {
+            CompletableFuture<TenantPool> future = this.pools.get(tenant);
+            if (future == null) {
+                // Creating a pool retrieves the credentials and opens
+                // connections, so it's not done in the map.
+                final CompletableFuture<TenantPool> created = new CompletableFuture<>();
+                future = this.pools.putIfAbsent(tenant, created);
+                if (future == null) {
+                    future = created;
+                    try {
+                        created.complete(this.createPool(tenant));
+                    } catch (final RuntimeException e) {
+                        this.pools.remove(tenant, created);
+                        created.completeExceptionally(e);
+                    }
+                }
+            }
+            final TenantPool pool;
+            try {
+                pool = future.join();
+            } catch (final CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                        : e;
+            }
+            if (pool.acquire()) {
+                return pool;
+            }
+            // It was closed after we got it, so a new one is created.
+            this.pools.remove(tenant, future);
+        }
+    }
+
+    /**
+     * @return The pools that are open, without the ones still being created.
+     */
+    private List<TenantPool> getOpenPools() {
+        final List<TenantPool> openPools = new ArrayList<>();
+        for (final CompletableFuture<TenantPool> future : this.pools.values()) {
+            if (future.isDone() && !future.isCompletedExceptionally()) {
+                openPools.add(future.join());
+            }
+        }
+        return openPools;
+    }
+
+    private void removePool(final TenantPool pool) {
+        final CompletableFuture<TenantPool> future = this.pools.get(pool.tenant);
+        if (future != null && future.getNow(null) == pool) {
+            this.pools.remove(pool.tenant, future);
+        }
+    }
+
+    private void release(final TenantPool pool) {
+        pool.release();
+        if (pool.retired && pool.tryClose()) {
+            this.close(pool);
+        }
+    }
+
+    private TenantPool createPool(final String tenant) {
+        Preconditions.checkArgument(TENANT_PATTERN.matcher(tenant).matches(),
+                "Invalid tenant identifier: '%s'", tenant);
+        log.info("Creating the connection pool of tenant '{}' for bundle '{}'.", tenant,
+                this.name);
+
+        final RemoteCredentialDataSourceFactory tenantFactory = OBJECT_MAPPER
+                .convertValue(this.dataSourceFactory, RemoteCredentialDataSourceFactory.class);
+        tenantFactory.setUrl(this.replaceTenant(this.configuration.getUrlTemplate(), tenant));
+        if (this.configuration.getPrivateKeyFileTemplate() != null) {
+            tenantFactory.setPrivateKeyFile(
+                    this.replaceTenant(this.configuration.getPrivateKeyFileTemplate(), tenant));
+        }
+        if (this.configuration.getPublicKeyFileTemplate() != null) {
+            tenantFactory.setPublicKeyFile(
+                    this.replaceTenant(this.configuration.getPublicKeyFileTemplate(), tenant));
+        }
+
+        CredentialStorageServiceClient client = null;
+        Credential credential = null;
+        ManagedDataSource dataSource = null;
+        try {
+            if (tenantFactory.isRetrieveCredentials()) {
+                client = this.refreshService.getClient(tenantFactory);
+                credential = client.getCredential();
+                RemoteCredentialHibernateBundle.applyCredential(tenantFactory, credential);
+            }
+            this.removeMetrics(tenant);
+            dataSource = tenantFactory.build(this.metricRegistry, this.getPoolName(tenant));
+            dataSource.start();
+        } catch (final Exception e) {
+            if (dataSource != null) {
+                this.stopQuietly(tenant, dataSource);
+            }
+            throw new IllegalStateException(
+                    "Failed to create the data source of tenant '" + tenant + "'.", e);
+        }
+        return new TenantPool(tenant, dataSource, client, credential);
+    }
+
+    private String replaceTenant(final String template, final String tenant) {
+        return template.replace(MultiTenancyConfiguration.TENANT_PLACEHOLDER, tenant);
+    }
+
+    private String getPoolName(final String tenant) {
+        return MetricRegistry.name(this.name, "tenants", tenant);
+    }
+
+    /**
+     * Retrieves the credentials of every open tenant pool and swaps them if
+     * they were updated. HikariCP pools are rotated in place, other pools are
+     * closed and recreated the next time the tenant is used.
+     */
+    void refreshCredentials() {
+        for (final TenantPool pool : this.getOpenPools()) {
+            if (pool.client == null) {
+                continue;
+            }
+            try {
+                final Credential credential = pool.client.getCredential();
+                if (credential.equals(pool.credential)) {
+                    continue;
+                }
+                log.info("Credentials of tenant '{}' updated.", pool.tenant);
+                if (HikariPools.isHikari(pool.dataSource)) {
+                    HikariPools.swapCredentials(pool.dataSource, credential.getPrimary(),
+                            RemoteCredentialHibernateBundle.getPassword(credential));
+                    pool.credential = credential;
+                    HikariPools.softEvictConnections(pool.dataSource);
+                } else {
+                    this.retire(pool);
+                }
+            } catch (final Exception e) {
+                log.error("Failed to retrieve the credentials of tenant '{}'.", pool.tenant, e);
+            }
+        }
+    }
+
+    /**
+     * Closes the pools that were not used for longer than the idle timeout.
+     */
+    void evictIdle() {
+        final long idleTimeout = this.configuration.getIdleTimeout().toNanoseconds();
+        for (final TenantPool pool : this.getOpenPools()) {
+            if (System.nanoTime() - pool.lastAccess >= idleTimeout && pool.tryClose()) {
+                log.info("Tenant '{}' of bundle '{}' is idle. Closing its connection pool.",
+                        pool.tenant, this.name);
+                this.removePool(pool);
+                this.close(pool);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    int size() {
+        return this.pools.size();
+    }
+
+    private void retire(final TenantPool pool) {
+        this.removePool(pool);
+        pool.retired = true;
+        if (pool.tryClose()) {
+            this.close(pool);
+        }
+    }
+
+    private void close(final TenantPool pool) {
+        this.stopQuietly(pool.tenant, pool.dataSource);
+        this.removeMetrics(pool.tenant);
+    }
+
+    private void stopQuietly(final String tenant, final ManagedDataSource dataSource) {
+        try {
+            dataSource.stop();
+        } catch (final Exception e) {
+            log.warn("Failed to stop the data source of tenant '{}'.", tenant, e);
+        }
+    }
+
+    private void removeMetrics(final String tenant) {
+        final String prefix = this.getPoolName(tenant) + ".";
+        this.metricRegistry.removeMatching((metricName, metric) -> metricName.startsWith(prefix));
+    }
+
+    @Override
+    public void start() throws Exception {
+    }
+
+    @Override
+    public void stop() throws Exception {
+        for (final TenantPool pool : this.getOpenPools()) {
+            this.removePool(pool);
+            this.close(pool);
+        }
+    }
+
+    private static class TenantPool {
+        private final String tenant;
+        private final ManagedDataSource dataSource;
+        private final CredentialStorageServiceClient client;
+        private volatile Credential credential;
+
+        // The number of connections in use, or -1 once the pool is closed.
+        private final AtomicInteger users = new AtomicInteger();
+        private volatile long lastAccess = System.nanoTime();
+        private volatile boolean retired;
+
+        TenantPool(final String tenant, final ManagedDataSource dataSource,
+                final CredentialStorageServiceClient client, final Credential credential) {
+            this.tenant = tenant;
+            this.dataSource = dataSource;
+            this.client = client;
+            this.credential = credential;
+        }
+
+        boolean acquire() {
+            while (true) {
+                final int current = this.users.get();
+                if (current < 0) {
+                    return false;
+                }
+                if (this.users.compareAndSet(current, current + 1)) {
+                    this.lastAccess = System.nanoTime();
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            this.lastAccess = System.nanoTime();
+            this.users.decrementAndGet();
+        }
+
+        boolean tryClose() {
+            return this.users.compareAndSet(0, -1);
+        }
+    }
+}
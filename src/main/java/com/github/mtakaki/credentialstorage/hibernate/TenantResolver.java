@@ -0,0 +1,15 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+/**
+ * Resolves the tenant of the unit of work being started, for bundles
+ * configured with {@link MultiTenancyConfiguration}. It's usually backed by a
+ * thread local set by a request filter, from a header or the authenticated
+ * principal.
+ */
+public interface TenantResolver {
+    /**
+     * @return The identifier of the current tenant, or {@code null} to use the
+     *         default tenant.
+     */
+    String resolveTenantIdentifier();
+}
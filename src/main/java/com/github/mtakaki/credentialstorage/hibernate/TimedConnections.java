@@ -0,0 +1,133 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import javax.sql.DataSource;
+
+/**
+ * Wraps JDBC connections so the statements they execute are timed and
+ * given to a {@link StatementRecorder}. The parameters of the prepared
+ * statements are kept while the statement is open, so they can be replayed
+ * with the same values.
+ */
+final class TimedConnections {
+    private TimedConnections() {
+    }
+
+    /**
+     * @param connection
+     *            The connection to be wrapped.
+     * @param dataSource
+     *            The data source the connection belongs to.
+     * @param recorder
+     *            Where the statements are recorded.
+     * @return The wrapped connection.
+     */
+    static Connection wrap(final Connection connection, final DataSource dataSource,
+            final StatementRecorder recorder) {
+        return (Connection) Proxy.newProxyInstance(TimedConnections.class.getClassLoader(),
+                new Class<?>[] { Connection.class },
+                new ConnectionHandler(connection, dataSource, recorder));
+    }
+
+    private static Object invoke(final Object target, final Method method, final Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static class ConnectionHandler implements InvocationHandler {
+        private final Connection connection;
+        private final DataSource dataSource;
+        private final StatementRecorder recorder;
+
+        ConnectionHandler(final Connection connection, final DataSource dataSource,
+                final StatementRecorder recorder) {
+            this.connection = connection;
+            this.dataSource = dataSource;
+            this.recorder = recorder;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+                throws Throwable {
+            final Object result = TimedConnections.invoke(this.connection, method, args);
+            if (!(result instanceof Statement)) {
+                return result;
+            }
+            // prepareStatement and prepareCall receive the statement, while
+            // createStatement receives it when it's executed.
+            final String sql = args != null && args.length > 0 && args[0] instanceof String
+                    ? (String) args[0] : null;
+            return Proxy.newProxyInstance(TimedConnections.class.getClassLoader(),
+                    new Class<?>[] { method.getReturnType() },
+                    new StatementHandler((Statement) result, sql, this.dataSource,
+                            this.recorder));
+        }
+    }
+
+    private static class StatementHandler implements InvocationHandler {
+        private static final Object[] NO_PARAMETERS = new Object[0];
+
+        private final Statement statement;
+        private final String sql;
+        private final DataSource dataSource;
+        private final StatementRecorder recorder;
+        private Object[] parameters = NO_PARAMETERS;
+
+        StatementHandler(final Statement statement, final String sql,
+                final DataSource dataSource, final StatementRecorder recorder) {
+            this.statement = statement;
+            this.sql = sql;
+            this.dataSource = dataSource;
+            this.recorder = recorder;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+                throws Throwable {
+            final String name = method.getName();
+            if (name.startsWith("execute")) {
+                return this.execute(method, args);
+            }
+            if (this.sql != null && name.startsWith("set") && args != null && args.length >= 2
+                    && args[0] instanceof Integer) {
+                // The second argument of setNull is the SQL type.
+                this.setParameter((Integer) args[0], "setNull".equals(name) ? null : args[1]);
+            } else if ("clearParameters".equals(name)) {
+                this.parameters = NO_PARAMETERS;
+            }
+            return TimedConnections.invoke(this.statement, method, args);
+        }
+
+        private Object execute(final Method method, final Object[] args) throws Throwable {
+            final long start = System.nanoTime();
+            final Object result = TimedConnections.invoke(this.statement, method, args);
+            final long elapsed = System.nanoTime() - start;
+            if (this.sql != null) {
+                this.recorder.record(this.dataSource, this.sql,
+                        "executeBatch".equals(method.getName()) ? null : this.parameters,
+                        elapsed);
+            } else if (args != null && args.length > 0 && args[0] instanceof String) {
+                this.recorder.record(this.dataSource, (String) args[0], null, elapsed);
+            }
+            return result;
+        }
+
+        private void setParameter(final int index, final Object value) {
+            if (index > this.parameters.length) {
+                this.parameters = Arrays.copyOf(this.parameters, index);
+            }
+            this.parameters[index - 1] = value;
+        }
+    }
+}
@@ -45,6 +45,37 @@ public @interface UnitOfWork {
      */
     boolean transactional() default true;
 
+    /**
+     * If {@code true}, the session and the transaction are only opened the
+     * first time the session is used through {@link BundleAbstractDAO}. A
+     * pooled connection is not checked out if the method never touches the
+     * database.
+     *
+     * @return {@code true} if the session is opened on demand.
+     */
+    boolean lazy() default false;
+
+    /**
+     * If {@code true}, the transaction is committed and the connection is
+     * returned to the pool when the resource method returns, but the session
+     * is kept open until the response is written. Lazy associations can then
+     * be loaded while the response is serialized, with short auto-commit
+     * reads. Nothing is flushed after the commit.
+     *
+     * @return {@code true} if the session is kept open during serialization.
+     */
+    boolean openSessionInView() default false;
+
+    /**
+     * What to do when another unit of work of the same bundle is already
+     * running in the thread. By default it joins its session and transaction,
+     * so nested units of work don't check out another connection.
+     *
+     * @see UnitOfWorkPropagation
+     * @return The propagation of this unit of work.
+     */
+    UnitOfWorkPropagation propagation() default UnitOfWorkPropagation.REQUIRED;
+
     /**
      * The {@link CacheMode} for the session.
      *
@@ -63,6 +94,69 @@ public @interface UnitOfWork {
      */
     FlushMode flushMode() default FlushMode.AUTO;
 
+    /**
+     * The JDBC fetch size of the queries and criteria created through
+     * {@link BundleAbstractDAO}, such as a large one for exports. If zero,
+     * {@code hibernate.jdbc.fetch_size} is used.
+     *
+     * @see org.hibernate.Query#setFetchSize(int)
+     * @return The fetch size of this unit of work.
+     */
+    int fetchSize() default 0;
+
+    /**
+     * If greater than zero, the session is flushed every time this number of
+     * entities is persisted through {@link BundleAbstractDAO}, so the
+     * inserts are sent in batches while the unit of work runs. Each flush is
+     * sent in JDBC batches of up to {@code hibernate.jdbc.batch_size}. The
+     * flushed entities stay in the session, so its memory is not bounded
+     * unless {@link #clearAfterFlush()} is set.
+     *
+     * @return The number of entities persisted between flushes.
+     */
+    int batchSize() default 0;
+
+    /**
+     * If {@code true}, the session is also cleared after every flush of
+     * {@link #batchSize()}, so only one batch is kept in memory. All the
+     * entities of the session are detached, including the ones loaded before,
+     * and their changes after the flush are not saved unless they are merged.
+     *
+     * @see org.hibernate.Session#clear()
+     * @return {@code true} if the session is cleared after every batch.
+     */
+    boolean clearAfterFlush() default false;
+
+    /**
+     * If {@code true}, the queries and criteria created through
+     * {@link BundleAbstractDAO} use the query cache. It requires
+     * {@code hibernate.cache.use_query_cache}.
+     *
+     * @see org.hibernate.Query#setCacheable(boolean)
+     * @return {@code true} if the queries are cacheable.
+     */
+    boolean cacheable() default false;
+
+    /**
+     * If greater than zero, at most this number of invocations of the method
+     * run at the same time, besides the limit of the bundle. The others wait
+     * in the queue of the bundle's {@code bulkhead} or are rejected with
+     * {@code 503}. Only the outermost unit of work of the thread is limited.
+     *
+     * @return The maximum number of concurrent invocations.
+     */
+    int maxConcurrent() default 0;
+
+    /**
+     * The pool partition the connections are taken from. By default the
+     * read-only units of work use the {@code read} partition and the others
+     * use the {@code write} partition, if they are configured, or the pool of
+     * the bundle otherwise.
+     *
+     * @return The name of the pool partition.
+     */
+    String partition() default "";
+
     /**
      * The name of a hibernate bundle (session factory) that specifies a
      * datasource against which a transaction will be opened.
@@ -0,0 +1,48 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.lang.reflect.Method;
+
+/**
+ * The admission of an outermost unit of work by the {@link Bulkhead} of its
+ * bundle. The permit is held until it's released, which can only happen
+ * once.
+ */
+final class UnitOfWorkAdmission {
+    private Bulkhead.Permit permit;
+
+    private UnitOfWorkAdmission(final Bulkhead.Permit permit) {
+        this.permit = permit;
+    }
+
+    /**
+     * Waits for the bulkhead of the bundle, if it has one.
+     *
+     * @param bundle
+     *            The bundle of the unit of work.
+     * @param unitOfWork
+     *            The annotation of the unit of work.
+     * @param method
+     *            The annotated method, which may be {@code null}.
+     * @return The admission, which must be released once the unit of work is
+     *         done with the database.
+     * @throws javax.ws.rs.ServiceUnavailableException
+     *             If the bulkhead rejected it.
+     */
+    static UnitOfWorkAdmission admit(final RemoteCredentialHibernateBundle<?> bundle,
+            final UnitOfWork unitOfWork, final Method method) {
+        final Bulkhead bulkhead = bundle.getBulkhead();
+        return new UnitOfWorkAdmission(
+                bulkhead == null ? null : bulkhead.acquire(unitOfWork, method));
+    }
+
+    /**
+     * Releases the permit, so the next unit of work can be admitted. It does
+     * nothing if it was already released.
+     */
+    void release() {
+        if (this.permit != null) {
+            this.permit.release();
+            this.permit = null;
+        }
+    }
+}
@@ -29,6 +29,7 @@ import org.hibernate.SessionFactory;
 public class UnitOfWorkApplicationListener implements ApplicationEventListener {
     private final Map<Method, UnitOfWork> methodMap = new HashMap<>();
     private final Map<String, RemoteCredentialHibernateBundle<?>> bundles = new HashMap<>();
+    private volatile boolean serverTiming;
 
     public UnitOfWorkApplicationListener() {
     }
@@ -62,31 +63,69 @@ public class UnitOfWorkApplicationListener implements ApplicationEventListener {
         this.bundles.put(name, bundle);
     }
 
+    /**
+     * Sends the database time of the requests with a unit of work in the
+     * {@code Server-Timing} header of their responses. Only the bundles with
+     * {@code serverTiming} enabled count their connections and statements.
+     */
+    public void enableServerTiming() {
+        this.serverTiming = true;
+    }
+
     private static class UnitOfWorkEventListener implements RequestEventListener {
         private final Map<Method, UnitOfWork> methodMap;
         private final UnitOfWorkAspect unitOfWorkAspect;
+        private final boolean serverTiming;
+        private ServerTiming timing;
 
         public UnitOfWorkEventListener(final Map<Method, UnitOfWork> methodMap,
-                final Map<String, RemoteCredentialHibernateBundle<?>> sessionFactories) {
+                final Map<String, RemoteCredentialHibernateBundle<?>> sessionFactories,
+                final boolean serverTiming) {
             this.methodMap = methodMap;
             this.unitOfWorkAspect = new UnitOfWorkAspect(sessionFactories);
+            this.serverTiming = serverTiming;
         }
 
         @Override
         public void onEvent(final RequestEvent event) {
             if (event.getType() == RequestEvent.Type.RESOURCE_METHOD_START) {
-                final UnitOfWork unitOfWork = this.methodMap.get(event.getUriInfo()
-                        .getMatchedResourceMethod().getInvocable().getDefinitionMethod());
-                this.unitOfWorkAspect.beforeStart(unitOfWork);
+                final Method method = event.getUriInfo().getMatchedResourceMethod()
+                        .getInvocable().getDefinitionMethod();
+                final UnitOfWork unitOfWork = this.methodMap.get(method);
+                if (this.serverTiming && unitOfWork != null) {
+                    this.timing = ServerTiming.start();
+                }
+                this.unitOfWorkAspect.beforeStart(unitOfWork, method);
             } else if (event.getType() == RequestEvent.Type.RESP_FILTERS_START) {
                 try {
                     this.unitOfWorkAspect.afterEnd();
                 } catch (final Exception e) {
                     throw new MappableException(e);
+                } finally {
+                    this.addServerTiming(event);
                 }
             } else if (event.getType() == RequestEvent.Type.ON_EXCEPTION) {
                 this.unitOfWorkAspect.onError();
+            } else if (event.getType() == RequestEvent.Type.FINISHED) {
+                // Closes the session kept open for the view.
+                this.unitOfWorkAspect.afterResponse();
+                if (this.timing != null) {
+                    ServerTiming.stop();
+                    this.timing = null;
+                }
+            }
+        }
+
+        private void addServerTiming(final RequestEvent event) {
+            if (this.timing == null) {
+                return;
+            }
+            ServerTiming.stop();
+            if (event.getContainerResponse() != null) {
+                event.getContainerResponse().getHeaders().add(ServerTiming.HEADER,
+                        this.timing.toHeader());
             }
+            this.timing = null;
         }
     }
 
@@ -109,7 +148,7 @@ public class UnitOfWorkApplicationListener implements ApplicationEventListener {
 
     @Override
     public RequestEventListener onRequest(final RequestEvent event) {
-        return new UnitOfWorkEventListener(this.methodMap, this.bundles);
+        return new UnitOfWorkEventListener(this.methodMap, this.bundles, this.serverTiming);
     }
 
     private void registerUnitOfWorkAnnotations(final ResourceMethod method) {
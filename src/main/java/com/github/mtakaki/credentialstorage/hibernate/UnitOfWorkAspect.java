@@ -1,8 +1,23 @@
 package com.github.mtakaki.credentialstorage.hibernate;
 
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
+import javax.sql.DataSource;
+
+import org.hibernate.ConnectionReleaseMode;
+import org.hibernate.Criteria;
+import org.hibernate.FlushMode;
+import org.hibernate.Query;
 import org.hibernate.Session;
+import org.hibernate.SessionBuilder;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.context.internal.ManagedSessionContext;
@@ -13,24 +28,127 @@ import lombok.RequiredArgsConstructor;
  * An aspect providing operations around a method with the {@link UnitOfWork}
  * annotation. It opens a Hibernate session and optionally a transaction.
  * <p>
+ * When {@link UnitOfWork#lazy()} is set, the session and the transaction are
+ * only opened the first time the session is requested through
+ * {@link BundleAbstractDAO}, and nothing is committed or closed if it never
+ * was.
+ * </p>
+ * <p>
+ * Read-only units of work never flush the session and mark the JDBC connection
+ * as read-only, so the database can run a read-only transaction. The
+ * connection is restored before the session is closed.
+ * </p>
+ * <p>
+ * With {@link UnitOfWork#openSessionInView()}, {@link #afterEnd()} only
+ * commits the transaction, which returns the connection to the pool, and the
+ * session is closed by {@link #afterResponse()} once the response is written.
+ * The bulkhead permit and the {@link SessionHolders} registration are released
+ * with the transaction, so the lazy loads of the view are neither admitted nor
+ * waited for by a rotation.
+ * </p>
+ * <p>
+ * If another unit of work of the same bundle is running in the thread, such
+ * as when a proxied method calls another one, the
+ * {@link UnitOfWork#propagation()} decides whether this one joins its session,
+ * runs within a savepoint of its transaction or suspends it. Only the unit of
+ * work that opened the session commits and closes it. A unit of work that is
+ * not read-only can't join a read-only one, as its changes would never be
+ * flushed.
+ * </p>
+ * <p>
+ * The {@link UnitOfWork#fetchSize()}, {@link UnitOfWork#batchSize()},
+ * {@link UnitOfWork#clearAfterFlush()} and {@link UnitOfWork#cacheable()} of
+ * the running unit of work, kept in its {@link UnitOfWorkHints}, are applied by
+ * {@link BundleAbstractDAO}. A unit of work that joins another one overrides
+ * them until it ends, when the ones of the outer unit of work are restored.
+ * Nothing is set on the connection, so nothing leaks to the pool.
+ * </p>
+ * <p>
+ * The connections of the session are taken from the pool partition selected
+ * by {@link UnitOfWork#partition()} or, by default, by
+ * {@link UnitOfWork#readOnly()}.
+ * </p>
+ * <p>
+ * The outermost unit of work of the thread is admitted by the {@link Bulkhead}
+ * of the bundle, which may reject it, and releases its
+ * {@link UnitOfWorkAdmission} once it ends.
+ * </p>
+ * <p>
+ * Its phases, and the opening and closing of its session, are recorded as
+ * Flight Recorder events, see {@link FlightRecorderEvents}.
+ * </p>
+ * <p>
+ * Callbacks registered with {@link #afterCommit(Runnable)} and
+ * {@link #afterRollback(Runnable)} run once the session is closed, on the
+ * callback executor of the bundle, and only if the transaction was
+ * respectively committed or rolled back.
+ * </p>
+ * <p>
  * It should be created for every invocation of the method.
  * </p>
  */
 @RequiredArgsConstructor
 public class UnitOfWorkAspect {
+    private static final String JOINED_UNIT_OF_WORK_FAILED = "The unit of work was rolled back "
+            + "because a unit of work that joined it failed.";
+
     private final Map<String, RemoteCredentialHibernateBundle<?>> bundles;
 
     // Context variables
     private UnitOfWork unitOfWork;
+    private Method method;
     private Session session;
     private SessionFactory sessionFactory;
     private RemoteCredentialHibernateBundle<?> bundle;
     private SessionHolders sessionHolders;
+    private boolean holdingConnection;
+    private DataSource outerPartition;
+    private ReadOnlyConnection readOnlyConnection;
+    private List<Runnable> afterCommitCallbacks = Collections.emptyList();
+    private List<Runnable> afterRollbackCallbacks = Collections.emptyList();
+
+    // Propagation variables
+    private UnitOfWorkAspect outer;
+    private boolean joined;
+    private boolean rollbackOnly;
+    private Session nestedSession;
+    private Savepoint savepoint;
+    private SuspendedSession suspendedSession;
+
+    private UnitOfWorkAdmission admission;
+
+    // Query hints
+    private UnitOfWorkHints hints;
+    private UnitOfWorkHints outerHints;
+    private int persisted;
 
     public void beforeStart(final UnitOfWork unitOfWork) {
+        this.beforeStart(unitOfWork, null);
+    }
+
+    /**
+     * Starts the unit of work of the given method.
+     *
+     * @param unitOfWork
+     *            The annotation of the method, or {@code null} if it has none.
+     * @param method
+     *            The annotated method, which is recorded in the Flight
+     *            Recorder events. It may be {@code null}.
+     */
+    public void beforeStart(final UnitOfWork unitOfWork, final Method method) {
         if (unitOfWork == null) {
             return;
         }
+        this.method = method;
+        final Object event = FlightRecorderEvents.beginUnitOfWork();
+        try {
+            this.start(unitOfWork);
+        } finally {
+            this.commitEvent(event, "beforeStart");
+        }
+    }
+
+    private void start(final UnitOfWork unitOfWork) {
         this.unitOfWork = unitOfWork;
 
         this.bundle = this.bundles.get(unitOfWork.value());
@@ -46,8 +164,255 @@ public class UnitOfWorkAspect {
                         "Unregistered Hibernate bundle: '" + unitOfWork.value() + "'");
             }
         }
-        this.sessionHolders = this.bundle.getSessionHolders();
-        this.sessionHolders.add(this);
+        this.hints = UnitOfWorkHints.of(unitOfWork);
+        this.outer = this.bundle.getCurrentUnitOfWork();
+        if (this.outer != null && unitOfWork.propagation() != UnitOfWorkPropagation.REQUIRES_NEW
+                && !unitOfWork.readOnly() && this.outer.isReadOnly()) {
+            // The session of the outer unit of work never flushes, so the
+            // changes would be silently lost.
+            throw new IllegalStateException("The unit of work of " + this.getMethodName()
+                    + " is not read-only and can't join a read-only unit of work. "
+                    + "Use REQUIRES_NEW to write.");
+        }
+        if (this.outer != null) {
+            switch (unitOfWork.propagation()) {
+            case REQUIRES_NEW:
+                this.suspendOuter();
+                break;
+            case NESTED:
+                if (this.outer.unitOfWork.transactional()) {
+                    this.beginNested();
+                    return;
+                }
+                this.joinOuter();
+                return;
+            default:
+                this.joinOuter();
+                return;
+            }
+        }
+        if (this.outer == null) {
+            // Nested units of work run within the admission of the outer one,
+            // so they never wait for it.
+            this.admission = UnitOfWorkAdmission.admit(this.bundle, unitOfWork, this.method);
+        }
+        // The BundleAbstractDAO uses it to open the session of lazy units of
+        // work.
+        this.bundle.setCurrentUnitOfWork(this);
+
+        if (unitOfWork.lazy()) {
+            return;
+        }
+        try {
+            this.openSession();
+        } catch (final Throwable th) {
+            this.clearCurrentUnitOfWork();
+            throw th;
+        }
+    }
+
+    private void joinOuter() {
+        this.joined = true;
+        // The outer unit of work keeps the hints this one doesn't set.
+        this.outerHints = this.outer.hints;
+        this.outer.hints = this.outerHints.overriddenBy(this.hints);
+    }
+
+    private void leaveOuter() {
+        this.outer.hints = this.outerHints;
+    }
+
+    private void suspendOuter() {
+        // The session of the outer unit of work is bound again once this one
+        // is done.
+        this.suspendedSession = SuspendedSession.suspend(this.bundle);
+    }
+
+    private void beginNested() {
+        // The savepoint is set in the transaction of the outer unit of work.
+        this.outer.ensureSessionOpen();
+        this.nestedSession = this.outer.getSession();
+        // The pending changes belong to the outer unit of work.
+        if (!FlushMode.isManualFlushMode(this.nestedSession.getFlushMode())) {
+            this.nestedSession.flush();
+        }
+        this.nestedSession.doWork(connection -> this.savepoint = connection.setSavepoint());
+        this.bundle.setCurrentUnitOfWork(this);
+    }
+
+    private void endNested() {
+        if (this.rollbackOnly) {
+            this.rollbackNested();
+            throw new IllegalStateException(JOINED_UNIT_OF_WORK_FAILED);
+        }
+        try {
+            // Writes the changes of this unit of work within its savepoint.
+            if (!FlushMode.isManualFlushMode(this.nestedSession.getFlushMode())) {
+                this.nestedSession.flush();
+            }
+            final Savepoint releasedSavepoint = this.savepoint;
+            this.nestedSession
+                    .doWork(connection -> releaseSavepoint(connection, releasedSavepoint));
+        } catch (final RuntimeException e) {
+            this.rollbackNested();
+            throw e;
+        }
+        this.savepoint = null;
+        this.nestedSession = null;
+        this.clearCurrentUnitOfWork();
+        // The callbacks depend on the outcome of the outer transaction.
+        for (final Runnable callback : this.afterCommitCallbacks) {
+            this.outer.afterCommit(callback);
+        }
+        for (final Runnable callback : this.afterRollbackCallbacks) {
+            this.outer.afterRollback(callback);
+        }
+    }
+
+    private void rollbackNested() {
+        final Savepoint rolledBackSavepoint = this.savepoint;
+        try {
+            this.nestedSession.doWork(connection -> connection.rollback(rolledBackSavepoint));
+            // The session may still hold the changes that were rolled back.
+            this.nestedSession.clear();
+        } catch (final RuntimeException e) {
+            this.outer.rollbackOnly = true;
+            throw e;
+        } finally {
+            this.savepoint = null;
+            this.nestedSession = null;
+            this.clearCurrentUnitOfWork();
+        }
+        this.runCallbacks(this.afterRollbackCallbacks);
+    }
+
+    private static void releaseSavepoint(final Connection connection, final Savepoint savepoint)
+            throws SQLException {
+        try {
+            connection.releaseSavepoint(savepoint);
+        } catch (final SQLFeatureNotSupportedException e) {
+            // It's released with the transaction.
+        }
+    }
+
+    /**
+     * @return {@code true} if the session used by this unit of work is
+     *         read-only, which is the session of the outer unit of work if it
+     *         joined it.
+     */
+    private boolean isReadOnly() {
+        if (this.joined || this.nestedSession != null) {
+            return this.outer.isReadOnly();
+        }
+        return this.unitOfWork.readOnly();
+    }
+
+    /**
+     * @return The session used by this unit of work, which is the session of
+     *         the outer unit of work if it's nested.
+     */
+    private Session getSession() {
+        return this.nestedSession != null ? this.nestedSession : this.session;
+    }
+
+    /**
+     * Opens the session of a lazy unit of work, if it's not open yet. It's
+     * called when the session is first needed.
+     */
+    void ensureSessionOpen() {
+        if (this.unitOfWork == null || this.session != null || this.nestedSession != null) {
+            return;
+        }
+        this.openSession();
+    }
+
+    /**
+     * Applies the fetch size and the query cache usage of this unit of work.
+     *
+     * @param query
+     *            A query created by a DAO.
+     */
+    void applyHints(final Query query) {
+        this.hints.apply(query);
+    }
+
+    /**
+     * Applies the fetch size and the query cache usage of this unit of work.
+     *
+     * @param criteria
+     *            A criteria created by a DAO.
+     */
+    void applyHints(final Criteria criteria) {
+        this.hints.apply(criteria);
+    }
+
+    /**
+     * Counts an entity persisted by a DAO and flushes the session once the
+     * batch size is reached, clearing it if {@link UnitOfWork#clearAfterFlush()}
+     * is set.
+     */
+    void afterPersist() {
+        final int batchSize = this.hints.getBatchSize();
+        if (batchSize == 0 || ++this.persisted % batchSize != 0) {
+            return;
+        }
+        final Session currentSession = this.getSession();
+        if (currentSession != null
+                && !FlushMode.isManualFlushMode(currentSession.getFlushMode())) {
+            currentSession.flush();
+            if (this.hints.isClearAfterFlush()) {
+                currentSession.clear();
+            }
+        }
+    }
+
+    /**
+     * Registers a callback that runs after the transaction of this unit of
+     * work is committed. Nothing is run if it's rolled back.
+     *
+     * @param callback
+     *            The callback, such as a cache invalidation or a notification.
+     */
+    public void afterCommit(final Runnable callback) {
+        if (this.afterCommitCallbacks.isEmpty()) {
+            this.afterCommitCallbacks = new ArrayList<>();
+        }
+        this.afterCommitCallbacks.add(callback);
+    }
+
+    /**
+     * Registers a callback that runs after the transaction of this unit of
+     * work is rolled back.
+     *
+     * @param callback
+     *            The callback to be executed.
+     */
+    public void afterRollback(final Runnable callback) {
+        if (this.afterRollbackCallbacks.isEmpty()) {
+            this.afterRollbackCallbacks = new ArrayList<>();
+        }
+        this.afterRollbackCallbacks.add(callback);
+    }
+
+    private void openSession() {
+        final Object event = FlightRecorderEvents.beginSession();
+        try {
+            this.doOpenSession();
+        } finally {
+            this.commitEvent(event, "open");
+        }
+    }
+
+    private void doOpenSession() {
+        this.sessionHolders = this.bundle.addSessionHolder(this);
+        this.holdingConnection = true;
+        final DataSource partition;
+        try {
+            partition = this.selectPartition();
+        } catch (final RuntimeException e) {
+            this.releaseConnectionHold();
+            throw e;
+        }
 
         // We need to get the current session factory.
         this.sessionFactory = this.bundle.getSessionFactory();
@@ -55,7 +420,12 @@ public class UnitOfWorkAspect {
         // it's used by the BundleAbstractDAO.
         this.bundle.setCurrentThreadSessionFactory(this.sessionFactory);
 
-        this.session = this.sessionFactory.openSession();
+        this.session = this.createSession();
+        // The connection provider of the session factory takes the
+        // connections from it. They are only acquired once the session needs
+        // one.
+        this.outerPartition = this.bundle.getCurrentPartition();
+        this.bundle.setCurrentPartition(partition);
         try {
             this.configureSession();
             ManagedSessionContext.bind(this.session);
@@ -64,49 +434,284 @@ public class UnitOfWorkAspect {
             this.session.close();
             this.session = null;
             ManagedSessionContext.unbind(this.sessionFactory);
-            this.sessionHolders.remove(this);
+            this.releaseConnectionHold();
+            this.bundle.setCurrentPartition(this.outerPartition);
             throw th;
         }
     }
 
+    private DataSource selectPartition() {
+        final String name = this.unitOfWork.partition();
+        if (name.isEmpty()) {
+            return this.sessionHolders.getPartition(this.unitOfWork.readOnly()
+                    ? RemoteCredentialDataSourceFactory.READ_PARTITION
+                    : RemoteCredentialDataSourceFactory.WRITE_PARTITION);
+        }
+        final DataSource partition = this.sessionHolders.getPartition(name);
+        if (partition == null) {
+            throw new IllegalArgumentException("Unknown pool partition: '" + name + "'");
+        }
+        return partition;
+    }
+
+    private Session createSession() {
+        final String tenantIdentifier = this.bundle.resolveTenantIdentifier();
+        if (tenantIdentifier == null && !this.unitOfWork.openSessionInView()) {
+            return this.sessionFactory.openSession();
+        }
+        SessionBuilder sessionBuilder = this.sessionFactory.withOptions();
+        if (tenantIdentifier != null) {
+            sessionBuilder = sessionBuilder.tenantIdentifier(tenantIdentifier);
+        }
+        if (this.unitOfWork.openSessionInView()) {
+            // The connection is returned to the pool at commit, even if the
+            // session stays open for the view.
+            sessionBuilder = sessionBuilder
+                    .connectionReleaseMode(ConnectionReleaseMode.AFTER_TRANSACTION);
+        }
+        return sessionBuilder.openSession();
+    }
+
     public void afterEnd() {
+        final Object event = this.unitOfWork == null ? null
+                : FlightRecorderEvents.beginUnitOfWork();
+        try {
+            this.end();
+        } finally {
+            this.commitEvent(event, "afterEnd");
+        }
+    }
+
+    private void end() {
+        if (this.joined) {
+            // The outer unit of work commits.
+            this.leaveOuter();
+            return;
+        }
+        if (this.nestedSession != null) {
+            this.endNested();
+            return;
+        }
         if (this.session == null) {
+            this.clearCurrentUnitOfWork();
+            // Nothing was written, so there's nothing to roll back.
+            this.runCallbacks(this.afterCommitCallbacks);
             return;
         }
+        if (this.rollbackOnly) {
+            try {
+                this.rollbackTransaction();
+            } finally {
+                this.closeSession();
+            }
+            this.runCallbacks(this.afterRollbackCallbacks);
+            throw new IllegalStateException(JOINED_UNIT_OF_WORK_FAILED);
+        }
 
         try {
             this.commitTransaction();
         } catch (final Exception e) {
-            this.rollbackTransaction();
+            try {
+                this.rollbackTransaction();
+            } finally {
+                this.closeSession();
+            }
+            this.runCallbacks(this.afterRollbackCallbacks);
             throw e;
+        }
+        if (this.unitOfWork.openSessionInView()) {
+            this.keepSessionForView();
+        } else {
+            this.closeSession();
+        }
+        this.runCallbacks(this.afterCommitCallbacks);
+    }
+
+    /**
+     * Closes the session kept open by an open-session-in-view unit of work.
+     * It's called once the response is written and does nothing otherwise.
+     */
+    public void afterResponse() {
+        if (this.session == null) {
+            return;
+        }
+        final Object event = FlightRecorderEvents.beginUnitOfWork();
+        try {
+            this.closeSession();
         } finally {
-            this.session.close();
-            this.session = null;
-            ManagedSessionContext.unbind(this.sessionFactory);
-            this.sessionHolders.remove(this);
+            this.commitEvent(event, "afterResponse");
         }
+    }
+
+    private void keepSessionForView() {
+        try {
+            // The connection was already released, so the read-only flag is
+            // restored by the pool.
+            this.resetReadOnlyConnection();
+            // Anything changed while the response is serialized is not
+            // written.
+            this.session.setFlushMode(FlushMode.MANUAL);
+        } catch (final RuntimeException e) {
+            this.closeSession();
+            throw e;
+        }
+        // The connection is back in the pool, so a slow client doesn't keep a
+        // bulkhead slot or hold back the drain of a rotation while the view
+        // is rendered.
+        this.releaseConnectionHold();
+        if (this.admission != null) {
+            this.admission.release();
+            this.admission = null;
+        }
+    }
 
+    private void releaseConnectionHold() {
+        if (this.holdingConnection) {
+            this.holdingConnection = false;
+            this.sessionHolders.remove(this);
+        }
     }
 
     public void onError() {
+        final Object event = this.unitOfWork == null ? null
+                : FlightRecorderEvents.beginUnitOfWork();
+        try {
+            this.error();
+        } finally {
+            this.commitEvent(event, "onError");
+        }
+    }
+
+    private void error() {
+        if (this.joined) {
+            // The outer unit of work is rolled back, even if it handles the
+            // exception.
+            this.outer.rollbackOnly = true;
+            this.leaveOuter();
+            return;
+        }
+        if (this.nestedSession != null) {
+            this.rollbackNested();
+            return;
+        }
         if (this.session == null) {
+            // Also when it was rejected by the bulkhead.
+            this.clearCurrentUnitOfWork();
+            this.runCallbacks(this.afterRollbackCallbacks);
             return;
         }
 
         try {
             this.rollbackTransaction();
         } finally {
+            this.closeSession();
+        }
+        this.runCallbacks(this.afterRollbackCallbacks);
+    }
+
+    private void runCallbacks(final List<Runnable> callbacks) {
+        // Both are cleared once the outcome is known, so an afterEnd() after
+        // onError() doesn't run the afterCommit callbacks.
+        this.afterCommitCallbacks = Collections.emptyList();
+        this.afterRollbackCallbacks = Collections.emptyList();
+        if (callbacks.isEmpty()) {
+            return;
+        }
+
+        final UnitOfWorkCallbackExecutor callbackExecutor = this.bundle.getCallbackExecutor();
+        if (callbackExecutor != null) {
+            callbackExecutor.execute(callbacks);
+        } else {
+            // The bundle is not running, so the callbacks run right away.
+            for (final Runnable callback : callbacks) {
+                callback.run();
+            }
+        }
+    }
+
+    private void closeSession() {
+        final Object event = FlightRecorderEvents.beginSession();
+        try {
+            this.doCloseSession();
+        } finally {
+            this.commitEvent(event, "close");
+        }
+    }
+
+    private void doCloseSession() {
+        try {
+            this.resetReadOnlyConnection();
             this.session.close();
+        } finally {
             this.session = null;
             ManagedSessionContext.unbind(this.sessionFactory);
-            this.sessionHolders.remove(this);
+            this.releaseConnectionHold();
+            this.bundle.setCurrentPartition(this.outerPartition);
+            this.outerPartition = null;
+            this.clearCurrentUnitOfWork();
+        }
+    }
+
+    /**
+     * @return The name of the bundle of this unit of work, or {@code null} if
+     *         it was not started.
+     */
+    String getBundleName() {
+        return this.bundle == null ? null : this.bundle.name();
+    }
+
+    /**
+     * @return The generation of the session factory used by this unit of
+     *         work, or {@code 0} if it has no session yet.
+     */
+    long getGeneration() {
+        if (this.sessionHolders != null) {
+            return this.sessionHolders.getGeneration();
+        }
+        return this.outer == null ? 0 : this.outer.getGeneration();
+    }
+
+    /**
+     * @return The annotated method, such as {@code PersonResource.find}, or
+     *         {@code null} if it's unknown.
+     */
+    String getMethodName() {
+        return this.method == null ? null
+                : this.method.getDeclaringClass().getSimpleName() + "." + this.method.getName();
+    }
+
+    private void commitEvent(final Object event, final String phase) {
+        if (event != null) {
+            FlightRecorderEvents.commit(event, this.getBundleName(), this.getGeneration(),
+                    this.getMethodName(), phase);
+        }
+    }
+
+    private void clearCurrentUnitOfWork() {
+        if (this.bundle == null) {
+            return;
+        }
+        // It's the last step of every unit of work, so the next one can be
+        // admitted.
+        if (this.admission != null) {
+            this.admission.release();
+            this.admission = null;
+        }
+        // The outer unit of work, if there's one, is resumed.
+        this.bundle.setCurrentUnitOfWork(this.outer);
+        if (this.suspendedSession != null) {
+            this.suspendedSession.resume();
+            this.suspendedSession = null;
         }
     }
 
     private void configureSession() {
         this.session.setDefaultReadOnly(this.unitOfWork.readOnly());
         this.session.setCacheMode(this.unitOfWork.cacheMode());
-        this.session.setFlushMode(this.unitOfWork.flushMode());
+        // Read-only units of work never flush, which skips the dirty checking
+        // at commit.
+        this.session.setFlushMode(
+                this.unitOfWork.readOnly() ? FlushMode.MANUAL : this.unitOfWork.flushMode());
     }
 
     private void beginTransaction() {
@@ -114,6 +719,16 @@ public class UnitOfWorkAspect {
             return;
         }
         this.session.beginTransaction();
+        if (this.unitOfWork.readOnly()) {
+            this.readOnlyConnection = ReadOnlyConnection.mark(this.session);
+        }
+    }
+
+    private void resetReadOnlyConnection() {
+        if (this.readOnlyConnection != null) {
+            this.readOnlyConnection.reset();
+            this.readOnlyConnection = null;
+        }
     }
 
     private void rollbackTransaction() {
@@ -131,8 +746,23 @@ public class UnitOfWorkAspect {
             return;
         }
         final Transaction txn = this.session.getTransaction();
-        if (txn != null && txn.isActive()) {
+        if (txn == null || !txn.isActive()) {
+            return;
+        }
+        final ServerTiming timing = this.bundle.isServerTiming() ? ServerTiming.current() : null;
+        if (timing == null) {
             txn.commit();
+            return;
+        }
+        // The session is flushed before the commit, like the commit would,
+        // so both are timed separately.
+        if (!FlushMode.isManualFlushMode(this.session.getFlushMode())) {
+            final long start = System.nanoTime();
+            this.session.flush();
+            timing.recordFlush(System.nanoTime() - start);
         }
+        final long start = System.nanoTime();
+        txn.commit();
+        timing.recordCommit(System.nanoTime() - start);
     }
 }
\ No newline at end of file
@@ -81,9 +81,11 @@ public class UnitOfWorkAwareProxyFactory {
                     final UnitOfWork unitOfWork = overridden.getAnnotation(UnitOfWork.class);
                     final UnitOfWorkAspect unitOfWorkAspect = new UnitOfWorkAspect(UnitOfWorkAwareProxyFactory.this.sessionFactories);
                     try {
-                        unitOfWorkAspect.beforeStart(unitOfWork);
+                        unitOfWorkAspect.beforeStart(unitOfWork, overridden);
                         final Object result = proceed.invoke(self, args);
                         unitOfWorkAspect.afterEnd();
+                        // There's no view to render outside Jersey.
+                        unitOfWorkAspect.afterResponse();
                         return result;
                     } catch (final InvocationTargetException e) {
                         unitOfWorkAspect.onError();
@@ -0,0 +1,63 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Runs the after-commit and after-rollback callbacks of the units of work off
+ * the request thread. It publishes the queue depth, the execution time and
+ * the rejected and failed callbacks as metrics.
+ */
+@Slf4j
+class UnitOfWorkCallbackExecutor {
+    private final Executor executor;
+    private final Timer executions;
+    private final Meter rejected;
+    private final Meter failed;
+
+    UnitOfWorkCallbackExecutor(final Executor executor, final BlockingQueue<Runnable> queue,
+            final MetricRegistry metricRegistry, final String name) {
+        this.executor = executor;
+        metricRegistry.register(MetricRegistry.name(name, "callbacks", "queueDepth"),
+                (Gauge<Integer>) queue::size);
+        this.executions = metricRegistry.timer(MetricRegistry.name(name, "callbacks", "executions"));
+        this.rejected = metricRegistry.meter(MetricRegistry.name(name, "callbacks", "rejected"));
+        this.failed = metricRegistry.meter(MetricRegistry.name(name, "callbacks", "failed"));
+    }
+
+    /**
+     * Submits the callbacks. A callback that fails, or is rejected because the
+     * queue is full, is logged and doesn't affect the others.
+     *
+     * @param callbacks
+     *            The callbacks to be executed.
+     */
+    void execute(final List<Runnable> callbacks) {
+        for (final Runnable callback : callbacks) {
+            try {
+                this.executor.execute(() -> this.run(callback));
+            } catch (final RejectedExecutionException e) {
+                this.rejected.mark();
+                log.warn("Unit of work callback rejected. The callback queue is full.", e);
+            }
+        }
+    }
+
+    private void run(final Runnable callback) {
+        try (Timer.Context context = this.executions.time()) {
+            callback.run();
+        } catch (final RuntimeException e) {
+            this.failed.mark();
+            log.error("Unit of work callback failed.", e);
+        }
+    }
+}
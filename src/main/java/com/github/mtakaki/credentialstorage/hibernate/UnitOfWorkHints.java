@@ -0,0 +1,78 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import org.hibernate.Criteria;
+import org.hibernate.Query;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * The query hints of a {@link UnitOfWork}: its
+ * {@link UnitOfWork#fetchSize()}, {@link UnitOfWork#batchSize()},
+ * {@link UnitOfWork#clearAfterFlush()} and {@link UnitOfWork#cacheable()}.
+ * They are immutable, so a unit of work that joins another one replaces the
+ * hints of the outer one and puts the previous ones back once it ends.
+ */
+@Getter
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+final class UnitOfWorkHints {
+    private final int fetchSize;
+    private final int batchSize;
+    private final boolean clearAfterFlush;
+    private final boolean cacheable;
+
+    /**
+     * @param unitOfWork
+     *            The annotation of the unit of work.
+     * @return The hints set in the annotation.
+     */
+    static UnitOfWorkHints of(final UnitOfWork unitOfWork) {
+        return new UnitOfWorkHints(unitOfWork.fetchSize(), unitOfWork.batchSize(),
+                unitOfWork.clearAfterFlush(), unitOfWork.cacheable());
+    }
+
+    /**
+     * @param inner
+     *            The hints of a unit of work joining this one.
+     * @return These hints, with the ones set by the inner unit of work
+     *         replacing them.
+     */
+    UnitOfWorkHints overriddenBy(final UnitOfWorkHints inner) {
+        final boolean batched = inner.batchSize > 0;
+        return new UnitOfWorkHints(inner.fetchSize > 0 ? inner.fetchSize : this.fetchSize,
+                batched ? inner.batchSize : this.batchSize,
+                batched ? inner.clearAfterFlush : this.clearAfterFlush,
+                this.cacheable || inner.cacheable);
+    }
+
+    /**
+     * Applies the fetch size and the query cache usage.
+     *
+     * @param query
+     *            A query created by a DAO.
+     */
+    void apply(final Query query) {
+        if (this.fetchSize > 0) {
+            query.setFetchSize(this.fetchSize);
+        }
+        if (this.cacheable) {
+            query.setCacheable(true);
+        }
+    }
+
+    /**
+     * Applies the fetch size and the query cache usage.
+     *
+     * @param criteria
+     *            A criteria created by a DAO.
+     */
+    void apply(final Criteria criteria) {
+        if (this.fetchSize > 0) {
+            criteria.setFetchSize(this.fetchSize);
+        }
+        if (this.cacheable) {
+            criteria.setCacheable(true);
+        }
+    }
+}
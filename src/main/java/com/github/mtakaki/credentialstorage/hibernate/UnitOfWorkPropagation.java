@@ -0,0 +1,28 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+/**
+ * What a {@link UnitOfWork} does when another unit of work of the same bundle
+ * is already running in the thread, such as a proxied method called by a
+ * resource method. Without one, a new session is always opened.
+ */
+public enum UnitOfWorkPropagation {
+    /**
+     * Joins the session and the transaction of the running unit of work, which
+     * commits and closes them. If the joining unit of work fails, the running
+     * one is rolled back even if it handles the exception.
+     */
+    REQUIRED,
+    /**
+     * Joins the session of the running unit of work, within a savepoint of its
+     * transaction. If it fails, only its changes are rolled back and the
+     * session is cleared. It behaves like {@link #REQUIRED} if the running unit
+     * of work is not transactional.
+     */
+    NESTED,
+    /**
+     * Suspends the running unit of work and opens a new session and
+     * transaction, with a connection of their own, which are committed and
+     * closed when it ends.
+     */
+    REQUIRES_NEW
+}
@@ -0,0 +1,52 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.validation.constraints.DecimalMax;
+import javax.validation.constraints.DecimalMin;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import io.dropwizard.util.Duration;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Controls the warm-up of a new session factory, before it starts serving
+ * units of work. A {@code samplingRate} of the read-only queries is recorded,
+ * keeping the {@code trackedQueries} most frequent shapes, and the
+ * {@code queries} most frequent ones are replayed against the new pool within
+ * {@code timeBudget}. The {@code hql} queries are always replayed, so the
+ * session factory built on boot is warmed up too. The bind values of the
+ * statements are only kept, and the statements with parameters executed, if
+ * {@code replayParameters} is set, as they may hold personal data.
+ */
+@Getter
+@Setter
+public class WarmUpConfiguration {
+    @Min(0)
+    @JsonProperty
+    private int queries = 20;
+    @Min(1)
+    @JsonProperty
+    private int trackedQueries = 200;
+    @DecimalMin("0")
+    @DecimalMax("1")
+    @JsonProperty
+    private double samplingRate = 0.05;
+    @NotNull
+    @JsonProperty
+    private Duration timeBudget = Duration.seconds(5);
+    @Min(1)
+    @JsonProperty
+    private int maxRows = 10;
+    @JsonProperty
+    private boolean replayParameters = false;
+    @NotNull
+    @JsonProperty
+    private List<String> hql = new ArrayList<>();
+}
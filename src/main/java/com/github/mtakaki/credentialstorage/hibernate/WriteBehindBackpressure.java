@@ -0,0 +1,21 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+/**
+ * What a {@link WriteBehindBuffer} does when it's full.
+ */
+public enum WriteBehindBackpressure {
+    /**
+     * The caller waits until there's room in the buffer.
+     */
+    BLOCK,
+    /**
+     * The entity is discarded and counted in the {@code dropped} meter.
+     */
+    DROP,
+    /**
+     * The caller writes the entity, together with a batch from the buffer,
+     * in its own thread. If the write fails, it's retried by the background
+     * writer.
+     */
+    CALLER_RUNS
+}
@@ -0,0 +1,390 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.hibernate.CacheMode;
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import io.dropwizard.lifecycle.Managed;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * An asynchronous buffer for fire-and-forget inserts, such as audit and event
+ * log entries. Request threads add entities to a bounded lock-free queue and a
+ * background writer saves them in batches, each batch in a single
+ * transaction, so many inserts share one commit.
+ * <p>
+ * The batches are only sent as JDBC batches if {@code hibernate.jdbc.batch_size}
+ * is set. The remaining entities are written when the buffer is stopped, so
+ * nothing is lost during a graceful shutdown.
+ * </p>
+ * <p>
+ * The entities are only kept in memory, so the ones still buffered are lost if
+ * the JVM dies. A batch that fails is retried up to
+ * {@link WriteBehindConfiguration#getMaxRetries()} times, with an exponential
+ * backoff, in a new session every time, so a credential rotation racing the
+ * write doesn't lose it. A batch is written at least once if one of the
+ * attempts commits, and it may be written twice if a commit succeeded but was
+ * reported as failed. Once the retries are exhausted, the batch is counted as
+ * {@code failed} and handed to the {@link WriteBehindFailureHandler}, if any,
+ * so the application can persist it elsewhere. A batch written by the caller,
+ * with {@link WriteBehindBackpressure#CALLER_RUNS}, is only tried once in the
+ * caller thread and its retries are left to the background writer.
+ * </p>
+ * <p>
+ * It's created with
+ * {@link RemoteCredentialHibernateBundle#createWriteBehindBuffer(String, WriteBehindConfiguration)}
+ * , which manages it in the application lifecycle.
+ * </p>
+ */
+@Slf4j
+public class WriteBehindBuffer implements Managed {
+    private final RemoteCredentialHibernateBundle<?> bundle;
+    private final String name;
+    private final WriteBehindConfiguration configuration;
+
+    private final Queue<Object> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    // The adds hold the read lock, so stop() knows that nothing is added
+    // after it takes the write lock.
+    private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private final Lock spaceLock = new ReentrantLock();
+    private final Condition notFull = this.spaceLock.newCondition();
+
+    private final Meter dropped;
+    private final Meter failed;
+    private final Timer writes;
+
+    private volatile ScheduledExecutorService writer;
+    private volatile boolean stopped;
+    private volatile WriteBehindFailureHandler failureHandler;
+
+    WriteBehindBuffer(final RemoteCredentialHibernateBundle<?> bundle, final String name,
+            final WriteBehindConfiguration configuration, final MetricRegistry metricRegistry) {
+        this.bundle = bundle;
+        this.name = name;
+        this.configuration = configuration;
+
+        final String prefix = MetricRegistry.name(bundle.name(), "write-behind", name);
+        metricRegistry.register(MetricRegistry.name(prefix, "size"),
+                (Gauge<Integer>) this::size);
+        this.dropped = metricRegistry.meter(MetricRegistry.name(prefix, "dropped"));
+        this.failed = metricRegistry.meter(MetricRegistry.name(prefix, "failed"));
+        this.writes = metricRegistry.timer(MetricRegistry.name(prefix, "writes"));
+    }
+
+    /**
+     * Adds the entity to the buffer. If the buffer is full, the configured
+     * {@link WriteBehindBackpressure} is applied.
+     *
+     * @param entity
+     *            The entity to be inserted.
+     * @return {@code true} if the entity was buffered or written,
+     *         {@code false} if it was dropped.
+     */
+    public boolean add(final Object entity) {
+        while (true) {
+            this.stateLock.readLock().lock();
+            try {
+                if (this.stopped) {
+                    throw new IllegalStateException("The write-behind buffer '" + this.name
+                            + "' is stopped.");
+                }
+                if (this.tryReserve()) {
+                    this.queue.offer(entity);
+                    if (this.size.get() >= this.configuration.getBatchSize()) {
+                        this.requestFlush();
+                    }
+                    return true;
+                }
+                switch (this.configuration.getBackpressure()) {
+                case DROP:
+                    this.dropped.mark();
+                    return false;
+                case CALLER_RUNS:
+                    final List<Object> batch = this.poll(this.configuration.getBatchSize() - 1);
+                    batch.add(entity);
+                    this.writeInCaller(batch);
+                    return true;
+                default:
+                    break;
+                }
+            } finally {
+                this.stateLock.readLock().unlock();
+            }
+            if (!this.awaitSpace()) {
+                this.dropped.mark();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Sets what is done with the batches that could not be written once the
+     * retries are exhausted. They are only logged by default.
+     *
+     * @param failureHandler
+     *            The handler of the failed batches, or {@code null}.
+     */
+    public void setFailureHandler(final WriteBehindFailureHandler failureHandler) {
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * @return The number of entities waiting to be written.
+     */
+    public int size() {
+        return this.size.get();
+    }
+
+    /**
+     * Writes all the buffered entities in the calling thread.
+     */
+    public void flush() {
+        List<Object> batch;
+        while (!(batch = this.poll(this.configuration.getBatchSize())).isEmpty()) {
+            this.write(batch);
+        }
+    }
+
+    @Override
+    public void start() throws Exception {
+        final ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("write-behind-" + this.name + "-%d")
+                        .setDaemon(true).build());
+        final long interval = this.configuration.getFlushInterval().toMilliseconds();
+        executor.scheduleWithFixedDelay(this::drain, interval, interval, TimeUnit.MILLISECONDS);
+        this.writer = executor;
+    }
+
+    @Override
+    public void stop() throws Exception {
+        this.stateLock.writeLock().lock();
+        try {
+            this.stopped = true;
+        } finally {
+            this.stateLock.writeLock().unlock();
+        }
+        // Wakes up the blocked callers, so they fail instead of waiting.
+        this.signalSpace();
+        final ScheduledExecutorService executor = this.writer;
+        if (executor != null) {
+            executor.shutdown();
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("The write-behind buffer '{}' writer did not stop in time.", this.name);
+            }
+        }
+        // Writes whatever was added while the writer was stopping.
+        this.flush();
+    }
+
+    private boolean tryReserve() {
+        // The queue is unbounded, so the size is reserved before adding to it.
+        while (true) {
+            final int current = this.size.get();
+            if (current >= this.configuration.getCapacity()) {
+                return false;
+            }
+            if (this.size.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Waits until the writer takes entities from the full buffer, or the
+     * buffer is stopped.
+     *
+     * @return {@code false} if the thread was interrupted while waiting.
+     */
+    private boolean awaitSpace() {
+        this.requestFlush();
+        this.spaceLock.lock();
+        try {
+            while (this.size.get() >= this.configuration.getCapacity() && !this.stopped) {
+                this.notFull.await();
+            }
+            return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            this.spaceLock.unlock();
+        }
+    }
+
+    private void signalSpace() {
+        this.spaceLock.lock();
+        try {
+            this.notFull.signalAll();
+        } finally {
+            this.spaceLock.unlock();
+        }
+    }
+
+    private void requestFlush() {
+        final ScheduledExecutorService executor = this.writer;
+        if (executor != null && this.flushRequested.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (final RuntimeException e) {
+                // The writer is stopping and will be flushed by stop().
+                this.flushRequested.set(false);
+            }
+        }
+    }
+
+    private void drain() {
+        this.flushRequested.set(false);
+        try {
+            this.flush();
+        } catch (final RuntimeException e) {
+            // Keeps the scheduled writer alive.
+            log.error("Failed to drain the write-behind buffer '{}'.", this.name, e);
+        }
+    }
+
+    private List<Object> poll(final int maxEntities) {
+        final List<Object> batch = new ArrayList<>();
+        Object entity;
+        while (batch.size() < maxEntities && (entity = this.queue.poll()) != null) {
+            batch.add(entity);
+            this.size.decrementAndGet();
+        }
+        if (!batch.isEmpty()
+                && this.configuration.getBackpressure() == WriteBehindBackpressure.BLOCK) {
+            this.signalSpace();
+        }
+        return batch;
+    }
+
+    private void write(final List<Object> batch) {
+        try {
+            this.writeOnce(batch);
+        } catch (final RuntimeException e) {
+            this.retry(batch, e);
+        }
+    }
+
+    private void writeInCaller(final List<Object> batch) {
+        try {
+            this.writeOnce(batch);
+        } catch (final RuntimeException e) {
+            // The retries and their backoff don't hold the request thread.
+            // stop() waits for the adds, so the writer is still running
+            // unless it was never started.
+            final ScheduledExecutorService executor = this.writer;
+            if (executor != null) {
+                try {
+                    executor.execute(() -> this.retry(batch, e));
+                    return;
+                } catch (final RejectedExecutionException rejected) {
+                    // Falls back to retrying in the caller.
+                }
+            }
+            this.retry(batch, e);
+        }
+    }
+
+    private void retry(final List<Object> batch, final RuntimeException firstFailure) {
+        RuntimeException failure = firstFailure;
+        long backoffMillis = this.configuration.getRetryBackoff().toMilliseconds();
+        for (int attempt = 1; attempt <= this.configuration.getMaxRetries(); attempt++) {
+            log.warn("Failed to write {} entities from the write-behind buffer '{}'. "
+                    + "Retrying in {} ms.", batch.size(), this.name, backoffMillis, failure);
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (final InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            try {
+                this.writeOnce(batch);
+                return;
+            } catch (final RuntimeException e) {
+                failure = e;
+            }
+            backoffMillis *= 2;
+        }
+        this.fail(batch, failure);
+    }
+
+    private void writeOnce(final List<Object> batch) {
+        // A token, so a rotation doesn't close the connection while the batch
+        // is being written. The session holders are taken again on every
+        // attempt, so a retry uses the rotated credentials.
+        final Object writer = new Object();
+        final SessionHolders sessionHolders = this.bundle.addSessionHolder(writer);
+        try (Timer.Context context = this.writes.time()) {
+            // Multi-tenant session factories need a tenant to open a session.
+            final String tenant = this.bundle.getDefaultTenant();
+            final SessionFactory sessionFactory = sessionHolders.getSessionFactory();
+            final Session session = tenant == null ? sessionFactory.openSession()
+                    : sessionFactory.withOptions().tenantIdentifier(tenant).openSession();
+            try {
+                session.setCacheMode(CacheMode.IGNORE);
+                session.setFlushMode(FlushMode.COMMIT);
+                final Transaction transaction = session.beginTransaction();
+                try {
+                    for (final Object entity : batch) {
+                        session.save(entity);
+                    }
+                    transaction.commit();
+                } catch (final RuntimeException e) {
+                    if (transaction.isActive()) {
+                        transaction.rollback();
+                    }
+                    throw e;
+                }
+            } finally {
+                session.close();
+            }
+        } finally {
+            sessionHolders.remove(writer);
+        }
+    }
+
+    private void fail(final List<Object> batch, final RuntimeException cause) {
+        this.failed.mark(batch.size());
+        final WriteBehindFailureHandler handler = this.failureHandler;
+        if (handler == null) {
+            log.error("Failed to write {} entities from the write-behind buffer '{}'. "
+                    + "They are dropped.", batch.size(), this.name, cause);
+            return;
+        }
+        log.error("Failed to write {} entities from the write-behind buffer '{}'.",
+                batch.size(), this.name, cause);
+        try {
+            handler.onFailure(Collections.unmodifiableList(batch), cause);
+        } catch (final RuntimeException e) {
+            log.error("The failure handler of the write-behind buffer '{}' failed.", this.name,
+                    e);
+        }
+    }
+}
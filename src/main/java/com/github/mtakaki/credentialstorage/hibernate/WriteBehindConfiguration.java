@@ -0,0 +1,39 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import io.dropwizard.util.Duration;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Controls a {@link WriteBehindBuffer}: how many entities it holds, how many
+ * are written in each transaction, how often it's flushed, what happens
+ * when it's full and how the failed batches are retried.
+ */
+@Getter
+@Setter
+public class WriteBehindConfiguration {
+    @Min(1)
+    @JsonProperty
+    private int capacity = 10000;
+    @Min(1)
+    @JsonProperty
+    private int batchSize = 500;
+    @NotNull
+    @JsonProperty
+    private Duration flushInterval = Duration.seconds(1);
+    @NotNull
+    @JsonProperty
+    private WriteBehindBackpressure backpressure = WriteBehindBackpressure.BLOCK;
+    @Min(0)
+    @JsonProperty
+    private int maxRetries = 3;
+    @NotNull
+    @JsonProperty
+    private Duration retryBackoff = Duration.milliseconds(100);
+}
@@ -0,0 +1,19 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.util.List;
+
+/**
+ * Receives the batches a {@link WriteBehindBuffer} could not write once its
+ * retries are exhausted, so they can be persisted somewhere else, such as a
+ * file or a queue.
+ */
+@FunctionalInterface
+public interface WriteBehindFailureHandler {
+    /**
+     * @param entities
+     *            The entities of the batch, in the order they were added.
+     * @param cause
+     *            The failure of the last attempt.
+     */
+    void onFailure(List<Object> entities, Exception cause);
+}
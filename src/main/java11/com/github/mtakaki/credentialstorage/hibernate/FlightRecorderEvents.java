@@ -0,0 +1,116 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Emits the Java Flight Recorder events of the bundles. It replaces the
+ * implementation that does nothing, in {@code META-INF/versions/11} of the
+ * multi-release jar. Nothing is allocated for the events that are not enabled
+ * in the running recordings.
+ */
+final class FlightRecorderEvents {
+    private static final EventType UNIT_OF_WORK = EventType.getEventType(UnitOfWorkEvent.class);
+    private static final EventType SESSION = EventType.getEventType(SessionEvent.class);
+    private static final EventType CONNECTION = EventType.getEventType(ConnectionEvent.class);
+    private static final EventType SESSION_HOLDERS = EventType
+            .getEventType(SessionHoldersEvent.class);
+    private static final EventType ROTATION = EventType.getEventType(RotationEvent.class);
+
+    private FlightRecorderEvents() {
+    }
+
+    static Object beginUnitOfWork() {
+        return UNIT_OF_WORK.isEnabled() ? begin(new UnitOfWorkEvent()) : null;
+    }
+
+    static Object beginSession() {
+        return SESSION.isEnabled() ? begin(new SessionEvent()) : null;
+    }
+
+    static Object beginConnection() {
+        return CONNECTION.isEnabled() ? begin(new ConnectionEvent()) : null;
+    }
+
+    static Object beginSessionHolders() {
+        return SESSION_HOLDERS.isEnabled() ? begin(new SessionHoldersEvent()) : null;
+    }
+
+    static Object beginRotation() {
+        return ROTATION.isEnabled() ? begin(new RotationEvent()) : null;
+    }
+
+    static void commit(final Object event, final String bundle, final long generation,
+            final String method, final String phase) {
+        if (event == null) {
+            return;
+        }
+        final BundleEvent bundleEvent = (BundleEvent) event;
+        bundleEvent.end();
+        if (bundleEvent.shouldCommit()) {
+            bundleEvent.bundle = bundle;
+            bundleEvent.generation = generation;
+            bundleEvent.method = method;
+            bundleEvent.phase = phase;
+            bundleEvent.commit();
+        }
+    }
+
+    private static BundleEvent begin(final BundleEvent event) {
+        event.begin();
+        return event;
+    }
+
+    @Category({ "Dropwizard", "Hibernate" })
+    abstract static class BundleEvent extends Event {
+        @Label("Bundle")
+        String bundle;
+
+        @Label("Generation")
+        @Description("The generation of the session factory, which increases with every new pool.")
+        long generation;
+
+        @Label("Method")
+        @Description("The method of the unit of work.")
+        String method;
+
+        @Label("Phase")
+        String phase;
+    }
+
+    @Name("com.github.mtakaki.credentialstorage.hibernate.UnitOfWork")
+    @Label("Unit of Work")
+    @Description("A phase of a unit of work: beforeStart, afterEnd, onError or afterResponse.")
+    static class UnitOfWorkEvent extends BundleEvent {
+    }
+
+    @Name("com.github.mtakaki.credentialstorage.hibernate.Session")
+    @Label("Session")
+    @Description("A session opened or closed by a unit of work.")
+    static class SessionEvent extends BundleEvent {
+    }
+
+    @Name("com.github.mtakaki.credentialstorage.hibernate.ConnectionAcquisition")
+    @Label("Connection Acquisition")
+    @Description("A connection acquired from the pool of a bundle.")
+    static class ConnectionEvent extends BundleEvent {
+    }
+
+    @Name("com.github.mtakaki.credentialstorage.hibernate.SessionHolders")
+    @Label("Session Holders")
+    @Description("A user added to or removed from the users of a session factory, or its connections closed.")
+    @StackTrace(false)
+    static class SessionHoldersEvent extends BundleEvent {
+    }
+
+    @Name("com.github.mtakaki.credentialstorage.hibernate.CredentialRotation")
+    @Label("Credential Rotation")
+    @Description("A phase of a credential rotation: retrieve, rotate, replacePool or swapCredentials.")
+    static class RotationEvent extends BundleEvent {
+    }
+}
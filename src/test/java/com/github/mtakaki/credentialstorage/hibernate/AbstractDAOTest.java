@@ -117,6 +117,31 @@ public class AbstractDAOTest {
                 .isSameAs(this.session);
     }
 
+    @Test
+    public void opensTheSessionOfTheCurrentUnitOfWork() throws Exception {
+        final UnitOfWorkAspect unitOfWork = mock(UnitOfWorkAspect.class);
+        when(this.bundle.getCurrentUnitOfWork()).thenReturn(unitOfWork);
+
+        assertThat(this.dao.currentSession())
+                .isSameAs(this.session);
+
+        verify(unitOfWork).ensureSessionOpen();
+    }
+
+    @Test
+    public void appliesTheHintsOfTheCurrentUnitOfWork() throws Exception {
+        final UnitOfWorkAspect unitOfWork = mock(UnitOfWorkAspect.class);
+        when(this.bundle.getCurrentUnitOfWork()).thenReturn(unitOfWork);
+
+        this.dao.criteria();
+        this.dao.namedQuery("query-name");
+        this.dao.persist("woo");
+
+        verify(unitOfWork).applyHints(this.criteria);
+        verify(unitOfWork).applyHints(this.query);
+        verify(unitOfWork).afterPersist();
+    }
+
     @Test
     public void hasAnEntityClass() throws Exception {
         assertThat(this.dao.getEntityClass())
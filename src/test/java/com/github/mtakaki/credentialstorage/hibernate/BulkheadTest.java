@@ -0,0 +1,169 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.ServiceUnavailableException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+import io.dropwizard.util.Duration;
+
+public class BulkheadTest {
+    private static class Resource {
+        @UnitOfWork
+        public void find() {
+        }
+
+        @UnitOfWork(maxConcurrent = 1)
+        public void export() {
+        }
+
+        @UnitOfWork(maxConcurrent = 1)
+        public void report() {
+        }
+    }
+
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private final BulkheadConfiguration configuration = new BulkheadConfiguration();
+    private Bulkhead bulkhead;
+
+    @Before
+    public void setup() {
+        this.configuration.setMaxConcurrent(2);
+        this.configuration.setMaxQueued(1);
+        this.configuration.setMaxWait(Duration.milliseconds(50));
+        this.bulkhead = new Bulkhead(this.configuration, this.metricRegistry, "hibernate");
+    }
+
+    private static UnitOfWork unitOfWork(final String method) throws Exception {
+        return Resource.class.getDeclaredMethod(method).getAnnotation(UnitOfWork.class);
+    }
+
+    private long count(final String meter) {
+        return this.metricRegistry.meter("hibernate.bulkhead." + meter).getCount();
+    }
+
+    @Test
+    public void testAcquireWithoutLimits() throws Exception {
+        this.configuration.setMaxConcurrent(0);
+        this.bulkhead = new Bulkhead(this.configuration, new MetricRegistry(), "hibernate");
+
+        assertThat(this.bulkhead.acquire(unitOfWork("find"))).isNull();
+    }
+
+    @Test
+    public void testAcquireRejectsOnceTheLimitIsReached() throws Exception {
+        this.bulkhead.acquire(unitOfWork("find"));
+        this.bulkhead.acquire(unitOfWork("find"));
+
+        try {
+            this.bulkhead.acquire(unitOfWork("find"));
+            failBecauseExceptionWasNotThrown(ServiceUnavailableException.class);
+        } catch (final ServiceUnavailableException e) {
+            assertThat(e.getResponse().getStatus()).isEqualTo(503);
+        }
+        assertThat(this.count("admitted")).isEqualTo(2);
+        assertThat(this.count("queued")).isEqualTo(1);
+        assertThat(this.count("rejected")).isEqualTo(1);
+    }
+
+    @Test
+    public void testAcquireWaitsForARelease() throws Exception {
+        final Bulkhead.Permit permit = this.bulkhead.acquire(unitOfWork("find"));
+        this.bulkhead.acquire(unitOfWork("find"));
+        this.configuration.setMaxWait(Duration.seconds(10));
+
+        final CompletableFuture<Bulkhead.Permit> queued = CompletableFuture.supplyAsync(() -> {
+            try {
+                return this.bulkhead.acquire(unitOfWork("find"));
+            } catch (final Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (this.count("queued") == 0) {
+            Thread.sleep(1);
+        }
+        permit.release();
+
+        assertThat(queued.get(5, TimeUnit.SECONDS)).isNotNull();
+        assertThat(this.count("rejected")).isZero();
+    }
+
+    @Test
+    public void testAcquireRejectsWhenTheQueueIsFull() throws Exception {
+        this.configuration.setMaxQueued(0);
+        this.bulkhead = new Bulkhead(this.configuration, new MetricRegistry(), "hibernate");
+        this.bulkhead.acquire(unitOfWork("export"));
+
+        try {
+            this.bulkhead.acquire(unitOfWork("export"));
+            failBecauseExceptionWasNotThrown(ServiceUnavailableException.class);
+        } catch (final ServiceUnavailableException e) {
+            // The other methods are still admitted.
+            assertThat(this.bulkhead.acquire(unitOfWork("find"))).isNotNull();
+        }
+    }
+
+    @Test
+    public void testQueuedUnitsOfWorkAreAdmittedBeforeNewOnes() throws Exception {
+        this.configuration.setMaxWait(Duration.seconds(10));
+        final Bulkhead.Permit permit = this.bulkhead.acquire(unitOfWork("export"));
+        final CompletableFuture<Bulkhead.Permit> queued = CompletableFuture.supplyAsync(() -> {
+            try {
+                return this.bulkhead.acquire(unitOfWork("export"));
+            } catch (final Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (this.count("queued") == 0) {
+            Thread.sleep(1);
+        }
+        // Gives it time to wait on the permits.
+        Thread.sleep(50);
+
+        permit.release();
+        try {
+            this.bulkhead.acquire(unitOfWork("export"));
+            failBecauseExceptionWasNotThrown(ServiceUnavailableException.class);
+        } catch (final ServiceUnavailableException e) {
+            // The released permit belongs to the queued one, and the queue is
+            // full.
+        }
+
+        assertThat(queued.get(5, TimeUnit.SECONDS)).isNotNull();
+    }
+
+    @Test
+    public void testEveryMethodHasItsOwnLimit() throws Exception {
+        final Method export = Resource.class.getDeclaredMethod("export");
+        final Method report = Resource.class.getDeclaredMethod("report");
+        this.configuration.setMaxQueued(0);
+        this.bulkhead = new Bulkhead(this.configuration, new MetricRegistry(), "hibernate");
+
+        this.bulkhead.acquire(export.getAnnotation(UnitOfWork.class), export);
+
+        assertThat(this.bulkhead.acquire(report.getAnnotation(UnitOfWork.class), report))
+                .isNotNull();
+        try {
+            this.bulkhead.acquire(export.getAnnotation(UnitOfWork.class), export);
+            failBecauseExceptionWasNotThrown(ServiceUnavailableException.class);
+        } catch (final ServiceUnavailableException e) {
+            // The limit of the method is kept while its permit is held.
+        }
+    }
+
+    @Test
+    public void testReleaseFreesTheMethodLimit() throws Exception {
+        this.bulkhead.acquire(unitOfWork("export")).release();
+
+        assertThat(this.bulkhead.acquire(unitOfWork("export"))).isNotNull();
+    }
+}
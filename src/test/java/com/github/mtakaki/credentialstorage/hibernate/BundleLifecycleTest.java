@@ -0,0 +1,82 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.hibernate.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.dropwizard.lifecycle.JettyManaged;
+import io.dropwizard.logging.BootstrapLogging;
+
+public class BundleLifecycleTest {
+    static {
+        BootstrapLogging.bootstrap();
+    }
+
+    private OfflineBundleHarness harness;
+
+    @Before
+    public void setUp() throws Exception {
+        this.harness = new OfflineBundleHarness();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.harness.close();
+    }
+
+    @Test
+    public void testOnlyManagesObjectsWhileRunning() throws Exception {
+        this.harness.start();
+        final List<LifeCycle> managedObjects = new ArrayList<>(
+                this.harness.getEnvironment().lifecycle().getManagedObjects());
+
+        // Neither the background initialization nor the rotations add to the
+        // lifecycle once the application is running.
+        this.harness.rotateCredentials();
+
+        assertThat(this.harness.getEnvironment().lifecycle().getManagedObjects())
+                .containsExactlyElementsOf(managedObjects);
+        for (final LifeCycle managed : managedObjects) {
+            if (managed instanceof JettyManaged) {
+                assertThat(((JettyManaged) managed).getManaged())
+                        .isNotInstanceOf(SessionFactoryManager.class);
+            }
+        }
+    }
+
+    @Test
+    public void testStartsThePoolBeforeTheApplicationAndClosesItWhenItStops()
+            throws Exception {
+        this.harness.start();
+        final SessionFactory sessionFactory = this.harness.getBundle().getSessionFactory();
+
+        assertThat(this.harness.getDatabase().getSessionCount()).isPositive();
+
+        this.harness.stop();
+
+        assertThat(sessionFactory.isClosed()).isTrue();
+        assertThat(this.harness.getDatabase().getSessionCount()).isZero();
+    }
+
+    @Test
+    public void testClosesTheRotatedPoolWhenTheApplicationStops() throws Exception {
+        this.harness.start();
+        final SessionFactory first = this.harness.getBundle().getSessionFactory();
+        this.harness.rotateCredentials();
+        final SessionFactory second = this.harness.getBundle().getSessionFactory();
+
+        this.harness.stop();
+
+        assertThat(second).isNotSameAs(first);
+        assertThat(first.isClosed()).isTrue();
+        assertThat(second.isClosed()).isTrue();
+        assertThat(this.harness.getDatabase().getSessionCount()).isZero();
+    }
+}
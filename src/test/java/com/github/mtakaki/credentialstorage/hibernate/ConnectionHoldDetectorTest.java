@@ -0,0 +1,126 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.SessionFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import io.dropwizard.db.ManagedDataSource;
+import io.dropwizard.util.Duration;
+
+public class ConnectionHoldDetectorTest {
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private final LeakDetectionConfiguration configuration = new LeakDetectionConfiguration();
+    private ConnectionHoldDetector detector;
+
+    @Before
+    public void setup() {
+        this.configuration.setThreshold(Duration.milliseconds(0));
+    }
+
+    private void newDetector() {
+        this.detector = new ConnectionHoldDetector(this.configuration, this.metricRegistry,
+                "hibernate");
+    }
+
+    private SessionHolders newSessionHolders(final long generation,
+            final double stackSamplingRate) {
+        return new SessionHolders(mock(SessionFactory.class), mock(ManagedDataSource.class),
+                generation, stackSamplingRate);
+    }
+
+    @Test
+    public void testSweepReportsHoldsOnce() throws Exception {
+        this.newDetector();
+        final SessionHolders holders = this.newSessionHolders(1, 0);
+        holders.add(new Object());
+        this.detector.track(holders);
+        Thread.sleep(2);
+
+        this.detector.sweep();
+        this.detector.sweep();
+
+        assertThat(this.metricRegistry.meter("hibernate.connectionHolds.leaks").getCount())
+                .isEqualTo(1);
+        assertThat((Long) this.metricRegistry.getGauges()
+                .get("hibernate.connectionHolds.oldestAge").getValue()).isPositive();
+        assertThat(this.metricRegistry.getGauges()
+                .get("hibernate.connectionHolds.overThreshold").getValue()).isEqualTo(1);
+    }
+
+    @Test
+    public void testReleasedHoldsAreTimedWithoutASweep() throws Exception {
+        this.newDetector();
+        final SessionHolders holders = this.newSessionHolders(1, 0);
+        this.detector.track(holders);
+        final Object holder = new Object();
+        holders.add(holder);
+        Thread.sleep(2);
+
+        holders.remove(holder);
+
+        final Timer durations = this.metricRegistry.timer("hibernate.connectionHolds.duration");
+        assertThat(durations.getCount()).isEqualTo(1);
+        assertThat(durations.getSnapshot().getMax())
+                .isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(2));
+    }
+
+    @Test
+    public void testSweepIgnoresHoldsUnderTheThreshold() {
+        this.configuration.setThreshold(Duration.minutes(1));
+        this.newDetector();
+        final SessionHolders holders = this.newSessionHolders(1, 0);
+        holders.add(new Object());
+        this.detector.track(holders);
+
+        this.detector.sweep();
+
+        assertThat(holders.getHolds()).hasSize(1);
+        assertThat(this.metricRegistry.meter("hibernate.connectionHolds.leaks").getCount())
+                .isZero();
+    }
+
+    @Test
+    public void testSweepDropsClosedHolders() {
+        this.newDetector();
+        final SessionHolders holders = this.newSessionHolders(1, 0);
+        holders.add(new Object());
+        this.detector.track(holders);
+        holders.closeConnections();
+
+        this.detector.sweep();
+
+        assertThat(this.detector.getOldestHolds()).isEmpty();
+        assertThat(this.metricRegistry.getGauges()
+                .get("hibernate.connectionHolds.overThreshold").getValue()).isEqualTo(0);
+        assertThat(this.metricRegistry.getGauges()
+                .get("hibernate.connectionHolds.oldestAge").getValue()).isEqualTo(0L);
+    }
+
+    @Test
+    public void testGetOldestHoldsOfEveryGeneration() throws Exception {
+        this.configuration.setMaxReported(2);
+        this.newDetector();
+        final SessionHolders oldHolders = this.newSessionHolders(1, 0);
+        final SessionHolders newHolders = this.newSessionHolders(2, 1);
+        oldHolders.add(new Object());
+        Thread.sleep(2);
+        newHolders.add(new Object());
+        Thread.sleep(2);
+        newHolders.add(new Object());
+        this.detector.track(oldHolders);
+        this.detector.track(newHolders);
+
+        assertThat(this.detector.getOldestHolds()).extracting(ConnectionHold::getGeneration)
+                .containsExactly(1L, 2L);
+        assertThat(this.detector.getOldestHolds().get(0).getStackTrace()).isNull();
+        assertThat(this.detector.getOldestHolds().get(1).getStackTrace()).isNotEmpty();
+    }
+}
@@ -0,0 +1,139 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.client.Client;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.mtakaki.credentialstorage.client.CredentialStorageServiceClient;
+
+import io.dropwizard.util.Duration;
+
+public class CredentialRefreshServiceTest {
+    private CredentialRefreshService service;
+
+    @Before
+    public void setup() {
+        this.service = new CredentialRefreshService(1);
+    }
+
+    @Test
+    public void testRegisterRunsTheTaskPeriodically() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+
+        final CredentialRefreshService.Registration registration = this.service.register("test",
+                latch::countDown, 10L, TimeUnit.MILLISECONDS);
+
+        assertThat(latch.await(5L, TimeUnit.SECONDS)).isTrue();
+        registration.stop();
+    }
+
+    @Test
+    public void testStopShutsDownWhenLastRegistrationIsStopped() throws Exception {
+        final CredentialRefreshService.Registration first = this.service.register("first",
+                () -> {
+                }, 1L, TimeUnit.DAYS);
+        final CredentialRefreshService.Registration second = this.service.register("second",
+                () -> {
+                }, 1L, TimeUnit.DAYS);
+
+        first.stop();
+        assertThat(this.service.isRunning()).isTrue();
+
+        second.stop();
+        assertThat(this.service.isRunning()).isFalse();
+    }
+
+    @Test
+    public void testRegisterAfterShutdownRestartsTheScheduler() throws Exception {
+        this.service.register("first", () -> {
+        }, 1L, TimeUnit.DAYS).stop();
+
+        final CredentialRefreshService.Registration registration = this.service.register("second",
+                () -> {
+                }, 1L, TimeUnit.DAYS);
+
+        assertThat(this.service.isRunning()).isTrue();
+        registration.stop();
+    }
+
+    @Test
+    public void testMaintenanceTasksDontWaitForTheCredentialRetrieval() throws Exception {
+        final CountDownLatch retrieving = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch swept = new CountDownLatch(1);
+        final CredentialRefreshService.Registration retrieval = this.service.register("slow",
+                () -> {
+                    retrieving.countDown();
+                    try {
+                        release.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }, 1L, TimeUnit.MILLISECONDS);
+        assertThat(retrieving.await(5L, TimeUnit.SECONDS)).isTrue();
+
+        final CredentialRefreshService.Registration sweep = this.service
+                .registerMaintenance("sweep", swept::countDown, 1L, TimeUnit.MILLISECONDS);
+
+        assertThat(swept.await(5L, TimeUnit.SECONDS)).isTrue();
+        release.countDown();
+        retrieval.stop();
+        sweep.stop();
+        assertThat(this.service.isRunning()).isFalse();
+    }
+
+    @Test
+    public void testCloseQuietlyClosesTheHttpClient() {
+        final ClientHolder holder = new ClientHolder(mock(Client.class));
+
+        CredentialRefreshService.closeQuietly(holder);
+
+        verify(holder.client).close();
+    }
+
+    @Test
+    public void testGetClientIsSharedForTheSameService() throws Exception {
+        final CredentialStorageServiceClient client = this.service
+                .getClient(this.createDataSourceFactory("http://localhost:1/"));
+
+        assertThat(this.service.getClient(this.createDataSourceFactory("http://localhost:1/")))
+                .isSameAs(client);
+        assertThat(this.service.getClient(this.createDataSourceFactory("http://localhost:2/")))
+                .isNotSameAs(client);
+    }
+
+    @Test
+    public void testGetClientIsNotSharedWithOtherClientConfigurations() throws Exception {
+        final CredentialStorageServiceClient client = this.service
+                .getClient(this.createDataSourceFactory("http://localhost:1/"));
+        final RemoteCredentialDataSourceFactory dataSourceFactory = this
+                .createDataSourceFactory("http://localhost:1/");
+        dataSourceFactory.getCredentialClientConfiguration().setTimeout(Duration.seconds(1));
+
+        assertThat(this.service.getClient(dataSourceFactory)).isNotSameAs(client);
+    }
+
+    private RemoteCredentialDataSourceFactory createDataSourceFactory(final String url) {
+        final RemoteCredentialDataSourceFactory dataSourceFactory = new RemoteCredentialDataSourceFactory();
+        dataSourceFactory.setCredentialServiceURL(url);
+        dataSourceFactory.setPrivateKeyFile("src/test/resources/private_key.der");
+        dataSourceFactory.setPublicKeyFile("src/test/resources/public_key.der");
+        return dataSourceFactory;
+    }
+
+    private static class ClientHolder {
+        private final Client client;
+
+        ClientHolder(final Client client) {
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import io.dropwizard.util.Duration;
+
+public class CredentialRetryPolicyTest {
+    private final MutableClock clock = new MutableClock();
+    private CredentialRetryConfiguration configuration;
+    private CredentialRetryPolicy policy;
+
+    @Before
+    public void setup() {
+        this.configuration = new CredentialRetryConfiguration();
+        this.configuration.setInitialBackoff(Duration.seconds(1));
+        this.configuration.setMaxBackoff(Duration.seconds(10));
+        this.configuration.setJitter(0.0);
+        this.configuration.setFailureThreshold(3);
+        this.configuration.setCircuitBreakerDelay(Duration.minutes(1));
+        this.policy = new CredentialRetryPolicy(this.configuration, this.clock);
+    }
+
+    @Test
+    public void testBackoffGrowsExponentiallyUpToTheMaximum() {
+        assertThat(this.policy.getBackoff(1)).isEqualTo(1000L);
+        assertThat(this.policy.getBackoff(2)).isEqualTo(2000L);
+        assertThat(this.policy.getBackoff(3)).isEqualTo(4000L);
+        assertThat(this.policy.getBackoff(10)).isEqualTo(10000L);
+    }
+
+    @Test
+    public void testBackoffWithJitter() {
+        this.configuration.setJitter(0.5);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(this.policy.getBackoff(2)).isBetween(1000L, 3000L);
+        }
+    }
+
+    @Test
+    public void testCircuitOpensAfterThreshold() {
+        this.policy.recordFailure();
+        this.policy.recordFailure();
+        assertThat(this.policy.isCircuitOpen()).isFalse();
+        assertThat(this.policy.getRetryDelay()).isEqualTo(2000L);
+
+        this.policy.recordFailure();
+        assertThat(this.policy.isCircuitOpen()).isTrue();
+        assertThat(this.policy.getRetryDelay()).isEqualTo(60000L);
+
+        this.clock.advance(60000L);
+        assertThat(this.policy.isCircuitOpen()).isFalse();
+    }
+
+    @Test
+    public void testSuccessClosesTheCircuit() {
+        this.policy.recordFailure();
+        this.policy.recordFailure();
+        this.policy.recordFailure();
+
+        this.policy.recordSuccess();
+
+        assertThat(this.policy.isCircuitOpen()).isFalse();
+        assertThat(this.policy.getConsecutiveFailures()).isZero();
+        assertThat(this.policy.getRetryDelay()).isEqualTo(1000L);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMetrics() {
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        this.policy.registerMetrics(metricRegistry, "hibernate");
+
+        this.policy.recordSuccess();
+        this.policy.recordCredentialUpdated();
+        this.clock.advance(5000L);
+        this.policy.recordFailure();
+
+        assertThat(metricRegistry.getGauges().get("hibernate.credentials.consecutiveFailures")
+                .getValue()).isEqualTo(1);
+        assertThat(((Gauge<Long>) metricRegistry.getGauges().get("hibernate.credentials.age"))
+                .getValue()).isEqualTo(5000L);
+        assertThat(metricRegistry.getGauges().get("hibernate.credentials.lastSuccessfulFetch")
+                .getValue()).isEqualTo(1000000L);
+    }
+
+    private static class MutableClock extends Clock {
+        private long millis = 1000000L;
+
+        void advance(final long millis) {
+            this.millis += millis;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(final ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(this.millis);
+        }
+
+        @Override
+        public long millis() {
+            return this.millis;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.google.common.collect.ImmutableMultimap;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CredentialRotationTaskTest {
+    @Mock
+    private RemoteCredentialHibernateBundle<?> bundle;
+
+    private CredentialRotationTask task;
+    private StringWriter output;
+
+    @Before
+    public void setup() {
+        this.task = new CredentialRotationTask("rotate-credentials-hibernate", this.bundle);
+        this.output = new StringWriter();
+    }
+
+    @Test
+    public void testExecuteWithUpdatedCredentials() throws Exception {
+        when(this.bundle.refreshCredentials(false, false)).thenReturn(true);
+
+        this.task.execute(ImmutableMultimap.of(), new PrintWriter(this.output));
+
+        verify(this.bundle).refreshCredentials(false, false);
+        assertThat(this.output.toString()).contains("Connection rotated");
+    }
+
+    @Test
+    public void testExecuteWithUnchangedCredentials() throws Exception {
+        this.task.execute(ImmutableMultimap.of(), new PrintWriter(this.output));
+
+        verify(this.bundle).refreshCredentials(false, false);
+        assertThat(this.output.toString()).contains("Credentials are unchanged.");
+    }
+
+    @Test
+    public void testExecuteWithDryRun() throws Exception {
+        when(this.bundle.refreshCredentials(true, false)).thenReturn(true);
+
+        this.task.execute(ImmutableMultimap.of(CredentialRotationTask.DRY_RUN_PARAMETER, "true"),
+                new PrintWriter(this.output));
+
+        verify(this.bundle).refreshCredentials(true, false);
+        assertThat(this.output.toString()).contains("dry run");
+    }
+
+    @Test
+    public void testExecuteWithForce() throws Exception {
+        this.task.execute(ImmutableMultimap.of(CredentialRotationTask.FORCE_PARAMETER, "true"),
+                new PrintWriter(this.output));
+
+        verify(this.bundle).refreshCredentials(false, true);
+        assertThat(this.output.toString()).contains("Connection recycled");
+    }
+}
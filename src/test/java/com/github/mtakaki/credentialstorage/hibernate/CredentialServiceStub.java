@@ -0,0 +1,119 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.ProcessingException;
+
+import com.github.mtakaki.credentialstorage.client.CredentialStorageServiceClient;
+import com.github.mtakaki.credentialstorage.client.model.Credential;
+
+/**
+ * A local stand-in for the credential storage service. It keeps the versions
+ * of the credential of one {@link InMemoryDatabase}: each rotation creates a
+ * new database user with a random password, which is served by
+ * {@link #getClient()} from then on. The previous versions keep working until
+ * they are revoked, like a credential service that rotates the secondary
+ * user before dropping the old one.
+ */
+public class CredentialServiceStub {
+    private final InMemoryDatabase database;
+    private final List<Credential> versions = new CopyOnWriteArrayList<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger pendingFailures = new AtomicInteger();
+    private final CredentialStorageServiceClient client;
+
+    public CredentialServiceStub(final InMemoryDatabase database) throws Exception {
+        this.database = database;
+        this.rotate();
+        this.client = mock(CredentialStorageServiceClient.class);
+        when(this.client.getCredential()).thenAnswer(invocation -> this.serve());
+    }
+
+    /**
+     * @return A client that retrieves the current version of the credential.
+     */
+    public CredentialStorageServiceClient getClient() {
+        return this.client;
+    }
+
+    /**
+     * Creates a new version of the credential. It's served by the following
+     * requests.
+     *
+     * @return The new version.
+     * @throws SQLException
+     *             Thrown if the database user could not be created.
+     */
+    public synchronized Credential rotate() throws SQLException {
+        final String user = "APP_" + (this.versions.size() + 1);
+        final String password = UUID.randomUUID().toString();
+        this.database.createUser(user, password);
+
+        final Credential credential = mock(Credential.class);
+        when(credential.getPrimary()).thenReturn(user);
+        when(credential.getSecondary()).thenReturn(password);
+        this.versions.add(credential);
+        return credential;
+    }
+
+    /**
+     * Changes the password of the given version, so it can't open new
+     * connections anymore. The connections it already opened are kept.
+     *
+     * @param version
+     *            The version to be revoked, starting at 1.
+     * @throws SQLException
+     *             Thrown if the password could not be changed.
+     */
+    public void revoke(final int version) throws SQLException {
+        this.database.setPassword(this.versions.get(version - 1).getPrimary(),
+                UUID.randomUUID().toString());
+    }
+
+    /**
+     * Makes the following requests fail, as if the service was unreachable.
+     *
+     * @param failures
+     *            How many requests should fail.
+     */
+    public void failNext(final int failures) {
+        this.pendingFailures.set(failures);
+    }
+
+    /**
+     * @return The current version of the credential.
+     */
+    public Credential getCurrent() {
+        return this.versions.get(this.versions.size() - 1);
+    }
+
+    /**
+     * @return The number of versions, which is also the current version.
+     */
+    public int getVersion() {
+        return this.versions.size();
+    }
+
+    /**
+     * @return How many times the credential was requested, including the
+     *         failed requests.
+     */
+    public int getRequests() {
+        return this.requests.get();
+    }
+
+    private Credential serve() {
+        this.requests.incrementAndGet();
+        if (this.pendingFailures.getAndUpdate(failures -> Math.max(0, failures - 1)) > 0) {
+            throw new ProcessingException("The credential service is unavailable.");
+        }
+        return this.getCurrent();
+    }
+}
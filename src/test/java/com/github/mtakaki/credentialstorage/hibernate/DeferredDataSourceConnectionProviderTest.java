@@ -0,0 +1,86 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+
+public class DeferredDataSourceConnectionProviderTest {
+    private final DataSource dataSource = mock(DataSource.class);
+    private final Connection connection = mock(Connection.class);
+
+    @Test
+    public void testGetConnectionWaitsForTheDataSource() throws Exception {
+        when(this.dataSource.getConnection()).thenReturn(this.connection);
+        final CompletableFuture<DataSource> future = new CompletableFuture<>();
+        final DeferredDataSourceConnectionProvider provider = new DeferredDataSourceConnectionProvider(
+                future);
+
+        final CompletableFuture<Connection> connection = CompletableFuture.supplyAsync(() -> {
+            try {
+                return provider.getConnection();
+            } catch (final SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertThat(connection.isDone()).isFalse();
+
+        future.complete(this.dataSource);
+
+        assertThat(connection.get()).isSameAs(this.connection);
+    }
+
+    @Test
+    public void testGetConnectionFailsIfTheDataSourceFailed() {
+        final CompletableFuture<DataSource> future = new CompletableFuture<>();
+        final IllegalStateException failure = new IllegalStateException("failed");
+        future.completeExceptionally(failure);
+        final DeferredDataSourceConnectionProvider provider = new DeferredDataSourceConnectionProvider(
+                future);
+
+        try {
+            provider.getConnection();
+            failBecauseExceptionWasNotThrown(SQLException.class);
+        } catch (final SQLException e) {
+            assertThat(e.getCause()).isSameAs(failure);
+        }
+    }
+
+    @Test
+    public void testGetConnectionFromThePartition() throws Exception {
+        final DataSource partition = mock(DataSource.class);
+        when(partition.getConnection()).thenReturn(this.connection);
+        final AtomicReference<DataSource> currentPartition = new AtomicReference<>(partition);
+        final DeferredDataSourceConnectionProvider provider = new DeferredDataSourceConnectionProvider(
+                CompletableFuture.completedFuture(this.dataSource), null, currentPartition::get);
+
+        assertThat(provider.getConnection()).isSameAs(this.connection);
+        verify(this.dataSource, never()).getConnection();
+
+        currentPartition.set(null);
+        final Connection defaultConnection = mock(Connection.class);
+        when(this.dataSource.getConnection()).thenReturn(defaultConnection);
+
+        assertThat(provider.getConnection()).isSameAs(defaultConnection);
+    }
+
+    @Test
+    public void testUnwrapsTheDataSource() {
+        final DeferredDataSourceConnectionProvider provider = new DeferredDataSourceConnectionProvider(
+                CompletableFuture.completedFuture(this.dataSource));
+
+        assertThat(provider.isUnwrappableAs(DataSource.class)).isTrue();
+        assertThat(provider.unwrap(DataSource.class)).isSameAs(this.dataSource);
+    }
+}
@@ -0,0 +1,80 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+public class HikariPoolsTest {
+    private final HikariDataSource dataSource = mock(HikariDataSource.class);
+    private final HikariPoolMXBean pool = mock(HikariPoolMXBean.class);
+
+    @Test
+    public void testIsHikari() {
+        assertThat(HikariPools.isHikari(this.dataSource)).isTrue();
+        assertThat(HikariPools.isHikari(mock(DataSource.class))).isFalse();
+    }
+
+    @Test
+    public void testSwapCredentials() {
+        HikariPools.swapCredentials(this.dataSource, "user", "password");
+
+        verify(this.dataSource).setUsername("user");
+        verify(this.dataSource).setPassword("password");
+    }
+
+    @Test
+    public void testReconfigureGrowingPool() {
+        when(this.dataSource.getMaximumPoolSize()).thenReturn(10);
+
+        HikariPools.reconfigure(this.dataSource, 20, 50, 500L, 2000L);
+
+        final InOrder inOrder = inOrder(this.dataSource);
+        inOrder.verify(this.dataSource).setMaximumPoolSize(50);
+        inOrder.verify(this.dataSource).setMinimumIdle(20);
+        verify(this.dataSource).setConnectionTimeout(500L);
+        verify(this.dataSource).setValidationTimeout(2000L);
+    }
+
+    @Test
+    public void testReconfigureShrinkingPool() {
+        when(this.dataSource.getMaximumPoolSize()).thenReturn(100);
+
+        HikariPools.reconfigure(this.dataSource, 5, 10, 500L, null);
+
+        final InOrder inOrder = inOrder(this.dataSource);
+        inOrder.verify(this.dataSource).setMinimumIdle(5);
+        inOrder.verify(this.dataSource).setMaximumPoolSize(10);
+        verify(this.dataSource, never()).setValidationTimeout(anyLong());
+    }
+
+    @Test
+    public void testSoftEvictConnections() {
+        when(this.dataSource.getHikariPoolMXBean()).thenReturn(this.pool);
+
+        HikariPools.softEvictConnections(this.dataSource);
+
+        verify(this.pool).softEvictConnections();
+    }
+
+    @Test
+    public void testSoftEvictConnectionsWhenClosed() {
+        when(this.dataSource.getHikariPoolMXBean()).thenReturn(this.pool);
+        when(this.dataSource.isClosed()).thenReturn(true);
+
+        HikariPools.softEvictConnections(this.dataSource);
+
+        verify(this.pool, never()).softEvictConnections();
+    }
+}
@@ -0,0 +1,123 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * A named HSQLDB in-memory database that enforces user and password, so a
+ * connection opened with revoked credentials fails like it would on a real
+ * database. The database is administered through a connection of the
+ * {@code SA} user, which is not counted as a session.
+ */
+public class InMemoryDatabase implements AutoCloseable {
+    public static final String DRIVER_CLASS = "org.hsqldb.jdbcDriver";
+    public static final String VALIDATION_QUERY = "SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS";
+
+    private final String url;
+    private final Connection admin;
+
+    public InMemoryDatabase(final String name) throws SQLException {
+        this.url = "jdbc:hsqldb:mem:" + name + "-" + System.nanoTime()
+                + ";hsqldb.translate_dti_types=false";
+        this.admin = DriverManager.getConnection(this.url, "SA", "");
+    }
+
+    public String getUrl() {
+        return this.url;
+    }
+
+    /**
+     * Executes the given statements as the {@code SA} user.
+     *
+     * @param statements
+     *            The statements to be executed, in order.
+     * @throws SQLException
+     *             Thrown if any of the statements fails.
+     */
+    public synchronized void execute(final String... statements) throws SQLException {
+        try (Statement statement = this.admin.createStatement()) {
+            for (final String sql : statements) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    /**
+     * Creates a user that can access the whole database.
+     *
+     * @param user
+     *            The user name. It's case sensitive.
+     * @param password
+     *            The password of the user.
+     * @throws SQLException
+     *             Thrown if the user already exists.
+     */
+    public void createUser(final String user, final String password) throws SQLException {
+        this.execute(String.format("CREATE USER \"%s\" PASSWORD '%s' ADMIN", user,
+                password.replace("'", "''")));
+    }
+
+    /**
+     * Changes the password of a user. The sessions already opened by the user
+     * are kept, but new connections need the new password.
+     *
+     * @param user
+     *            The user name.
+     * @param password
+     *            The new password.
+     * @throws SQLException
+     *             Thrown if the user doesn't exist.
+     */
+    public void setPassword(final String user, final String password) throws SQLException {
+        this.execute(String.format("ALTER USER \"%s\" SET PASSWORD '%s'", user,
+                password.replace("'", "''")));
+    }
+
+    /**
+     * @return The number of open sessions, apart from the administration one.
+     * @throws SQLException
+     *             Thrown if the sessions could not be counted.
+     */
+    public synchronized int getSessionCount() throws SQLException {
+        try (Statement statement = this.admin.createStatement();
+                ResultSet resultSet = statement
+                        .executeQuery("SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_SESSIONS")) {
+            resultSet.next();
+            return resultSet.getInt(1) - 1;
+        }
+    }
+
+    /**
+     * @param user
+     *            The user name.
+     * @return The number of open sessions of the given user.
+     * @throws SQLException
+     *             Thrown if the sessions could not be counted.
+     */
+    public synchronized int getSessionCount(final String user) throws SQLException {
+        try (PreparedStatement statement = this.admin.prepareStatement(
+                "SELECT COUNT(*) FROM INFORMATION_SCHEMA.SYSTEM_SESSIONS WHERE USER_NAME = ?")) {
+            statement.setString(1, user);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        }
+    }
+
+    /**
+     * Shuts the database down, dropping all its data.
+     */
+    @Override
+    public synchronized void close() throws SQLException {
+        try {
+            this.execute("SHUTDOWN");
+        } finally {
+            this.admin.close();
+        }
+    }
+}
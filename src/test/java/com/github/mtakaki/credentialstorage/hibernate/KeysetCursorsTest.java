@@ -0,0 +1,98 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.Date;
+import java.util.UUID;
+
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import io.dropwizard.jersey.validation.Validators;
+
+public class KeysetCursorsTest {
+    private final KeysetCursors cursors = new KeysetCursors(
+            "secret".getBytes(StandardCharsets.UTF_8));
+
+    @Test
+    public void testEncodesAndDecodesTheKey() {
+        final Timestamp timestamp = new Timestamp(1_000_000L);
+        timestamp.setNanos(123_456_789);
+        final Object[] values = { 1L, 2, "name", new BigDecimal("1.50"), UUID.randomUUID(),
+                timestamp, new Date(5000L),
+                new DateTime(2016, 1, 2, 3, 4, DateTimeZone.forID("America/Sao_Paulo")) };
+
+        final String cursor = this.cursors.encode("scope", values);
+
+        assertThat(cursor).matches("[A-Za-z0-9_-]+");
+        assertThat(this.cursors.decode("scope", cursor)).containsExactly(values);
+    }
+
+    @Test
+    public void testRejectsChangedCursors() {
+        final String cursor = this.cursors.encode("scope", new Object[] { 10L });
+        final byte[] bytes = Base64.getUrlDecoder().decode(cursor);
+        bytes[3]++;
+
+        assertInvalid("scope", Base64.getUrlEncoder().withoutPadding().encodeToString(bytes));
+        assertInvalid("scope", "not a cursor");
+        assertInvalid("scope", "");
+    }
+
+    @Test
+    public void testRejectsCursorsOfOtherQueriesAndKeys() {
+        final String cursor = this.cursors.encode("scope", new Object[] { 10L });
+
+        assertInvalid("other scope", cursor);
+        try {
+            new KeysetCursors("other".getBytes(StandardCharsets.UTF_8)).decode("scope", cursor);
+            failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+        } catch (final IllegalArgumentException e) {
+            assertThat(e).hasMessage("The cursor is not valid");
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnsupportedKeys() {
+        this.cursors.encode("scope", new Object[] { new Object() });
+    }
+
+    @Test
+    public void testRequiresALongSecret() {
+        final Validator validator = Validators.newValidator();
+        final RemoteCredentialDataSourceFactory factory = new RemoteCredentialDataSourceFactory();
+
+        factory.setCursorSecret("");
+        assertThat(cursorSecretViolations(validator, factory)).isEqualTo(1);
+        factory.setCursorSecret("0123456789abcdef0123456789abcdef");
+        assertThat(cursorSecretViolations(validator, factory)).isZero();
+        factory.setCursorSecret(null);
+        assertThat(cursorSecretViolations(validator, factory)).isZero();
+    }
+
+    private static long cursorSecretViolations(final Validator validator,
+            final RemoteCredentialDataSourceFactory factory) {
+        return validator.validate(factory).stream()
+                .map(ConstraintViolation::getPropertyPath)
+                .filter(path -> path.toString().equals("cursorSecret"))
+                .count();
+    }
+
+    private void assertInvalid(final String scope, final String cursor) {
+        try {
+            this.cursors.decode(scope, cursor);
+            failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+        } catch (final IllegalArgumentException e) {
+            assertThat(e).hasMessage("The cursor is not valid");
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableMap;
+
+import io.dropwizard.logging.BootstrapLogging;
+
+public class KeysetPaginationTest {
+    static {
+        BootstrapLogging.bootstrap();
+    }
+
+    public static class PagedPersonDAO extends BundleAbstractDAO<Person> {
+        public PagedPersonDAO(final RemoteCredentialHibernateBundle<?> bundle) {
+            super(bundle);
+        }
+
+        public KeysetPage<Person> byEmail(final int size, final String cursor) {
+            return this.page(this.criteria(), size, cursor, KeysetOrder.desc("email"),
+                    KeysetOrder.asc("name"));
+        }
+
+        public KeysetPage<Person> byDomain(final String domain, final int size,
+                final String cursor) {
+            return this.page("from Person p where p.email like :domain or p.email is null",
+                    ImmutableMap.of("domain", "%@" + domain), size, cursor,
+                    KeysetOrder.asc("p.name"));
+        }
+
+        public KeysetPage<Person> byUnaliasedName(final int size, final String cursor) {
+            return this.page("from Person p", ImmutableMap.of(), size, cursor,
+                    KeysetOrder.asc("name"));
+        }
+
+        @Override
+        public Person persist(final Person entity) {
+            return super.persist(entity);
+        }
+    }
+
+    public static class PersonService {
+        private final PagedPersonDAO dao;
+
+        public PersonService(final PagedPersonDAO dao) {
+            this.dao = dao;
+        }
+
+        @UnitOfWork(readOnly = true)
+        public KeysetPage<Person> byEmail(final int size, final String cursor) {
+            return this.dao.byEmail(size, cursor);
+        }
+
+        @UnitOfWork(readOnly = true)
+        public KeysetPage<Person> byDomain(final String domain, final int size,
+                final String cursor) {
+            return this.dao.byDomain(domain, size, cursor);
+        }
+
+        @UnitOfWork(readOnly = true)
+        public KeysetPage<Person> byUnaliasedName(final int size, final String cursor) {
+            return this.dao.byUnaliasedName(size, cursor);
+        }
+
+        @UnitOfWork
+        public void save(final String name, final String email) {
+            final Person person = new Person();
+            person.setName(name);
+            person.setEmail(email);
+            this.dao.persist(person);
+        }
+    }
+
+    private OfflineBundleHarness harness;
+    private PersonService service;
+
+    @Before
+    public void setUp() throws Exception {
+        this.harness = new OfflineBundleHarness();
+        this.harness.start();
+        this.service = new UnitOfWorkAwareProxyFactory(RemoteCredentialHibernateBundle.DEFAULT_NAME,
+                this.harness.getBundle()).create(PersonService.class, PagedPersonDAO.class,
+                        new PagedPersonDAO(this.harness.getBundle()));
+        this.service.save("ana", "ana@example.com");
+        this.service.save("bob", "shared@example.com");
+        this.service.save("carl", "shared@example.com");
+        this.service.save("dan", "dan@other.com");
+        this.service.save("eve", "shared@example.com");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.harness.close();
+    }
+
+    @Test
+    public void testPagesTheCriteria() {
+        final List<String> names = new ArrayList<>();
+        final List<KeysetPage<Person>> pages = new ArrayList<>();
+        KeysetPage<Person> page = this.service.byEmail(2, null);
+        pages.add(page);
+        while (page.hasNext()) {
+            page = this.service.byEmail(2, page.getNextCursor());
+            pages.add(page);
+        }
+        for (final KeysetPage<Person> each : pages) {
+            for (final Person person : each.getItems()) {
+                names.add(person.getName());
+            }
+        }
+
+        assertThat(pages).hasSize(3);
+        assertThat(names).containsExactly("bob", "carl", "eve", "dan", "ana");
+    }
+
+    @Test
+    public void testPagesTheHqlQuery() {
+        final KeysetPage<Person> first = this.service.byDomain("example.com", 2, null);
+        final KeysetPage<Person> second = this.service.byDomain("example.com", 2,
+                first.getNextCursor());
+
+        assertThat(first.getItems()).extracting("name").containsExactly("ana", "bob");
+        assertThat(second.getItems()).extracting("name").containsExactly("carl", "eve");
+        assertThat(second.hasNext()).isFalse();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsCursorsOfOtherQueries() {
+        final KeysetPage<Person> page = this.service.byEmail(2, null);
+
+        this.service.byDomain("example.com", 2, page.getNextCursor());
+    }
+
+    @Test
+    public void testAddsTheConditionToTheWhereClause() {
+        assertThat(BundleAbstractDAO.addCondition("from Person p", "p.name > :keyset0"))
+                .isEqualTo("from Person p where p.name > :keyset0");
+        assertThat(BundleAbstractDAO.addCondition(
+                "from Person p where p.email = 'a where b' or p.name in (select n from Name n where n.x = 1)",
+                "p.name > :keyset0")).isEqualTo(
+                        "from Person p where (p.email = 'a where b' or p.name in "
+                                + "(select n from Name n where n.x = 1)) and (p.name > :keyset0)");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsQueriesWithOrderBy() {
+        BundleAbstractDAO.addCondition("from Person p order by p.name", "p.name > :keyset0");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsQueriesWithUnbalancedQuotes() {
+        BundleAbstractDAO.addCondition("from Person p where p.email = 'it''s", "p.name > :keyset0");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsQueriesWithUnbalancedParentheses() {
+        BundleAbstractDAO.addCondition("from Person p where (p.email = 'a') or p.name = 'b')",
+                "p.name > :keyset0");
+    }
+
+    @Test
+    public void testFindsTheAliasOfTheEntity() {
+        assertThat(BundleAbstractDAO.getAlias("from Person p where p.name = 'from X x'"))
+                .isEqualTo("p");
+        assertThat(BundleAbstractDAO.getAlias("select p from Person as p")).isEqualTo("p");
+        assertThat(BundleAbstractDAO.getAlias(
+                "select p from Person p where p.name in (select n.name from Name n)"))
+                        .isEqualTo("p");
+        assertThat(BundleAbstractDAO.getAlias("from Person where name = 'ana'")).isNull();
+        assertThat(BundleAbstractDAO.getAlias("from Person")).isNull();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsKeysWithoutTheAlias() {
+        this.service.byUnaliasedName(2, null);
+    }
+}
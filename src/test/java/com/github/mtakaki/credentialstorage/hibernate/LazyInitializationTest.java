@@ -0,0 +1,151 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.hibernate.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Optional;
+
+import io.dropwizard.logging.BootstrapLogging;
+import io.dropwizard.util.Duration;
+
+public class LazyInitializationTest {
+    static {
+        BootstrapLogging.bootstrap();
+    }
+
+    private static final String IDLE_SHUTDOWN = RemoteCredentialHibernateBundle.DEFAULT_NAME
+            + "-idle-shutdown";
+
+    private OfflineBundleHarness harness;
+    private OfflineBundleHarnessTest.PersonService service;
+
+    @Before
+    public void setUp() throws Exception {
+        this.harness = new OfflineBundleHarness();
+        this.harness.getDataSourceFactory().setLazyInitialization(true);
+        this.harness.getDataSourceFactory().setIdleShutdownTimeout(Duration.milliseconds(1));
+        this.harness.start();
+        // The DAO is built like the applications do, while they run.
+        this.service = new UnitOfWorkAwareProxyFactory(RemoteCredentialHibernateBundle.DEFAULT_NAME,
+                this.harness.getBundle()).create(OfflineBundleHarnessTest.PersonService.class,
+                        JerseyIntegrationTest.PersonDAO.class,
+                        new JerseyIntegrationTest.PersonDAO(this.harness.getBundle()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.harness.close();
+    }
+
+    @Test
+    public void testIsOnlyInitializedByTheFirstUnitOfWork() throws Exception {
+        assertThat(this.harness.getCredentialService().getRequests()).isZero();
+        assertThat(this.harness.getDatabase().getSessionCount()).isZero();
+
+        this.service.save("ana", "ana@example.com");
+
+        assertThat(this.harness.getCredentialService().getRequests()).isEqualTo(1);
+        assertThat(this.service.find("ana").isPresent()).isTrue();
+    }
+
+    @Test
+    public void testInitializesOnceForConcurrentFirstUses() throws Exception {
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<SessionFactory>> sessionFactories = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                sessionFactories.add(executor.submit(() -> {
+                    start.await();
+                    return this.harness.getBundle().getSessionFactory();
+                }));
+            }
+            start.countDown();
+
+            final SessionFactory first = sessionFactories.get(0).get(10, TimeUnit.SECONDS);
+            for (final Future<SessionFactory> sessionFactory : sessionFactories) {
+                assertThat(sessionFactory.get(10, TimeUnit.SECONDS)).isSameAs(first);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertThat(this.harness.getCredentialService().getRequests()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRetriesAFailedInitialization() throws Exception {
+        this.harness.getCredentialService().failNext(1);
+        try {
+            this.service.save("ana", "ana@example.com");
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (final IllegalStateException e) {
+            assertThat(e).hasMessageContaining("failed to initialize");
+        }
+
+        this.service.save("ana", "ana@example.com");
+
+        assertThat(this.harness.getCredentialService().getRequests()).isEqualTo(2);
+        assertThat(this.service.find("ana").isPresent()).isTrue();
+    }
+
+    @Test
+    public void testReleasesIdleConnectionsAndInitializesAgain() throws Exception {
+        this.service.save("ana", "ana@example.com");
+        final SessionFactory first = this.harness.getBundle().getSessionFactory();
+        Thread.sleep(5);
+
+        this.harness.runScheduledTask(IDLE_SHUTDOWN);
+
+        assertThat(first.isClosed()).isTrue();
+        assertThat(this.harness.getDatabase().getSessionCount()).isZero();
+
+        final Optional<Person> person = this.service.find("ana");
+
+        assertThat(person.isPresent()).isTrue();
+        assertThat(this.harness.getBundle().getSessionFactory()).isNotSameAs(first);
+        assertThat(this.harness.getCredentialService().getRequests()).isEqualTo(2);
+    }
+
+    @Test
+    public void testDoesNotAddUsersToConnectionsReleasedWhileIdle() throws Exception {
+        final SessionHolders first = this.harness.getBundle().getSessionHolders();
+        Thread.sleep(5);
+        this.harness.runScheduledTask(IDLE_SHUTDOWN);
+        final Object user = new Object();
+
+        final SessionHolders sessionHolders = this.harness.getBundle().addSessionHolder(user);
+
+        assertThat(first.isClosed()).isTrue();
+        assertThat(first.isEmpty()).isTrue();
+        assertThat(sessionHolders).isNotSameAs(first);
+        assertThat(sessionHolders.isClosed()).isFalse();
+        assertThat(sessionHolders.isEmpty()).isFalse();
+        assertThat(this.harness.getCredentialService().getRequests()).isEqualTo(2);
+        sessionHolders.remove(user);
+    }
+
+    @Test
+    public void testDoesNotReleaseConnectionsThatAreNotIdle() throws Exception {
+        this.harness.getDataSourceFactory().setIdleShutdownTimeout(Duration.hours(1));
+        this.service.save("ana", "ana@example.com");
+        final SessionFactory sessionFactory = this.harness.getBundle().getSessionFactory();
+
+        this.harness.runScheduledTask(IDLE_SHUTDOWN);
+
+        assertThat(sessionFactory.isClosed()).isFalse();
+    }
+}
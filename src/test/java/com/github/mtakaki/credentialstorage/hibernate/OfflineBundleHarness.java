@@ -0,0 +1,252 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.util.component.LifeCycle;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.mtakaki.credentialstorage.client.CredentialStorageServiceClient;
+import com.google.common.collect.Lists;
+
+import io.dropwizard.Configuration;
+import io.dropwizard.db.PooledDataSourceFactory;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.jersey.validation.Validators;
+import io.dropwizard.setup.Environment;
+
+/**
+ * Runs a {@link RemoteCredentialHibernateBundle} fully offline: the
+ * credentials are served by a {@link CredentialServiceStub} and the bundle
+ * connects to an {@link InMemoryDatabase} that enforces them. The bundle runs
+ * in a real {@link Environment}, without the HTTP server, and the tasks it
+ * schedules on its {@link CredentialRefreshService} can be triggered on
+ * demand, so the rotations happen exactly when the test wants them.
+ * <p>
+ * The database has the {@code people} table of {@link Person}. The
+ * configuration of the bundle can be changed through
+ * {@link #getDataSourceFactory()} before it's started.
+ * </p>
+ */
+public class OfflineBundleHarness implements AutoCloseable {
+    private final InMemoryDatabase database;
+    private final CredentialServiceStub credentialService;
+    private final StubRefreshService refreshService;
+    private final RemoteCredentialDataSourceFactory dataSourceFactory;
+    private final Environment environment;
+    private final HarnessBundle bundle;
+    private boolean started;
+
+    public OfflineBundleHarness() throws Exception {
+        this.database = new InMemoryDatabase("offline-bundle");
+        this.database.execute(
+                "CREATE TABLE people (name varchar(100) primary key, email varchar(100), birthday timestamp with time zone)");
+        this.credentialService = new CredentialServiceStub(this.database);
+        this.refreshService = new StubRefreshService(this.credentialService);
+
+        this.dataSourceFactory = new RemoteCredentialDataSourceFactory();
+        this.dataSourceFactory.setDriverClass(InMemoryDatabase.DRIVER_CLASS);
+        this.dataSourceFactory.setUrl(this.database.getUrl());
+        this.dataSourceFactory.setValidationQuery(InMemoryDatabase.VALIDATION_QUERY);
+        this.dataSourceFactory.getProperties().put("hibernate.dialect",
+                "org.hibernate.dialect.HSQLDialect");
+        this.dataSourceFactory.setRefreshFrequency(1);
+        // The stub is used instead of the client, so the service and the
+        // keys are never accessed.
+        this.dataSourceFactory.setCredentialServiceURL("http://localhost/credential-service-stub");
+        this.dataSourceFactory.setPrivateKeyFile("src/test/resources/private_key.der");
+        this.dataSourceFactory.setPublicKeyFile("src/test/resources/public_key.der");
+
+        this.environment = new Environment("offline-bundle", Jackson.newObjectMapper(),
+                Validators.newValidator(), new MetricRegistry(),
+                OfflineBundleHarness.class.getClassLoader());
+        this.bundle = new HarnessBundle(this.dataSourceFactory, this.refreshService);
+    }
+
+    /**
+     * Runs the bundle and starts the objects it manages, which waits for its
+     * initialization.
+     *
+     * @throws Exception
+     *             Thrown if the bundle failed to start.
+     */
+    public void start() throws Exception {
+        this.bundle.run(new Configuration(), this.environment);
+        this.started = true;
+        for (final LifeCycle managed : this.environment.lifecycle().getManagedObjects()) {
+            managed.start();
+        }
+    }
+
+    /**
+     * Creates a new version of the credential and runs the scheduled
+     * credential retrieval of the bundle, like the
+     * {@link CredentialRefreshService} would once the refresh frequency
+     * elapsed.
+     *
+     * @throws Exception
+     *             Thrown if the new version could not be created.
+     */
+    public void rotateCredentials() throws Exception {
+        this.credentialService.rotate();
+        this.runScheduledTask(RemoteCredentialHibernateBundle.DEFAULT_NAME);
+    }
+
+    /**
+     * Runs a task the bundle registered on its
+     * {@link CredentialRefreshService}, in the calling thread.
+     *
+     * @param name
+     *            The name it was registered with.
+     */
+    public void runScheduledTask(final String name) {
+        final Runnable task = this.refreshService.tasks.get(name);
+        if (task == null) {
+            throw new IllegalArgumentException("No task registered as: " + name);
+        }
+        task.run();
+    }
+
+    /**
+     * Runs the tasks the bundle scheduled once on its
+     * {@link CredentialRefreshService}, such as the retries, in the calling
+     * thread. They are not run by the scheduler.
+     *
+     * @return The number of tasks that were run.
+     */
+    public int runScheduledOnceTasks() {
+        final List<Runnable> tasks = this.refreshService.takeScheduled();
+        tasks.forEach(Runnable::run);
+        return tasks.size();
+    }
+
+    public RemoteCredentialHibernateBundle<Configuration> getBundle() {
+        return this.bundle;
+    }
+
+    public RemoteCredentialDataSourceFactory getDataSourceFactory() {
+        return this.dataSourceFactory;
+    }
+
+    public InMemoryDatabase getDatabase() {
+        return this.database;
+    }
+
+    public CredentialServiceStub getCredentialService() {
+        return this.credentialService;
+    }
+
+    public Environment getEnvironment() {
+        return this.environment;
+    }
+
+    /**
+     * Stops the objects managed by the bundle, in the reverse order they were
+     * started, like the application does when it's shut down. It closes the
+     * connections of the bundle.
+     *
+     * @throws Exception
+     *             Thrown if an object failed to stop.
+     */
+    public void stop() throws Exception {
+        if (!this.started) {
+            return;
+        }
+        this.started = false;
+        final List<LifeCycle> managedObjects = this.environment.lifecycle().getManagedObjects();
+        for (final LifeCycle managed : Lists.reverse(managedObjects)) {
+            managed.stop();
+        }
+    }
+
+    /**
+     * Stops the objects managed by the bundle and shuts the database down.
+     */
+    @Override
+    public void close() throws Exception {
+        try {
+            this.stop();
+        } finally {
+            this.database.close();
+        }
+    }
+
+    private static class HarnessBundle extends RemoteCredentialHibernateBundle<Configuration> {
+        private final RemoteCredentialDataSourceFactory dataSourceFactory;
+        private final CredentialRefreshService refreshService;
+
+        HarnessBundle(final RemoteCredentialDataSourceFactory dataSourceFactory,
+                final CredentialRefreshService refreshService) {
+            super(Person.class);
+            this.dataSourceFactory = dataSourceFactory;
+            this.refreshService = refreshService;
+        }
+
+        @Override
+        public PooledDataSourceFactory getDataSourceFactory(final Configuration configuration) {
+            return this.dataSourceFactory;
+        }
+
+        @Override
+        protected CredentialRefreshService getCredentialRefreshService() {
+            return this.refreshService;
+        }
+    }
+
+    /**
+     * Serves the client of the stub and keeps the registered and scheduled
+     * tasks, so they can be triggered by the harness.
+     */
+    private static class StubRefreshService extends CredentialRefreshService {
+        private final CredentialServiceStub credentialService;
+        private final Map<String, Runnable> tasks = new ConcurrentHashMap<>();
+        private final List<Runnable> scheduled = new ArrayList<>();
+
+        StubRefreshService(final CredentialServiceStub credentialService) {
+            super(1);
+            this.credentialService = credentialService;
+        }
+
+        @Override
+        public CredentialStorageServiceClient getClient(
+                final RemoteCredentialDataSourceFactory dataSourceFactory)
+                throws NoSuchAlgorithmException, InvalidKeySpecException, IOException {
+            return this.credentialService.getClient();
+        }
+
+        @Override
+        public synchronized Registration register(final String name, final Runnable task,
+                final long period, final TimeUnit unit) {
+            this.tasks.put(name, task);
+            return super.register(name, task, period, unit);
+        }
+
+        @Override
+        public synchronized Registration registerMaintenance(final String name,
+                final Runnable task, final long period, final TimeUnit unit) {
+            this.tasks.put(name, task);
+            return super.registerMaintenance(name, task, period, unit);
+        }
+
+        @Override
+        public synchronized ScheduledFuture<?> schedule(final Runnable task, final long delay,
+                final TimeUnit unit) {
+            this.scheduled.add(task);
+            return super.schedule(() -> {
+            }, delay, unit);
+        }
+
+        synchronized List<Runnable> takeScheduled() {
+            final List<Runnable> tasks = new ArrayList<>(this.scheduled);
+            this.scheduled.clear();
+            return tasks;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.mtakaki.credentialstorage.client.model.Credential;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMultimap;
+
+import io.dropwizard.logging.BootstrapLogging;
+
+public class OfflineBundleHarnessTest {
+    static {
+        BootstrapLogging.bootstrap();
+    }
+
+    public static class PersonService {
+        private final JerseyIntegrationTest.PersonDAO dao;
+
+        public PersonService(final JerseyIntegrationTest.PersonDAO dao) {
+            this.dao = dao;
+        }
+
+        @UnitOfWork(readOnly = true)
+        public Optional<Person> find(final String name) {
+            return this.dao.findByName(name);
+        }
+
+        @UnitOfWork
+        public void save(final String name, final String email) {
+            final Person person = new Person();
+            person.setName(name);
+            person.setEmail(email);
+            this.dao.persist(person);
+        }
+    }
+
+    public static class ImportDAO extends JerseyIntegrationTest.PersonDAO {
+        public ImportDAO(final RemoteCredentialHibernateBundle<?> bundle) {
+            super(bundle);
+        }
+
+        public boolean isAttached(final Person person) {
+            return this.currentSession().contains(person);
+        }
+    }
+
+    public static class ImportService {
+        private final ImportDAO dao;
+
+        public ImportService(final ImportDAO dao) {
+            this.dao = dao;
+        }
+
+        @UnitOfWork(batchSize = 2)
+        public List<Boolean> importPeople(final String... names) {
+            return this.persist(names);
+        }
+
+        @UnitOfWork(batchSize = 2, clearAfterFlush = true)
+        public List<Boolean> importPeopleAndClear(final String... names) {
+            return this.persist(names);
+        }
+
+        private List<Boolean> persist(final String... names) {
+            final List<Person> people = new ArrayList<>();
+            for (final String name : names) {
+                final Person person = new Person();
+                person.setName(name);
+                people.add(this.dao.persist(person));
+            }
+            final List<Boolean> attached = new ArrayList<>();
+            for (final Person person : people) {
+                attached.add(this.dao.isAttached(person));
+            }
+            return attached;
+        }
+    }
+
+    private OfflineBundleHarness harness;
+    private PersonService service;
+
+    @Before
+    public void setUp() throws Exception {
+        this.harness = new OfflineBundleHarness();
+        this.harness.start();
+        this.service = new UnitOfWorkAwareProxyFactory(RemoteCredentialHibernateBundle.DEFAULT_NAME,
+                this.harness.getBundle()).create(PersonService.class,
+                        JerseyIntegrationTest.PersonDAO.class,
+                        new JerseyIntegrationTest.PersonDAO(this.harness.getBundle()));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.harness.close();
+    }
+
+    @Test
+    public void testUsesTheServedCredential() throws Exception {
+        this.service.save("coda", "coda@example.com");
+
+        assertThat(this.service.find("coda").get().getEmail()).isEqualTo("coda@example.com");
+        assertThat(this.harness.getCredentialService().getRequests()).isEqualTo(1);
+        assertThat(this.harness.getDatabase().getSessionCount("APP_1")).isPositive();
+    }
+
+    @Test
+    public void testRotatesToTheNewCredential() throws Exception {
+        this.service.save("coda", "coda@example.com");
+
+        this.harness.rotateCredentials();
+        this.harness.getCredentialService().revoke(1);
+
+        assertThat(this.service.find("coda").isPresent()).isTrue();
+        // No unit of work was running, so the old pool was closed right away.
+        assertThat(this.harness.getDatabase().getSessionCount("APP_1")).isZero();
+        assertThat(this.harness.getDatabase().getSessionCount("APP_2")).isPositive();
+    }
+
+    @Test
+    public void testKeepsTheCredentialWhenTheServiceIsUnavailable() throws Exception {
+        this.harness.getCredentialService().failNext(1);
+
+        this.harness.rotateCredentials();
+
+        assertThat(this.service.find("coda").isPresent()).isFalse();
+        assertThat(this.harness.getCredentialService().getRequests()).isEqualTo(2);
+        assertThat(this.harness.getDatabase().getSessionCount("APP_2")).isZero();
+    }
+
+    @Test
+    public void testRetriesAFailedRotationOfTheAdminTask() throws Exception {
+        this.harness.getCredentialService().rotate();
+        this.harness.getCredentialService().failNext(1);
+        final CredentialRotationTask task = new CredentialRotationTask("rotate-credentials",
+                this.harness.getBundle());
+
+        try {
+            task.execute(ImmutableMultimap.of(), new PrintWriter(new StringWriter()));
+            failBecauseExceptionWasNotThrown(Exception.class);
+        } catch (final Exception e) {
+            // The credential service is unavailable.
+        }
+
+        // The retry is the same one the scheduled retrieval gets.
+        assertThat(this.harness.runScheduledOnceTasks()).isEqualTo(1);
+        this.harness.getCredentialService().revoke(1);
+        assertThat(this.service.find("coda").isPresent()).isFalse();
+        assertThat(this.harness.getDatabase().getSessionCount("APP_2")).isPositive();
+    }
+
+    @Test
+    public void testRestoresTheCredentialWhenTheRotationFails() throws Exception {
+        // The pool of the partition is only started by the rotation.
+        final PoolSettings invalid = new PoolSettings();
+        invalid.setMaxSize(0);
+        this.harness.getDataSourceFactory().getPartitions().put("reports", invalid);
+
+        this.harness.rotateCredentials();
+
+        assertThat(this.harness.getDataSourceFactory().getUser()).isEqualTo("APP_1");
+        assertThat(this.service.find("coda").isPresent()).isFalse();
+
+        this.harness.getDataSourceFactory().getPartitions().clear();
+        assertThat(this.harness.runScheduledOnceTasks()).isEqualTo(1);
+
+        assertThat(this.harness.getDataSourceFactory().getUser()).isEqualTo("APP_2");
+    }
+
+    @Test
+    public void testClearsTheSessionAfterEveryBatch() throws Exception {
+        final ImportService importService = new UnitOfWorkAwareProxyFactory(
+                RemoteCredentialHibernateBundle.DEFAULT_NAME, this.harness.getBundle())
+                        .create(ImportService.class, ImportDAO.class,
+                                new ImportDAO(this.harness.getBundle()));
+
+        assertThat(importService.importPeople("ana", "bob", "carl")).containsExactly(true,
+                true, true);
+        // The first batch was flushed and detached.
+        assertThat(importService.importPeopleAndClear("dan", "eve", "fay")).containsExactly(
+                false, false, true);
+        assertThat(this.service.find("eve").isPresent()).isTrue();
+        assertThat(this.service.find("fay").isPresent()).isTrue();
+    }
+
+    @Test
+    public void testDatabaseRejectsRevokedCredentials() throws Exception {
+        final Credential credential = this.harness.getCredentialService().getCurrent();
+        this.harness.getCredentialService().revoke(1);
+
+        try {
+            DriverManager.getConnection(this.harness.getDatabase().getUrl(),
+                    credential.getPrimary(), credential.getSecondary()).close();
+            failBecauseExceptionWasNotThrown(SQLException.class);
+        } catch (final SQLException e) {
+            // The old password is not accepted anymore.
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatcher;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+
+import io.dropwizard.util.Duration;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PoolReconfigurationTaskTest {
+    @Mock
+    private RemoteCredentialHibernateBundle<?> bundle;
+
+    private PoolReconfigurationTask task;
+    private StringWriter output;
+
+    @Before
+    public void setup() {
+        this.task = new PoolReconfigurationTask("reconfigure-pool-hibernate", this.bundle);
+        this.output = new StringWriter();
+    }
+
+    @Test
+    public void testExecuteReportsTheChanges() throws Exception {
+        when(this.bundle.reconfigurePool(any(PoolSettings.class)))
+                .thenReturn(ImmutableList.of("maxSize: 100 -> 50"));
+
+        this.task.execute(ImmutableMultimap.of(PoolReconfigurationTask.MAX_SIZE_PARAMETER, "50",
+                PoolReconfigurationTask.MAX_WAIT_FOR_CONNECTION_PARAMETER, "500ms"),
+                new PrintWriter(this.output));
+
+        verify(this.bundle).reconfigurePool(argThat(new ArgumentMatcher<PoolSettings>() {
+            @Override
+            public boolean matches(final Object argument) {
+                final PoolSettings settings = (PoolSettings) argument;
+                return settings.getMaxSize() == 50 && settings.getMinSize() == null
+                        && Duration.milliseconds(500).equals(settings.getMaxWaitForConnection());
+            }
+        }));
+        assertThat(this.output.toString()).contains("Pool reconfigured.")
+                .contains("maxSize: 100 -> 50");
+    }
+
+    @Test
+    public void testExecuteWithUnchangedSettings() throws Exception {
+        when(this.bundle.reconfigurePool(any(PoolSettings.class)))
+                .thenReturn(Collections.emptyList());
+
+        this.task.execute(ImmutableMultimap.of(PoolReconfigurationTask.MIN_SIZE_PARAMETER, "10"),
+                new PrintWriter(this.output));
+
+        assertThat(this.output.toString()).contains("Pool settings are unchanged.");
+    }
+
+    @Test
+    public void testExecuteWithoutSettings() throws Exception {
+        this.task.execute(ImmutableMultimap.of(), new PrintWriter(this.output));
+
+        verify(this.bundle, never()).reconfigurePool(any(PoolSettings.class));
+        assertThat(this.output.toString()).contains("Nothing was done.");
+    }
+
+    @Test
+    public void testExecuteWithInvalidParameter() throws Exception {
+        this.task.execute(ImmutableMultimap.of(PoolReconfigurationTask.MAX_SIZE_PARAMETER, "many"),
+                new PrintWriter(this.output));
+
+        verify(this.bundle, never()).reconfigurePool(any(PoolSettings.class));
+        assertThat(this.output.toString()).contains("Invalid parameter");
+    }
+
+    @Test
+    public void testExecuteWithInvalidSettings() throws Exception {
+        when(this.bundle.reconfigurePool(any(PoolSettings.class)))
+                .thenThrow(new IllegalArgumentException("Invalid pool settings: [maxSize]"));
+
+        this.task.execute(ImmutableMultimap.of(PoolReconfigurationTask.MAX_SIZE_PARAMETER, "0"),
+                new PrintWriter(this.output));
+
+        assertThat(this.output.toString()).contains("Invalid pool settings");
+    }
+}
@@ -0,0 +1,250 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionBuilder;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+
+import io.dropwizard.util.Duration;
+
+public class QueryWarmUpTest {
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private final WarmUpConfiguration configuration = new WarmUpConfiguration();
+    private final DataSource dataSource = mock(DataSource.class);
+    private final SessionFactory sessionFactory = mock(SessionFactory.class);
+    private final Session session = mock(Session.class);
+    private final Query query = mock(Query.class);
+    private final String url = "jdbc:hsqldb:mem:warm-up-" + UUID.randomUUID();
+    private Connection connection;
+
+    @Before
+    public void setup() throws Exception {
+        this.connection = DriverManager.getConnection(this.url, "sa", "");
+        try (Statement statement = this.connection.createStatement()) {
+            statement.execute("create table people (id int primary key, name varchar(16))");
+            statement.execute("insert into people values (1, 'jeff')");
+        }
+        when(this.dataSource.getConnection())
+                .thenAnswer(invocation -> DriverManager.getConnection(this.url, "sa", ""));
+        when(this.sessionFactory.openSession()).thenReturn(this.session);
+        when(this.session.beginTransaction()).thenReturn(mock(Transaction.class));
+        when(this.session.createQuery("from Person")).thenReturn(this.query);
+        when(this.query.getNamedParameters()).thenReturn(new String[0]);
+        when(this.query.setReadOnly(true)).thenReturn(this.query);
+        when(this.query.setMaxResults(anyInt())).thenReturn(this.query);
+        when(this.query.setTimeout(anyInt())).thenReturn(this.query);
+
+        this.configuration.setSamplingRate(1.0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.connection.close();
+    }
+
+    private QueryWarmUp createWarmUp() {
+        return new QueryWarmUp(this.configuration, this.metricRegistry, "hibernate");
+    }
+
+    @Test
+    public void testRecordsOnlyQueries() {
+        final QueryWarmUp warmUp = this.createWarmUp();
+
+        warmUp.recordHql("from Person");
+        warmUp.recordHql("update Person set name = :name");
+        warmUp.record(this.dataSource, "select * from people where id = ?", new Object[] { 1 },
+                0);
+        warmUp.record(this.dataSource, "delete from people", null, 0);
+
+        assertThat(warmUp.getRecordedHql()).containsExactly("from Person");
+        assertThat(warmUp.getRecordedSql()).containsExactly("select * from people where id = ?");
+    }
+
+    @Test
+    public void testKeepsTheMostFrequentQueries() {
+        this.configuration.setTrackedQueries(2);
+        final QueryWarmUp warmUp = this.createWarmUp();
+
+        warmUp.recordHql("from Person");
+        warmUp.recordHql("from Person");
+        warmUp.recordHql("from Person");
+        warmUp.recordHql("from Order");
+        // Full, so the least frequent one, "from Order", is replaced.
+        warmUp.recordHql("from Invoice");
+
+        assertThat(warmUp.getRecordedHql()).containsOnly("from Person", "from Invoice");
+    }
+
+    @Test
+    public void testKeepsTheFrequentQueriesWithManyUniqueOnes() {
+        this.configuration.setTrackedQueries(3);
+        final QueryWarmUp warmUp = this.createWarmUp();
+        for (int i = 0; i < 50; i++) {
+            warmUp.recordHql("from Person");
+            warmUp.recordHql("from Order");
+        }
+
+        // They share the last slot, whose count grows with every one.
+        for (int i = 0; i < 20; i++) {
+            warmUp.recordHql("from Invoice where id = " + i);
+        }
+
+        assertThat(warmUp.getRecordedHql()).hasSize(3).contains("from Person", "from Order");
+    }
+
+    @Test
+    public void testReplaysTheStatementsOnEveryPartition() throws Exception {
+        final QueryWarmUp warmUp = this.createWarmUp();
+        warmUp.record(this.dataSource, "select * from people", null, 0);
+        final DataSource partition = mock(DataSource.class);
+        when(partition.getConnection())
+                .thenAnswer(invocation -> DriverManager.getConnection(this.url, "sa", ""));
+
+        warmUp.warmUp(this.sessionFactory, this.dataSource, ImmutableList.of(partition), null);
+
+        verify(this.dataSource).getConnection();
+        verify(partition).getConnection();
+        assertThat(this.metricRegistry.meter("hibernate.warmUp.replayed").getCount())
+                .isEqualTo(2L);
+    }
+
+    @Test
+    public void testReplaysTheRecordedQueries() throws Exception {
+        final QueryWarmUp warmUp = this.createWarmUp();
+        warmUp.recordHql("from Person");
+        warmUp.record(this.dataSource, "select * from people where id = ?", new Object[] { 1 },
+                0);
+        warmUp.record(this.dataSource, "select * from missing", null, 0);
+
+        warmUp.warmUp(this.sessionFactory, this.dataSource, null);
+
+        verify(this.query).list();
+        verify(this.session).close();
+        assertThat(this.metricRegistry.meter("hibernate.warmUp.replayed").getCount())
+                .isEqualTo(2L);
+        assertThat(this.metricRegistry.meter("hibernate.warmUp.failed").getCount())
+                .isEqualTo(1L);
+        assertThat(this.metricRegistry.timer("hibernate.warmUp.duration").getCount())
+                .isEqualTo(1L);
+    }
+
+    @Test
+    public void testReplaysTheStatementsCapturedThroughTimedConnections() throws Exception {
+        this.configuration.setReplayParameters(true);
+        final StatementRecorder replays = this.captureAndReplay();
+
+        verify(replays).record(any(DataSource.class), eq("select name from people"),
+                any(Object[].class), anyLong());
+        verify(replays).record(any(DataSource.class), eq("select * from people where id = ?"),
+                eq(new Object[] { 1 }), anyLong());
+        assertThat(this.metricRegistry.meter("hibernate.warmUp.replayed").getCount())
+                .isEqualTo(2L);
+    }
+
+    @Test
+    public void testOnlyPreparesTheStatementsWithParametersByDefault() throws Exception {
+        final StatementRecorder replays = this.captureAndReplay();
+
+        verify(replays).record(any(DataSource.class), eq("select name from people"),
+                any(Object[].class), anyLong());
+        verify(replays, never()).record(any(DataSource.class),
+                eq("select * from people where id = ?"), any(Object[].class), anyLong());
+        assertThat(this.metricRegistry.meter("hibernate.warmUp.replayed").getCount())
+                .isEqualTo(2L);
+        assertThat(this.metricRegistry.meter("hibernate.warmUp.failed").getCount()).isZero();
+    }
+
+    /**
+     * Runs the statements on a connection recorded by the warm-up and replays
+     * them on connections recorded by the returned mock.
+     */
+    private StatementRecorder captureAndReplay() throws Exception {
+        final QueryWarmUp warmUp = this.createWarmUp();
+        final Connection recorded = TimedConnections.wrap(
+                DriverManager.getConnection(this.url, "sa", ""), this.dataSource, warmUp);
+        try (PreparedStatement statement = recorded
+                .prepareStatement("select * from people where id = ?")) {
+            statement.setInt(1, 1);
+            statement.executeQuery().close();
+        }
+        try (Statement statement = recorded.createStatement();
+                ResultSet resultSet = statement.executeQuery("select name from people")) {
+            assertThat(resultSet.next()).isTrue();
+        }
+        recorded.close();
+
+        final StatementRecorder replays = mock(StatementRecorder.class);
+        final DataSource replayDataSource = mock(DataSource.class);
+        when(replayDataSource.getConnection()).thenAnswer(invocation -> TimedConnections
+                .wrap(DriverManager.getConnection(this.url, "sa", ""), replayDataSource, replays));
+
+        warmUp.warmUp(this.sessionFactory, replayDataSource, null);
+        return replays;
+    }
+
+    @Test
+    public void testReplaysOnTheDefaultTenant() {
+        final SessionBuilder sessionBuilder = mock(SessionBuilder.class);
+        when(this.sessionFactory.withOptions()).thenReturn(sessionBuilder);
+        when(sessionBuilder.tenantIdentifier("acme")).thenReturn(sessionBuilder);
+        when(sessionBuilder.openSession()).thenReturn(this.session);
+        final QueryWarmUp warmUp = this.createWarmUp();
+        warmUp.recordHql("from Person");
+
+        warmUp.warmUp(this.sessionFactory, this.dataSource, "acme");
+
+        verify(this.sessionFactory, never()).openSession();
+        verify(this.query).list();
+    }
+
+    @Test
+    public void testCompilesQueriesWithParametersWithoutExecutingThem() {
+        when(this.query.getNamedParameters()).thenReturn(new String[] { "name" });
+        this.configuration.setHql(ImmutableList.of("from Person"));
+        final QueryWarmUp warmUp = this.createWarmUp();
+
+        warmUp.warmUp(this.sessionFactory, this.dataSource, null);
+
+        verify(this.session).createQuery("from Person");
+        verify(this.query, never()).list();
+    }
+
+    @Test
+    public void testSkipsTheQueriesOverTheTimeBudget() {
+        this.configuration.setTimeBudget(Duration.milliseconds(0));
+        final QueryWarmUp warmUp = this.createWarmUp();
+        warmUp.recordHql("from Person");
+
+        warmUp.warmUp(this.sessionFactory, this.dataSource, null);
+
+        verify(this.session, never()).createQuery("from Person");
+        assertThat(this.metricRegistry.meter("hibernate.warmUp.skipped").getCount())
+                .isEqualTo(1L);
+    }
+}
@@ -0,0 +1,303 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformReservoir;
+import com.google.common.base.Optional;
+
+import io.dropwizard.logging.BootstrapLogging;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Measures what the units of work see while the credentials are rotated.
+ * Concurrent workers read and write through {@code @UnitOfWork} methods and
+ * {@link BundleAbstractDAO}, while the credentials are rotated through the
+ * scheduled credential retrieval of the bundle. Everything runs offline, on
+ * the {@link OfflineBundleHarness}.
+ * <p>
+ * Each rotation is split in three phases: {@code before} the rotation,
+ * {@code during} it, until the old database user has no sessions left, and
+ * {@code after} it. The report has the errors, latency percentiles and peak
+ * database sessions of each phase, and how long the old connections took to
+ * drain. The old user is revoked once they are drained, so any connection
+ * opened with it afterwards fails. A unit of work that spans a phase change
+ * is counted in the rotation it overlaps, so the {@code before} and
+ * {@code after} phases only have units of work that didn't see the rotation.
+ * </p>
+ * <p>
+ * It's only run by the {@code benchmark} profile:
+ * </p>
+ *
+ * <pre>
+ * mvn test -Pbenchmark -Dbenchmark.threads=32 -Dbenchmark.rotationMode=SOFT
+ * </pre>
+ */
+@Slf4j
+public class RotationUnderLoadBenchmark {
+    static {
+        BootstrapLogging.bootstrap();
+    }
+
+    private static final int THREADS = Integer.getInteger("benchmark.threads", 16);
+    private static final int ROTATIONS = Integer.getInteger("benchmark.rotations", 3);
+    private static final long PHASE_MILLIS = Long.getLong("benchmark.phaseMillis", 5000L);
+    private static final long HOLD_MILLIS = Long.getLong("benchmark.holdMillis", 1L);
+    private static final long DRAIN_TIMEOUT_MILLIS = Long
+            .getLong("benchmark.drainTimeoutMillis", 30000L);
+    private static final double WRITE_RATIO = Double
+            .parseDouble(System.getProperty("benchmark.writeRatio", "0.1"));
+    private static final CredentialRotationMode ROTATION_MODE = CredentialRotationMode
+            .valueOf(System.getProperty("benchmark.rotationMode", "REPLACE_POOL"));
+    private static final int PEOPLE = 100;
+
+    public static class PersonService {
+        private final JerseyIntegrationTest.PersonDAO dao;
+        private final long holdMillis;
+
+        public PersonService(final JerseyIntegrationTest.PersonDAO dao, final long holdMillis) {
+            this.dao = dao;
+            this.holdMillis = holdMillis;
+        }
+
+        @UnitOfWork(readOnly = true)
+        public Optional<Person> find(final String name) throws InterruptedException {
+            final Optional<Person> person = this.dao.findByName(name);
+            // Keeps the connection like a unit of work that does more than
+            // one query.
+            Thread.sleep(this.holdMillis);
+            return person;
+        }
+
+        @UnitOfWork
+        public void save(final String name) throws InterruptedException {
+            final Person person = new Person();
+            person.setName(name);
+            person.setEmail(name + "@example.com");
+            this.dao.persist(person);
+            Thread.sleep(this.holdMillis);
+        }
+    }
+
+    private OfflineBundleHarness harness;
+    private PersonService service;
+    private ExecutorService workers;
+    private ScheduledExecutorService sampler;
+
+    // Read by the workers while the phases start.
+    private final List<Phase> phases = new CopyOnWriteArrayList<>();
+    private final AtomicLong writes = new AtomicLong();
+    private volatile Phase currentPhase;
+    private volatile boolean running = true;
+
+    @Before
+    public void setUp() throws Exception {
+        this.harness = new OfflineBundleHarness();
+        final RemoteCredentialDataSourceFactory dataSourceFactory = this.harness
+                .getDataSourceFactory();
+        dataSourceFactory.setRotationMode(ROTATION_MODE);
+        dataSourceFactory.setMaxSize(Math.max(THREADS, dataSourceFactory.getMaxSize()));
+        this.harness.start();
+        this.service = new UnitOfWorkAwareProxyFactory(RemoteCredentialHibernateBundle.DEFAULT_NAME,
+                this.harness.getBundle()).create(PersonService.class,
+                        new Class<?>[] { JerseyIntegrationTest.PersonDAO.class, long.class },
+                        new Object[] { new JerseyIntegrationTest.PersonDAO(
+                                this.harness.getBundle()), HOLD_MILLIS });
+        for (int i = 0; i < PEOPLE; i++) {
+            this.service.save("person-" + i);
+        }
+        this.workers = Executors.newFixedThreadPool(THREADS);
+        this.sampler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.running = false;
+        this.workers.shutdownNow();
+        this.sampler.shutdownNow();
+        this.workers.awaitTermination(DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        this.harness.close();
+    }
+
+    @Test
+    public void testRotationUnderLoad() throws Exception {
+        this.startPhase("warm-up", false);
+        for (int i = 0; i < THREADS; i++) {
+            this.workers.execute(this::work);
+        }
+        this.sampler.scheduleAtFixedRate(this::sampleConnections, 0, 5, TimeUnit.MILLISECONDS);
+        Thread.sleep(PHASE_MILLIS);
+
+        final List<String> drains = new ArrayList<>();
+        for (int rotation = 1; rotation <= ROTATIONS; rotation++) {
+            this.startPhase("rotation " + rotation + " before", false);
+            Thread.sleep(PHASE_MILLIS);
+
+            final CredentialServiceStub credentialService = this.harness.getCredentialService();
+            final String oldUser = credentialService.getCurrent().getPrimary();
+            final int oldVersion = credentialService.getVersion();
+            this.startPhase("rotation " + rotation + " during", true);
+            final long start = System.nanoTime();
+            this.harness.rotateCredentials();
+            final long swapNanos = System.nanoTime() - start;
+            final long drainNanos = this.awaitDrain(oldUser, start);
+            credentialService.revoke(oldVersion);
+            drains.add(String.format("rotation %d: swap %.1f ms, drain %s", rotation,
+                    swapNanos / 1e6, drainNanos < 0 ? "timed out"
+                            : String.format("%.1f ms", drainNanos / 1e6)));
+
+            this.startPhase("rotation " + rotation + " after", false);
+            Thread.sleep(PHASE_MILLIS);
+        }
+        this.running = false;
+        this.workers.shutdown();
+        this.workers.awaitTermination(DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        this.currentPhase.end();
+
+        this.report(drains);
+        long errors = 0;
+        for (final Phase phase : this.phases) {
+            errors += phase.errors.get();
+        }
+        assertThat(errors).as("Failed units of work").isZero();
+    }
+
+    private void work() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (this.running) {
+            final Phase first = this.currentPhase;
+            final long start = System.nanoTime();
+            try {
+                if (random.nextDouble() < WRITE_RATIO) {
+                    this.service.save("writer-" + this.writes.incrementAndGet());
+                } else {
+                    this.service.find("person-" + random.nextInt(PEOPLE));
+                }
+                this.attribute(first).latency.update(System.nanoTime() - start);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (final RuntimeException e) {
+                final Phase phase = this.attribute(first);
+                if (phase.errors.getAndIncrement() == 0) {
+                    phase.firstError = e.toString();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The phase of a unit of work that started in the given phase:
+     *         the rotation it overlapped if the phase changed while it ran, or
+     *         else the phase it ended in.
+     */
+    private Phase attribute(final Phase first) {
+        final Phase last = this.currentPhase;
+        for (int i = first.index; i <= last.index; i++) {
+            final Phase phase = this.phases.get(i);
+            if (phase.rotating) {
+                return phase;
+            }
+        }
+        return last;
+    }
+
+    private void sampleConnections() {
+        try {
+            final int sessions = this.harness.getDatabase().getSessionCount();
+            this.currentPhase.peakConnections.accumulateAndGet(sessions, Math::max);
+        } catch (final SQLException e) {
+            // The database is shut down after the benchmark.
+        }
+    }
+
+    /**
+     * Waits until the old user has no sessions left.
+     *
+     * @return How long the drain took since the rotation started, or
+     *         {@code -1} if it timed out.
+     */
+    private long awaitDrain(final String oldUser, final long start) throws Exception {
+        final long deadline = start + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MILLIS);
+        while (System.nanoTime() - deadline < 0) {
+            if (this.harness.getDatabase().getSessionCount(oldUser) == 0) {
+                return System.nanoTime() - start;
+            }
+            Thread.sleep(1);
+        }
+        return -1;
+    }
+
+    private synchronized void startPhase(final String name, final boolean rotating) {
+        final Phase phase = new Phase(name, this.phases.size(), rotating);
+        if (this.currentPhase != null) {
+            this.currentPhase.end();
+        }
+        this.phases.add(phase);
+        this.currentPhase = phase;
+    }
+
+    private void report(final List<String> drains) {
+        final StringBuilder report = new StringBuilder();
+        report.append(String.format(
+                "%nRotation under load: %d threads, %s rotation, %d ms hold, %.0f%% writes%n",
+                THREADS, ROTATION_MODE, HOLD_MILLIS, WRITE_RATIO * 100));
+        report.append(String.format("%-22s %8s %8s %7s %9s %9s %9s %9s %6s%n", "phase", "ms",
+                "ops", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms", "conns"));
+        for (final Phase phase : this.phases) {
+            final Snapshot snapshot = phase.latency.getSnapshot();
+            report.append(String.format("%-22s %8d %8d %7d %9.2f %9.2f %9.2f %9.2f %6d%n",
+                    phase.name, TimeUnit.NANOSECONDS.toMillis(phase.endNanos - phase.startNanos),
+                    phase.latency.getCount(), phase.errors.get(), snapshot.getMedian() / 1e6,
+                    snapshot.get99thPercentile() / 1e6, snapshot.get999thPercentile() / 1e6,
+                    snapshot.getMax() / 1e6, phase.peakConnections.get()));
+            if (phase.firstError != null) {
+                report.append("    first error: ").append(phase.firstError)
+                        .append(String.format("%n"));
+            }
+        }
+        for (final String drain : drains) {
+            report.append(drain).append(String.format("%n"));
+        }
+        log.info("{}", report);
+    }
+
+    private static class Phase {
+        private final String name;
+        private final int index;
+        private final boolean rotating;
+        private final Histogram latency = new Histogram(new UniformReservoir(100_000));
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicInteger peakConnections = new AtomicInteger();
+        private final long startNanos = System.nanoTime();
+        private volatile long endNanos;
+        private volatile String firstError;
+
+        Phase(final String name, final int index, final boolean rotating) {
+            this.name = name;
+            this.index = index;
+            this.rotating = rotating;
+        }
+
+        void end() {
+            this.endNanos = System.nanoTime();
+        }
+    }
+}
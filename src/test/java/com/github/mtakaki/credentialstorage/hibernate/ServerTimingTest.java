@@ -0,0 +1,53 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ServerTimingTest {
+    @After
+    public void tearDown() {
+        ServerTiming.stop();
+    }
+
+    @Test
+    public void testFormatsTheHeader() {
+        final ServerTiming timing = ServerTiming.start();
+        ServerTiming.RECORDER.recordConnectionWait(null, 1_500_000L);
+        ServerTiming.RECORDER.record(null, "select 1", null, 2_000_000L);
+        ServerTiming.RECORDER.record(null, "select 2", null, 250_000L);
+        timing.recordFlush(500_000L);
+        timing.recordCommit(750_000L);
+
+        assertThat(timing.toHeader()).isEqualTo(
+                "db-wait;dur=1.50;desc=\"1 connections\", db-exec;dur=2.25;desc=\"2 statements\", "
+                        + "db-flush;dur=0.50, db-commit;dur=0.75");
+    }
+
+    @Test
+    public void testOnlyRecordsTheCurrentRequest() throws Exception {
+        final ServerTiming timing = ServerTiming.start();
+        final Thread other = new Thread(
+                () -> ServerTiming.RECORDER.record(null, "select 1", null, 1_000_000L));
+        other.start();
+        other.join();
+        ServerTiming.stop();
+        ServerTiming.RECORDER.record(null, "select 1", null, 1_000_000L);
+
+        assertThat(timing.toHeader()).contains("db-exec;dur=0.00;desc=\"0 statements\"");
+        assertThat(ServerTiming.current()).isNull();
+    }
+
+    @Test
+    public void testCombinedRecorderRecordsConnectionWait() {
+        final ServerTiming timing = ServerTiming.start();
+        final StatementRecorder recorder = StatementRecorder
+                .of((dataSource, sql, parameters, nanos) -> {
+                }, ServerTiming.RECORDER);
+
+        recorder.recordConnectionWait(null, 1_000_000L);
+
+        assertThat(timing.toHeader()).startsWith("db-wait;dur=1.00;desc=\"1 connections\"");
+    }
+}
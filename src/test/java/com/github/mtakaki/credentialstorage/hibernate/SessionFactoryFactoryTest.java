@@ -6,6 +6,9 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.hibernate.EmptyInterceptor;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
@@ -22,6 +25,7 @@ import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.ImmutableList;
 
 import io.dropwizard.db.DataSourceFactory;
+import io.dropwizard.db.ManagedDataSource;
 import io.dropwizard.db.ManagedPooledDataSource;
 import io.dropwizard.lifecycle.setup.LifecycleEnvironment;
 import io.dropwizard.logging.BootstrapLogging;
@@ -139,6 +143,55 @@ public class SessionFactoryFactoryTest {
         assertThat(this.sessionFactory.getSessionFactoryOptions().getInterceptor()).isSameAs(EmptyInterceptor.INSTANCE);
     }
 
+    @Test
+    public void bindsTheEntitiesWhileTheDataSourceStartsWhenTheDialectIsSet() {
+        this.config.getProperties().put("hibernate.dialect",
+                "org.hibernate.dialect.HSQLDialect");
+
+        assertThat(this.buildWithRecordedWaits()).isFalse();
+    }
+
+    @Test
+    public void waitsForTheDataSourceToResolveTheDialect() {
+        assertThat(this.buildWithRecordedWaits()).isTrue();
+    }
+
+    /**
+     * Builds the session factory with a data source that's only started once
+     * it's awaited.
+     *
+     * @return {@code true} if Hibernate waited for it.
+     */
+    private boolean buildWithRecordedWaits() {
+        final StartedOnJoin future = new StartedOnJoin(
+                this.config.build(this.metricRegistry, "hibernate"));
+
+        this.sessionFactory = this.factory.build(this.bundle, this.config, future, null,
+                ImmutableList.<Class<?>>of(Person.class));
+
+        return future.waitedByHibernate.get();
+    }
+
+    private static class StartedOnJoin extends CompletableFuture<ManagedDataSource> {
+        private final ManagedDataSource dataSource;
+        private final AtomicBoolean waitedByHibernate = new AtomicBoolean();
+
+        StartedOnJoin(final ManagedDataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        @Override
+        public ManagedDataSource join() {
+            for (final StackTraceElement element : Thread.currentThread().getStackTrace()) {
+                if (element.getClassName().startsWith("org.hibernate.")) {
+                    this.waitedByHibernate.set(true);
+                }
+            }
+            this.complete(this.dataSource);
+            return super.join();
+        }
+    }
+
     private void build() {
         this.sessionFactory = this.factory.build(this.bundle,
                                             this.environment,
@@ -17,6 +17,9 @@ import org.junit.Test;
 import org.mockito.InOrder;
 
 import com.codahale.metrics.health.HealthCheck;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import io.dropwizard.util.Duration;
 
 public class SessionFactoryHealthCheckTest {
     private final SessionFactory factory = mock(SessionFactory.class);
@@ -84,4 +87,13 @@ public class SessionFactoryHealthCheckTest {
 
         verify(transaction, never()).commit();
     }
+
+    @Test
+    public void isHealthyIfTheSessionFactoryIsNotInitialized() throws Exception {
+        final SessionFactoryHealthCheck lazyHealthCheck = new SessionFactoryHealthCheck(
+                MoreExecutors.newDirectExecutorService(), Duration.seconds(0), () -> null,
+                "SELECT 1");
+
+        assertThat(lazyHealthCheck.execute().isHealthy()).isTrue();
+    }
 }
@@ -6,6 +6,7 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 import org.hibernate.SessionFactory;
 import org.junit.Before;
@@ -14,6 +15,8 @@ import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import com.google.common.collect.ImmutableMap;
+
 import io.dropwizard.db.ManagedDataSource;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -100,6 +103,53 @@ public class SessionHoldersTest {
         assertThat(this.holders.isEmpty()).isFalse();
     }
 
+    @Test
+    public void testGetHolds() {
+        this.holders = new SessionHolders(this.sessionFactory, this.dataSource, 3, 1);
+        final UnitOfWorkAspect unitOfWork = mock(UnitOfWorkAspect.class);
+        when(unitOfWork.getMethodName()).thenReturn("PersonResource.find");
+        this.holders.add(unitOfWork);
+        this.holders.add(new Object());
+
+        assertThat(this.holders.getHolds()).hasSize(2);
+        assertThat(this.holders.getHolds()).extracting(ConnectionHold::getHolder)
+                .containsOnly("PersonResource.find", "Object");
+        assertThat(this.holders.getHolds().get(0).getGeneration()).isEqualTo(3);
+        assertThat(this.holders.getHolds().get(0).getThread())
+                .isEqualTo(Thread.currentThread().getName());
+        assertThat(this.holders.getHolds().get(0).getStackTrace()).isNotEmpty();
+
+        this.holders.remove(unitOfWork);
+
+        assertThat(this.holders.getHolds()).extracting(ConnectionHold::getHolder)
+                .containsExactly("Object");
+    }
+
+    @Test
+    public void testCloseConnectionsStopsThePartitions() throws Exception {
+        final ManagedDataSource readPartition = mock(ManagedDataSource.class);
+        final ManagedDataSource writePartition = mock(ManagedDataSource.class);
+        doThrow(Exception.class).when(readPartition).stop();
+        this.holders = new SessionHolders(this.sessionFactory, this.dataSource,
+                ImmutableMap.of("read", readPartition, "write", writePartition), 1, 0);
+
+        this.holders.closeConnections();
+
+        assertThat(this.holders.getPartition("read")).isSameAs(readPartition);
+        verify(this.dataSource, times(1)).stop();
+        verify(readPartition, times(1)).stop();
+        verify(writePartition, times(1)).stop();
+    }
+
+    @Test
+    public void testIsClosed() {
+        assertThat(this.holders.isClosed()).isFalse();
+
+        this.holders.closeConnections();
+
+        assertThat(this.holders.isClosed()).isTrue();
+    }
+
     @Test
     public void testIsEmptyWhenItsEmpty() {
         assertThat(this.holders.isEmpty()).isTrue();
@@ -0,0 +1,137 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.zaxxer.hikari.HikariDataSource;
+
+import io.dropwizard.util.Duration;
+
+public class SlowStatementLogTest {
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(1);
+
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private final SlowStatementConfiguration configuration = new SlowStatementConfiguration();
+    private final HikariDataSource dataSource = new HikariDataSource();
+    private final String url = "jdbc:hsqldb:mem:slow-statements-" + UUID.randomUUID();
+    private Connection connection;
+
+    @Before
+    public void setup() throws Exception {
+        this.connection = DriverManager.getConnection(this.url, "sa", "");
+        try (Statement statement = this.connection.createStatement()) {
+            statement.execute("create table people (id int primary key, name varchar(16))");
+        }
+        // The pool is never started, as the plans are captured outside of it.
+        this.dataSource.setJdbcUrl(this.url);
+        this.dataSource.setUsername("sa");
+        this.dataSource.setPassword("");
+        this.configuration.setExplainPrefix("EXPLAIN PLAN FOR ");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.connection.close();
+        this.dataSource.close();
+    }
+
+    private SlowStatementLog createLog() {
+        return new SlowStatementLog(this.configuration, Runnable::run, this.metricRegistry,
+                "hibernate");
+    }
+
+    @Test
+    public void testNormalize() {
+        assertThat(SlowStatementLog.normalize(
+                "/* load Person */ select person0_.id from people person0_ where name = 'O''Neil'"
+                        + "   and id in (1, 2, 3) limit 10"))
+                .isEqualTo("select person0_.id from people person0_ where name = ? and id in (?)"
+                        + " limit ?");
+    }
+
+    @Test
+    public void testIgnoresFastStatements() throws Exception {
+        final SlowStatementLog log = this.createLog();
+
+        log.record(this.dataSource, "select * from people", null,
+                Duration.milliseconds(10).toNanoseconds());
+
+        assertThat(log.getStatements()).isEmpty();
+        assertThat(this.metricRegistry.meter("hibernate.slowStatements.explained").getCount())
+                .isZero();
+    }
+
+    @Test
+    public void testCapturesThePlanOfSlowStatements() {
+        final SlowStatementLog log = this.createLog();
+
+        log.record(this.dataSource, "select * from people where id = 1", null, SLOW);
+        log.record(this.dataSource, "select * from people where id = 2", null, 2 * SLOW);
+
+        final List<SlowStatement> statements = log.getStatements();
+        assertThat(statements).hasSize(1);
+        final SlowStatement statement = statements.get(0);
+        assertThat(statement.getSql()).isEqualTo("select * from people where id = ?");
+        assertThat(statement.getCount()).isEqualTo(2L);
+        assertThat(statement.getMaxMillis()).isEqualTo(2000L);
+        assertThat(statement.getPlan()).containsIgnoringCase("people");
+        // The second one is rate-limited and the plan is still fresh.
+        assertThat(this.metricRegistry.meter("hibernate.slowStatements.explained").getCount())
+                .isEqualTo(1L);
+        // No connection was taken from the pool.
+        assertThat(this.dataSource.getHikariPoolMXBean()).isNull();
+    }
+
+    @Test
+    public void testDoesNotExplainOnOtherDataSources() throws Exception {
+        final DataSource otherDataSource = mock(DataSource.class);
+        final SlowStatementLog log = this.createLog();
+
+        log.record(otherDataSource, "select * from people where id = 1", null, SLOW);
+
+        assertThat(log.getStatements()).hasSize(1);
+        verifyZeroInteractions(otherDataSource);
+    }
+
+    @Test
+    public void testDoesNotExplainUpdates() throws Exception {
+        final SlowStatementLog log = this.createLog();
+
+        log.record(this.dataSource, "delete from people where id = ?", new Object[] { 1 }, SLOW);
+
+        assertThat(log.getStatements()).hasSize(1);
+        assertThat(log.getStatements().get(0).getPlan()).isNull();
+        assertThat(this.metricRegistry.meter("hibernate.slowStatements.explained").getCount())
+                .isZero();
+    }
+
+    @Test
+    public void testKeepsTheSlowestStatements() {
+        this.configuration.setTopStatements(2);
+        this.configuration.setMaxExplainsPerMinute(0);
+        final SlowStatementLog log = this.createLog();
+
+        log.record(this.dataSource, "select a from people", null, 3 * SLOW);
+        log.record(this.dataSource, "select b from people", null, SLOW);
+        log.record(this.dataSource, "select c from people", null, 2 * SLOW);
+        log.record(this.dataSource, "select d from people", null, SLOW);
+
+        assertThat(log.getStatements()).extracting(SlowStatement::getSql)
+                .containsExactly("select a from people", "select c from people");
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TenantConnectionProviderTest {
+    private final ConnectionProvider defaultConnectionProvider = mock(ConnectionProvider.class);
+    private final TenantDataSources tenants = mock(TenantDataSources.class);
+    private final Connection connection = mock(Connection.class);
+    private final TenantConnectionProvider provider = new TenantConnectionProvider(
+            this.defaultConnectionProvider, this.tenants);
+
+    @Before
+    public void setup() {
+        when(this.tenants.getDefaultTenant()).thenReturn("default");
+    }
+
+    @Test
+    public void testDefaultTenantUsesTheBundleDataSource() throws Exception {
+        when(this.defaultConnectionProvider.getConnection()).thenReturn(this.connection);
+
+        assertThat(this.provider.getConnection("default")).isSameAs(this.connection);
+        this.provider.releaseConnection("default", this.connection);
+
+        verify(this.defaultConnectionProvider).closeConnection(this.connection);
+        verify(this.tenants, never()).getConnection("default");
+    }
+
+    @Test
+    public void testOtherTenantsUseTheirPools() throws Exception {
+        when(this.tenants.getConnection("acme")).thenReturn(this.connection);
+
+        assertThat(this.provider.getConnection("acme")).isSameAs(this.connection);
+        this.provider.releaseConnection("acme", this.connection);
+
+        verify(this.tenants).releaseConnection(this.connection);
+        verify(this.defaultConnectionProvider, never()).getConnection();
+    }
+}
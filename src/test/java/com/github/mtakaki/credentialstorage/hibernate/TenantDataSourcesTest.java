@@ -0,0 +1,165 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.github.mtakaki.credentialstorage.client.CredentialStorageServiceClient;
+import com.github.mtakaki.credentialstorage.client.model.Credential;
+
+import io.dropwizard.util.Duration;
+
+public class TenantDataSourcesTest {
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private final MultiTenancyConfiguration multiTenancy = new MultiTenancyConfiguration();
+    private TenantDataSources tenants;
+
+    @Before
+    public void setup() {
+        final RemoteCredentialDataSourceFactory dataSourceFactory = new RemoteCredentialDataSourceFactory();
+        dataSourceFactory.setRetrieveCredentials(false);
+        dataSourceFactory.setUser("sa");
+        dataSourceFactory.setDriverClass("org.hsqldb.jdbcDriver");
+        dataSourceFactory.setUrl("jdbc:hsqldb:mem:default");
+        this.multiTenancy.setUrlTemplate(
+                "jdbc:hsqldb:mem:tenant-" + MultiTenancyConfiguration.TENANT_PLACEHOLDER);
+        dataSourceFactory.setMultiTenancy(this.multiTenancy);
+
+        this.tenants = new TenantDataSources("hibernate", dataSourceFactory,
+                this.metricRegistry, new CredentialRefreshService(1));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.tenants.stop();
+    }
+
+    @Test
+    public void testCreatesOnePoolPerTenant() throws Exception {
+        final Connection acme = this.tenants.getConnection("acme");
+        final Connection globex = this.tenants.getConnection("globex");
+
+        assertThat(acme.getMetaData().getURL()).isEqualTo("jdbc:hsqldb:mem:tenant-acme");
+        assertThat(globex.getMetaData().getURL()).isEqualTo("jdbc:hsqldb:mem:tenant-globex");
+        assertThat(this.tenants.size()).isEqualTo(2);
+        assertThat(this.metricRegistry.getGauges().get("hibernate.tenants.pools").getValue())
+                .isEqualTo(2);
+
+        this.tenants.releaseConnection(acme);
+        this.tenants.releaseConnection(globex);
+        assertThat(acme.isClosed()).isTrue();
+    }
+
+    @Test
+    public void testEvictsIdlePools() throws Exception {
+        this.multiTenancy.setIdleTimeout(Duration.milliseconds(0));
+        final Connection connection = this.tenants.getConnection("acme");
+
+        // The connection is still in use.
+        this.tenants.evictIdle();
+        assertThat(this.tenants.size()).isEqualTo(1);
+
+        this.tenants.releaseConnection(connection);
+        this.tenants.evictIdle();
+        assertThat(this.tenants.size()).isZero();
+
+        // It's created again the next time the tenant is used.
+        this.tenants.releaseConnection(this.tenants.getConnection("acme"));
+        assertThat(this.tenants.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRejectsInvalidTenants() throws Exception {
+        try {
+            this.tenants.getConnection("acme;shutdown=true");
+            failBecauseExceptionWasNotThrown(IllegalArgumentException.class);
+        } catch (final IllegalArgumentException e) {
+            assertThat(e.getMessage()).contains("acme;shutdown=true");
+        }
+    }
+
+    @Test
+    public void testCreatesPoolsWithoutBlockingOtherTenants() throws Exception {
+        final CountDownLatch retrieving = new CountDownLatch(1);
+        final CountDownLatch retrieved = new CountDownLatch(1);
+        final Credential credential = mock(Credential.class);
+        when(credential.getPrimary()).thenReturn("sa");
+        final CredentialStorageServiceClient slowClient = mock(
+                CredentialStorageServiceClient.class);
+        when(slowClient.getCredential()).then(invocation -> {
+            retrieving.countDown();
+            retrieved.await();
+            return credential;
+        });
+        final CredentialStorageServiceClient client = mock(CredentialStorageServiceClient.class);
+        when(client.getCredential()).thenReturn(credential);
+        final RemoteCredentialDataSourceFactory dataSourceFactory = new RemoteCredentialDataSourceFactory();
+        dataSourceFactory.setDriverClass("org.hsqldb.jdbcDriver");
+        dataSourceFactory.setUrl("jdbc:hsqldb:mem:default");
+        dataSourceFactory.setMultiTenancy(this.multiTenancy);
+        this.tenants.stop();
+        this.tenants = new TenantDataSources("hibernate", dataSourceFactory, this.metricRegistry,
+                new CredentialRefreshService(1) {
+                    @Override
+                    public CredentialStorageServiceClient getClient(
+                            final RemoteCredentialDataSourceFactory tenantFactory) {
+                        return tenantFactory.getUrl().endsWith("slow") ? slowClient : client;
+                    }
+                });
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Connection> slow = executor
+                    .submit(() -> this.tenants.getConnection("slow"));
+            final Future<Connection> waiting = executor
+                    .submit(() -> this.tenants.getConnection("slow"));
+            assertThat(retrieving.await(10, TimeUnit.SECONDS)).isTrue();
+
+            // The slow tenant doesn't hold the other tenants.
+            this.tenants.releaseConnection(this.tenants.getConnection("fast"));
+
+            retrieved.countDown();
+            this.tenants.releaseConnection(slow.get(10, TimeUnit.SECONDS));
+            this.tenants.releaseConnection(waiting.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+        // Both connections of the slow tenant came from the same pool.
+        verify(slowClient, times(1)).getCredential();
+        assertThat(this.tenants.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void testCreatesThePoolAgainAfterAFailure() throws Exception {
+        this.multiTenancy
+                .setUrlTemplate("jdbc:unknown:" + MultiTenancyConfiguration.TENANT_PLACEHOLDER);
+        try {
+            this.tenants.getConnection("acme");
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (final IllegalStateException e) {
+            assertThat(e).hasMessageContaining("acme");
+        }
+        assertThat(this.tenants.size()).isZero();
+
+        this.multiTenancy.setUrlTemplate(
+                "jdbc:hsqldb:mem:tenant-" + MultiTenancyConfiguration.TENANT_PLACEHOLDER);
+        this.tenants.releaseConnection(this.tenants.getConnection("acme"));
+
+        assertThat(this.tenants.size()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,89 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.aryEq;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimedConnectionsTest {
+    private final Connection connection = mock(Connection.class);
+    private final PreparedStatement preparedStatement = mock(PreparedStatement.class);
+    private final Statement statement = mock(Statement.class);
+    private final DataSource dataSource = mock(DataSource.class);
+    private final StatementRecorder recorder = mock(StatementRecorder.class);
+    private Connection timedConnection;
+
+    @Before
+    public void setup() throws Exception {
+        when(this.connection.prepareStatement(anyString())).thenReturn(this.preparedStatement);
+        when(this.connection.createStatement()).thenReturn(this.statement);
+        this.timedConnection = TimedConnections.wrap(this.connection, this.dataSource,
+                this.recorder);
+    }
+
+    @Test
+    public void testRecordsPreparedStatements() throws Exception {
+        final PreparedStatement timedStatement = this.timedConnection
+                .prepareStatement("select * from people where id = ? and name = ?");
+        timedStatement.setInt(1, 10);
+        timedStatement.setNull(2, Types.VARCHAR);
+        timedStatement.executeQuery();
+
+        verify(this.preparedStatement).setInt(1, 10);
+        verify(this.preparedStatement).executeQuery();
+        verify(this.recorder).record(eq(this.dataSource),
+                eq("select * from people where id = ? and name = ?"),
+                aryEq(new Object[] { 10, null }), anyLong());
+    }
+
+    @Test
+    public void testRecordsStatements() throws Exception {
+        this.timedConnection.createStatement().execute("select * from people");
+
+        verify(this.statement).execute("select * from people");
+        verify(this.recorder).record(eq(this.dataSource), eq("select * from people"),
+                (Object[]) isNull(), anyLong());
+    }
+
+    @Test
+    public void testPropagatesFailures() throws Exception {
+        when(this.preparedStatement.executeUpdate()).thenThrow(new SQLException("failed"));
+        final PreparedStatement timedStatement = this.timedConnection
+                .prepareStatement("delete from people");
+
+        try {
+            timedStatement.executeUpdate();
+            failBecauseExceptionWasNotThrown(SQLException.class);
+        } catch (final SQLException e) {
+            assertThat(e.getMessage()).isEqualTo("failed");
+        }
+        verify(this.recorder, never()).record(any(DataSource.class), anyString(),
+                any(Object[].class), anyLong());
+    }
+
+    @Test
+    public void testDelegatesOtherCalls() throws Exception {
+        this.timedConnection.close();
+
+        verify(this.connection).close();
+    }
+}
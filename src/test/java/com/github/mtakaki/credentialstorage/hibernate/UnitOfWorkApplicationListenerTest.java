@@ -1,7 +1,9 @@
 package com.github.mtakaki.credentialstorage.hibernate;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -10,8 +12,15 @@ import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
 import java.lang.reflect.Method;
+import java.sql.Connection;
 
+import javax.sql.DataSource;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+
+import org.glassfish.jersey.server.ContainerResponse;
 import org.glassfish.jersey.server.ExtendedUriInfo;
+import org.glassfish.jersey.server.internal.process.MappableException;
 import org.glassfish.jersey.server.model.Resource;
 import org.glassfish.jersey.server.model.ResourceMethod;
 import org.glassfish.jersey.server.model.ResourceModel;
@@ -19,11 +28,15 @@ import org.glassfish.jersey.server.monitoring.ApplicationEvent;
 import org.glassfish.jersey.server.monitoring.RequestEvent;
 import org.glassfish.jersey.server.monitoring.RequestEventListener;
 import org.hibernate.CacheMode;
+import org.hibernate.ConnectionReleaseMode;
 import org.hibernate.FlushMode;
+import org.hibernate.HibernateException;
 import org.hibernate.Session;
+import org.hibernate.SessionBuilder;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 import org.hibernate.context.internal.ManagedSessionContext;
+import org.hibernate.jdbc.Work;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -34,6 +47,10 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
 
+import com.codahale.metrics.MetricRegistry;
+
+import io.dropwizard.db.ManagedDataSource;
+
 @RunWith(MockitoJUnitRunner.class)
 public class UnitOfWorkApplicationListenerTest {
     private final SessionFactory sessionFactory = mock(SessionFactory.class);
@@ -51,20 +68,20 @@ public class UnitOfWorkApplicationListenerTest {
     private final RequestEvent requestMethodStartEvent = mock(RequestEvent.class);
     private final RequestEvent responseFiltersStartEvent = mock(RequestEvent.class);
     private final RequestEvent requestMethodExceptionEvent = mock(RequestEvent.class);
+    private final RequestEvent finishedEvent = mock(RequestEvent.class);
     private final Session session = mock(Session.class);
     private final Session analyticsSession = mock(Session.class);
     private final Transaction transaction = mock(Transaction.class);
     private final Transaction analyticsTransaction = mock(Transaction.class);
+    private final SessionHolders sessionHolders = mock(SessionHolders.class);
 
     @Before
     public void setUp() throws Exception {
         this.listener.registerBundle(RemoteCredentialHibernateBundle.DEFAULT_NAME, this.bundle);
         this.listener.registerBundle("analytics", this.analyticsBundle);
 
-        final SessionHolders sessionHolders = mock(SessionHolders.class);
-
-        when(this.bundle.getSessionHolders()).thenReturn(sessionHolders);
-        when(this.analyticsBundle.getSessionHolders()).thenReturn(sessionHolders);
+        when(this.bundle.getSessionHolders()).thenReturn(this.sessionHolders);
+        when(this.analyticsBundle.getSessionHolders()).thenReturn(this.sessionHolders);
         when(this.bundle.getSessionFactory()).thenReturn(this.sessionFactory);
         when(this.analyticsBundle.getSessionFactory())
                 .thenReturn(this.analyticsSessionFactory);
@@ -87,6 +104,7 @@ public class UnitOfWorkApplicationListenerTest {
         when(this.responseFiltersStartEvent.getType())
                 .thenReturn(RequestEvent.Type.RESP_FILTERS_START);
         when(this.requestMethodExceptionEvent.getType()).thenReturn(RequestEvent.Type.ON_EXCEPTION);
+        when(this.finishedEvent.getType()).thenReturn(RequestEvent.Type.FINISHED);
         when(this.requestMethodStartEvent.getUriInfo()).thenReturn(this.uriInfo);
         when(this.responseFiltersStartEvent.getUriInfo()).thenReturn(this.uriInfo);
         when(this.requestMethodExceptionEvent.getUriInfo()).thenReturn(this.uriInfo);
@@ -129,6 +147,43 @@ public class UnitOfWorkApplicationListenerTest {
         verify(this.session).setDefaultReadOnly(true);
     }
 
+    @Test
+    public void disablesFlushingForReadOnlySessions() throws Exception {
+        this.prepareAppEvent("methodWithReadOnlyAnnotation");
+
+        this.execute();
+
+        verify(this.session).setFlushMode(FlushMode.MANUAL);
+    }
+
+    @Test
+    public void marksTheConnectionReadOnlyAndRestoresIt() throws Exception {
+        final Connection connection = mock(Connection.class);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation) throws Throwable {
+                ((Work) invocation.getArguments()[0]).execute(connection);
+                return null;
+            }
+        }).when(this.session).doWork(any(Work.class));
+        this.prepareAppEvent("methodWithReadOnlyAnnotation");
+
+        this.execute();
+
+        final InOrder inOrder = inOrder(connection, this.transaction, this.session);
+        inOrder.verify(connection).setReadOnly(true);
+        inOrder.verify(this.transaction).commit();
+        inOrder.verify(connection).setReadOnly(false);
+        inOrder.verify(this.session).close();
+    }
+
+    @Test
+    public void doesNotMarkReadWriteConnectionsReadOnly() throws Exception {
+        this.execute();
+
+        verify(this.session, never()).doWork(any(Work.class));
+    }
+
     @Test
     public void configuresTheSessionsCacheMode() throws Exception {
         this.prepareAppEvent("methodWithCacheModeIgnoreAnnotation");
@@ -259,6 +314,153 @@ public class UnitOfWorkApplicationListenerTest {
         inOrder.verify(this.analyticsSession).close();
     }
 
+    @Test
+    public void doesNotOpenASessionForLazyUnitOfWorkThatIsNotUsed() throws Exception {
+        this.prepareAppEvent("methodWithLazyAnnotation");
+
+        this.execute();
+
+        verify(this.sessionFactory, never()).openSession();
+        verify(this.bundle).setCurrentUnitOfWork(null);
+    }
+
+    @Test
+    public void runsAfterCommitCallbacksOnceCommitted() throws Exception {
+        final Runnable afterCommit = mock(Runnable.class);
+        final Runnable afterRollback = mock(Runnable.class);
+        this.registerCallbacks(afterCommit, afterRollback);
+
+        this.execute();
+
+        final InOrder inOrder = inOrder(this.transaction, this.session, afterCommit);
+        inOrder.verify(this.transaction).commit();
+        inOrder.verify(this.session).close();
+        inOrder.verify(afterCommit).run();
+        verify(afterRollback, never()).run();
+    }
+
+    @Test
+    public void runsAfterRollbackCallbacksOnException() throws Exception {
+        final Runnable afterCommit = mock(Runnable.class);
+        final Runnable afterRollback = mock(Runnable.class);
+        this.registerCallbacks(afterCommit, afterRollback);
+
+        this.executeWithException();
+
+        final InOrder inOrder = inOrder(this.transaction, afterRollback);
+        inOrder.verify(this.transaction).rollback();
+        inOrder.verify(afterRollback).run();
+        verify(afterCommit, never()).run();
+    }
+
+    @Test
+    public void doesNotRunAfterCommitCallbacksWhenTheResourceThrows() throws Exception {
+        final Runnable afterCommit = mock(Runnable.class);
+        this.registerCallbacks(afterCommit, null);
+
+        final RequestEventListener requestListener = this.executeWithException();
+        // Jersey still runs the response filters for the mapped exception.
+        requestListener.onEvent(this.responseFiltersStartEvent);
+
+        verify(this.transaction).rollback();
+        verify(this.transaction, never()).commit();
+        verify(afterCommit, never()).run();
+    }
+
+    @Test
+    public void runsAfterRollbackCallbacksIfTheCommitFails() throws Exception {
+        final Runnable afterCommit = mock(Runnable.class);
+        final Runnable afterRollback = mock(Runnable.class);
+        this.registerCallbacks(afterCommit, afterRollback);
+        doThrow(new HibernateException("commit failed")).when(this.transaction).commit();
+
+        try {
+            this.execute();
+            Assert.fail();
+        } catch (final MappableException e) {
+            verify(this.transaction).rollback();
+            verify(afterRollback).run();
+            verify(afterCommit, never()).run();
+        }
+    }
+
+    @Test
+    public void keepsTheSessionOpenUntilTheResponseIsWrittenForOpenSessionInView()
+            throws Exception {
+        final SessionBuilder sessionBuilder = mock(SessionBuilder.class);
+        when(this.sessionFactory.withOptions()).thenReturn(sessionBuilder);
+        when(sessionBuilder.connectionReleaseMode(ConnectionReleaseMode.AFTER_TRANSACTION))
+                .thenReturn(sessionBuilder);
+        when(sessionBuilder.openSession()).thenReturn(this.session);
+        this.prepareAppEvent("methodWithOpenSessionInViewAnnotation");
+
+        final RequestEventListener requestListener = this.execute();
+
+        verify(this.transaction).commit();
+        verify(this.session).setFlushMode(FlushMode.MANUAL);
+        verify(this.session, never()).close();
+        assertThat(ManagedSessionContext.hasBind(this.sessionFactory)).isTrue();
+
+        requestListener.onEvent(this.finishedEvent);
+
+        verify(this.session).close();
+        assertThat(ManagedSessionContext.hasBind(this.sessionFactory)).isFalse();
+    }
+
+    @Test
+    public void releasesTheHoldAndThePermitWhenTheTransactionEndsForOpenSessionInView()
+            throws Exception {
+        final SessionBuilder sessionBuilder = mock(SessionBuilder.class);
+        when(this.sessionFactory.withOptions()).thenReturn(sessionBuilder);
+        when(sessionBuilder.connectionReleaseMode(ConnectionReleaseMode.AFTER_TRANSACTION))
+                .thenReturn(sessionBuilder);
+        when(sessionBuilder.openSession()).thenReturn(this.session);
+        final BulkheadConfiguration configuration = new BulkheadConfiguration();
+        configuration.setMaxConcurrent(1);
+        configuration.setMaxQueued(0);
+        final Bulkhead bulkhead = new Bulkhead(configuration, new MetricRegistry(), "hibernate");
+        when(this.bundle.getBulkhead()).thenReturn(bulkhead);
+        this.prepareAppEvent("methodWithOpenSessionInViewAnnotation");
+
+        final RequestEventListener requestListener = this.execute();
+
+        verify(this.sessionHolders).remove(any());
+        verify(this.session, never()).close();
+        // The permit was released, so another unit of work is admitted.
+        bulkhead.acquire(MockResource.class
+                .getDeclaredMethod("methodWithOpenSessionInViewAnnotation")
+                .getAnnotation(UnitOfWork.class)).release();
+
+        requestListener.onEvent(this.finishedEvent);
+
+        verify(this.session).close();
+        verify(this.sessionHolders).remove(any());
+    }
+
+    @Test
+    public void opensTheSessionOfTheCurrentTenant() throws Exception {
+        final SessionBuilder sessionBuilder = mock(SessionBuilder.class);
+        when(this.bundle.resolveTenantIdentifier()).thenReturn("acme");
+        when(this.sessionFactory.withOptions()).thenReturn(sessionBuilder);
+        when(sessionBuilder.tenantIdentifier("acme")).thenReturn(sessionBuilder);
+        when(sessionBuilder.openSession()).thenReturn(this.session);
+
+        this.execute();
+
+        verify(sessionBuilder).tenantIdentifier("acme");
+        verify(this.sessionFactory, never()).openSession();
+        verify(this.transaction).commit();
+    }
+
+    @Test
+    public void closesTheSessionOnlyOnceWhenTheResponseIsWritten() throws Exception {
+        final RequestEventListener requestListener = this.execute();
+
+        requestListener.onEvent(this.finishedEvent);
+
+        verify(this.session).close();
+    }
+
     @Test
     public void throwsExceptionOnNotRegisteredDatabase() throws Exception {
         try {
@@ -270,6 +472,82 @@ public class UnitOfWorkApplicationListenerTest {
         }
     }
 
+    @Test
+    public void usesTheReadPartitionForReadOnlyUnitsOfWork() throws Exception {
+        final ManagedDataSource readPartition = mock(ManagedDataSource.class);
+        when(this.sessionHolders.getPartition(RemoteCredentialDataSourceFactory.READ_PARTITION))
+                .thenReturn(readPartition);
+        this.prepareAppEvent("methodWithReadOnlyAnnotation");
+
+        this.execute();
+
+        final InOrder inOrder = inOrder(this.bundle, this.session);
+        inOrder.verify(this.bundle).setCurrentPartition(readPartition);
+        inOrder.verify(this.session).close();
+        inOrder.verify(this.bundle).setCurrentPartition(null);
+    }
+
+    @Test
+    public void usesTheExplicitPartition() throws Exception {
+        final ManagedDataSource reportsPartition = mock(ManagedDataSource.class);
+        when(this.sessionHolders.getPartition("reports")).thenReturn(reportsPartition);
+        this.prepareAppEvent("methodWithReportsPartitionAnnotation");
+
+        this.execute();
+
+        verify(this.bundle).setCurrentPartition(reportsPartition);
+    }
+
+    @Test
+    public void throwsExceptionOnUnknownPartition() throws Exception {
+        try {
+            this.prepareAppEvent("methodWithReportsPartitionAnnotation");
+            this.execute();
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            Assert.assertEquals(e.getMessage(), "Unknown pool partition: 'reports'");
+        }
+        verify(this.sessionFactory, never()).openSession();
+        verify(this.bundle, never()).setCurrentPartition(any(DataSource.class));
+    }
+
+    @Test
+    public void addsTheServerTimingHeader() throws Exception {
+        this.listener.enableServerTiming();
+        when(this.bundle.isServerTiming()).thenReturn(true);
+        when(this.session.getFlushMode()).thenReturn(FlushMode.AUTO);
+        final ContainerResponse response = mock(ContainerResponse.class);
+        final MultivaluedMap<String, Object> headers = new MultivaluedHashMap<>();
+        when(response.getHeaders()).thenReturn(headers);
+        when(this.responseFiltersStartEvent.getContainerResponse()).thenReturn(response);
+        // The connections of the bundle record the statements of the flush.
+        doAnswer(invocation -> {
+            ServerTiming.RECORDER.record(null, "insert into people values (?)", null,
+                    2_000_000L);
+            return null;
+        }).when(this.session).flush();
+
+        this.execute();
+
+        final InOrder inOrder = inOrder(this.session, this.transaction);
+        inOrder.verify(this.session).flush();
+        inOrder.verify(this.transaction).commit();
+        assertThat((String) headers.getFirst("Server-Timing"))
+                .contains("db-exec;dur=2.00;desc=\"1 statements\"")
+                .contains("db-flush;dur=")
+                .contains("db-commit;dur=");
+        assertThat(ServerTiming.current()).isNull();
+    }
+
+    @Test
+    public void doesNotAddTheServerTimingHeaderByDefault() throws Exception {
+        this.execute();
+
+        verify(this.responseFiltersStartEvent, never()).getContainerResponse();
+        verify(this.session, never()).flush();
+        assertThat(ServerTiming.current()).isNull();
+    }
+
     private void prepareAppEvent(final String resourceMethodName) throws NoSuchMethodException {
         final Resource.Builder builder = Resource.builder();
         final MockResource mockResource = new MockResource();
@@ -300,20 +578,38 @@ public class UnitOfWorkApplicationListenerTest {
         return false;
     }
 
-    private void execute() {
+    private void registerCallbacks(final Runnable afterCommit, final Runnable afterRollback) {
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(final InvocationOnMock invocation) throws Throwable {
+                final UnitOfWorkAspect unitOfWork = (UnitOfWorkAspect) invocation.getArguments()[0];
+                if (unitOfWork != null) {
+                    unitOfWork.afterCommit(afterCommit);
+                    if (afterRollback != null) {
+                        unitOfWork.afterRollback(afterRollback);
+                    }
+                }
+                return null;
+            }
+        }).when(this.bundle).setCurrentUnitOfWork(any(UnitOfWorkAspect.class));
+    }
+
+    private RequestEventListener execute() {
         this.listener.onEvent(this.appEvent);
         final RequestEventListener requestListener = this.listener
                 .onRequest(this.requestStartEvent);
         requestListener.onEvent(this.requestMethodStartEvent);
         requestListener.onEvent(this.responseFiltersStartEvent);
+        return requestListener;
     }
 
-    private void executeWithException() {
+    private RequestEventListener executeWithException() {
         this.listener.onEvent(this.appEvent);
         final RequestEventListener requestListener = this.listener
                 .onRequest(this.requestStartEvent);
         requestListener.onEvent(this.requestMethodStartEvent);
         requestListener.onEvent(this.requestMethodExceptionEvent);
+        return requestListener;
     }
 
     public static class MockResource implements MockResourceInterface {
@@ -373,6 +669,14 @@ public class UnitOfWorkApplicationListenerTest {
 
         }
 
+        @UnitOfWork(lazy = true)
+        public void methodWithLazyAnnotation() {
+        }
+
+        @UnitOfWork(openSessionInView = true)
+        public void methodWithOpenSessionInViewAnnotation() {
+        }
+
         @UnitOfWork("analytics")
         public void methodWithUnitOfWorkOnAnalyticsDatabase() {
 
@@ -382,6 +686,10 @@ public class UnitOfWorkApplicationListenerTest {
         public void methodWithUnitOfWorkOnNotRegisteredDatabase() {
 
         }
+
+        @UnitOfWork(readOnly = true, partition = "reports")
+        public void methodWithReportsPartitionAnnotation() {
+        }
     }
 
     public static interface MockResourceInterface {
@@ -0,0 +1,214 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import javax.ws.rs.ServiceUnavailableException;
+
+import org.hibernate.Criteria;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+
+@RunWith(MockitoJUnitRunner.class)
+public class UnitOfWorkAspectTest {
+    private static class Resource {
+        @UnitOfWork(lazy = true, fetchSize = 500, batchSize = 2, cacheable = true)
+        public void export() {
+        }
+
+        @UnitOfWork(lazy = true)
+        public void list() {
+        }
+
+        @UnitOfWork(fetchSize = 10)
+        public void find() {
+        }
+
+        @UnitOfWork(lazy = true, readOnly = true)
+        public void report() {
+        }
+
+        @UnitOfWork(lazy = true, readOnly = true)
+        public void lookup() {
+        }
+
+        @UnitOfWork(lazy = true, propagation = UnitOfWorkPropagation.REQUIRES_NEW)
+        public void audit() {
+        }
+    }
+
+    @Mock
+    private RemoteCredentialHibernateBundle<?> bundle;
+
+    private UnitOfWorkAspect aspect;
+
+    @Before
+    public void setup() {
+        this.aspect = new UnitOfWorkAspect(
+                ImmutableMap.of(RemoteCredentialHibernateBundle.DEFAULT_NAME, this.bundle));
+    }
+
+    private static UnitOfWork unitOfWork(final String method) throws Exception {
+        return Resource.class.getDeclaredMethod(method).getAnnotation(UnitOfWork.class);
+    }
+
+    @Test
+    public void testApplyHints() throws Exception {
+        this.aspect.beforeStart(unitOfWork("export"));
+        final Query query = mock(Query.class);
+        final Criteria criteria = mock(Criteria.class);
+
+        this.aspect.applyHints(query);
+        this.aspect.applyHints(criteria);
+
+        verify(query).setFetchSize(500);
+        verify(query).setCacheable(true);
+        verify(criteria).setFetchSize(500);
+        verify(criteria).setCacheable(true);
+    }
+
+    @Test
+    public void testApplyHintsWithDefaults() throws Exception {
+        this.aspect.beforeStart(unitOfWork("list"));
+        final Query query = mock(Query.class);
+
+        this.aspect.applyHints(query);
+
+        verifyZeroInteractions(query);
+    }
+
+    @Test
+    public void testJoinedUnitOfWorkRestoresTheHints() throws Exception {
+        this.aspect.beforeStart(unitOfWork("export"));
+        when(this.bundle.getCurrentUnitOfWork()).thenReturn(this.aspect);
+        final UnitOfWorkAspect joined = new UnitOfWorkAspect(
+                ImmutableMap.of(RemoteCredentialHibernateBundle.DEFAULT_NAME, this.bundle));
+        joined.beforeStart(unitOfWork("find"));
+
+        final Query joinedQuery = mock(Query.class);
+        this.aspect.applyHints(joinedQuery);
+        joined.afterEnd();
+        final Query query = mock(Query.class);
+        this.aspect.applyHints(query);
+
+        verify(joinedQuery).setFetchSize(10);
+        verify(joinedQuery).setCacheable(true);
+        verify(query).setFetchSize(500);
+        verify(query, never()).setFetchSize(10);
+    }
+
+    @Test
+    public void testReadWriteUnitOfWorkCantJoinReadOnlyOne() throws Exception {
+        this.aspect.beforeStart(unitOfWork("report"));
+        when(this.bundle.getCurrentUnitOfWork()).thenReturn(this.aspect);
+        final UnitOfWorkAspect joined = new UnitOfWorkAspect(
+                ImmutableMap.of(RemoteCredentialHibernateBundle.DEFAULT_NAME, this.bundle));
+
+        try {
+            joined.beforeStart(unitOfWork("find"),
+                    Resource.class.getDeclaredMethod("find"));
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (final IllegalStateException e) {
+            assertThat(e.getMessage()).contains("Resource.find");
+            joined.onError();
+        }
+
+        verify(this.bundle, never()).getSessionHolders();
+    }
+
+    @Test
+    public void testReadOnlyAndNewUnitsOfWorkCanRunInReadOnlyOne() throws Exception {
+        this.aspect.beforeStart(unitOfWork("report"));
+        when(this.bundle.getCurrentUnitOfWork()).thenReturn(this.aspect);
+        final UnitOfWorkAspect joined = new UnitOfWorkAspect(
+                ImmutableMap.of(RemoteCredentialHibernateBundle.DEFAULT_NAME, this.bundle));
+        final UnitOfWorkAspect suspending = new UnitOfWorkAspect(
+                ImmutableMap.of(RemoteCredentialHibernateBundle.DEFAULT_NAME, this.bundle));
+
+        joined.beforeStart(unitOfWork("lookup"));
+        joined.afterEnd();
+        suspending.beforeStart(unitOfWork("audit"));
+        suspending.afterEnd();
+
+        verify(this.bundle).setCurrentUnitOfWork(suspending);
+    }
+
+    @Test
+    public void testAfterPersistWithoutSession() throws Exception {
+        this.aspect.beforeStart(unitOfWork("export"));
+
+        // Nothing is flushed, as the lazy unit of work never opened it.
+        this.aspect.afterPersist();
+        this.aspect.afterPersist();
+
+        verify(this.bundle, never()).getSessionHolders();
+    }
+
+    @Test
+    public void testBulkheadPermitIsReleasedWhenTheUnitOfWorkEnds() throws Exception {
+        final BulkheadConfiguration configuration = new BulkheadConfiguration();
+        configuration.setMaxConcurrent(1);
+        configuration.setMaxQueued(0);
+        final Bulkhead bulkhead = new Bulkhead(configuration, new MetricRegistry(), "hibernate");
+        when(this.bundle.getBulkhead()).thenReturn(bulkhead);
+        this.aspect.beforeStart(unitOfWork("list"));
+
+        final UnitOfWorkAspect rejected = new UnitOfWorkAspect(
+                ImmutableMap.of(RemoteCredentialHibernateBundle.DEFAULT_NAME, this.bundle));
+        try {
+            rejected.beforeStart(unitOfWork("list"));
+            failBecauseExceptionWasNotThrown(ServiceUnavailableException.class);
+        } catch (final ServiceUnavailableException e) {
+            // The rejected unit of work has no permit to release.
+            rejected.onError();
+        }
+        this.aspect.afterEnd();
+
+        assertThat(bulkhead.acquire(unitOfWork("list"))).isNotNull();
+        try {
+            bulkhead.acquire(unitOfWork("list"));
+            failBecauseExceptionWasNotThrown(ServiceUnavailableException.class);
+        } catch (final ServiceUnavailableException e) {
+            // Only one permit was released.
+        }
+    }
+
+    @Test
+    public void testEventContext() throws Exception {
+        final SessionHolders sessionHolders = new SessionHolders("hibernate", null, null,
+                ImmutableMap.of(), 7, 0);
+        when(this.bundle.getSessionHolders()).thenReturn(sessionHolders);
+        when(this.bundle.name()).thenReturn("hibernate");
+        this.aspect.beforeStart(unitOfWork("list"), Resource.class.getDeclaredMethod("list"));
+
+        assertThat(this.aspect.getBundleName()).isEqualTo("hibernate");
+        assertThat(this.aspect.getMethodName()).isEqualTo("Resource.list");
+        // The lazy unit of work has no session yet.
+        assertThat(this.aspect.getGeneration()).isZero();
+
+        final SessionFactory sessionFactory = mock(SessionFactory.class);
+        final Session session = mock(Session.class);
+        when(this.bundle.getSessionFactory()).thenReturn(sessionFactory);
+        when(sessionFactory.openSession()).thenReturn(session);
+        when(session.getSessionFactory()).thenReturn(sessionFactory);
+        this.aspect.ensureSessionOpen();
+
+        assertThat(this.aspect.getGeneration()).isEqualTo(7);
+        this.aspect.afterEnd();
+        assertThat(sessionHolders.isEmpty()).isTrue();
+    }
+}
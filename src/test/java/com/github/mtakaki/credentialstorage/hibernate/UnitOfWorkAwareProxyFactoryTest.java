@@ -1,10 +1,16 @@
 package com.github.mtakaki.credentialstorage.hibernate;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
@@ -84,6 +90,76 @@ public class UnitOfWorkAwareProxyFactoryTest {
         assertThat(oAuthAuthenticator.authenticate("bd1e23a")).isFalse();
     }
 
+    private SessionService createSessionService() {
+        // The bundle keeps the running unit of work and session factory of
+        // the thread.
+        final AtomicReference<UnitOfWorkAspect> currentUnitOfWork = new AtomicReference<>();
+        doAnswer(invocation -> {
+            currentUnitOfWork.set(invocation.getArgumentAt(0, UnitOfWorkAspect.class));
+            return null;
+        }).when(this.bundle).setCurrentUnitOfWork(any(UnitOfWorkAspect.class));
+        when(this.bundle.getCurrentUnitOfWork()).thenAnswer(invocation -> currentUnitOfWork.get());
+        final AtomicReference<SessionFactory> currentSessionFactory = new AtomicReference<>();
+        doAnswer(invocation -> {
+            currentSessionFactory.set(invocation.getArgumentAt(0, SessionFactory.class));
+            return null;
+        }).when(this.bundle).setCurrentThreadSessionFactory(any(SessionFactory.class));
+        when(this.bundle.getCurrentThreadSessionFactory())
+                .thenAnswer(invocation -> currentSessionFactory.get());
+
+        final UnitOfWorkAwareProxyFactory proxyFactory = new UnitOfWorkAwareProxyFactory(
+                "default", this.bundle);
+        final SessionStore sessionStore = proxyFactory.create(SessionStore.class,
+                SessionFactory.class, this.sessionFactory);
+        return proxyFactory.create(SessionService.class, SessionStore.class, sessionStore);
+    }
+
+    private boolean exists(final String token) {
+        final Session session = this.sessionFactory.openSession();
+        try {
+            return !session.createSQLQuery("select token from user_sessions where token = :token")
+                    .setParameter("token", token)
+                    .list()
+                    .isEmpty();
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void testNestedUnitOfWorkJoinsTheSession() {
+        assertThat(this.createSessionService().joinsTheSession()).isTrue();
+
+        verify(this.sessionHolders, times(1)).add(any());
+    }
+
+    @Test
+    public void testNestedUnitOfWorkSuspendsTheSession() {
+        assertThat(this.createSessionService().suspendsTheSession()).isTrue();
+
+        verify(this.sessionHolders, times(2)).add(any());
+    }
+
+    @Test
+    public void testNestedUnitOfWorkRollsBackItsSavepoint() {
+        this.createSessionService().rollsBackTheSavepoint();
+
+        assertThat(this.exists("outer")).isTrue();
+        assertThat(this.exists("inner")).isFalse();
+    }
+
+    @Test
+    public void testFailedJoinedUnitOfWorkRollsBackTheOuterOne() {
+        try {
+            this.createSessionService().swallowsTheJoinedFailure();
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (final IllegalStateException e) {
+            assertThat(e.getMessage()).contains("rolled back");
+        }
+
+        assertThat(this.exists("swallowed")).isFalse();
+    }
+
     @Test
     public void testProxyWorksWithoutUnitOfWork() {
         assertThat(new UnitOfWorkAwareProxyFactory("default", this.bundle)
@@ -134,6 +210,90 @@ public class UnitOfWorkAwareProxyFactoryTest {
         }
     }
 
+    static class SessionStore {
+        private final SessionFactory sessionFactory;
+
+        public SessionStore(final SessionFactory sessionFactory) {
+            this.sessionFactory = sessionFactory;
+        }
+
+        public SessionFactory getSessionFactory() {
+            return this.sessionFactory;
+        }
+
+        @UnitOfWork
+        public Session joined() {
+            return this.sessionFactory.getCurrentSession();
+        }
+
+        @UnitOfWork(propagation = UnitOfWorkPropagation.REQUIRES_NEW)
+        public Session separate() {
+            return this.sessionFactory.getCurrentSession();
+        }
+
+        @UnitOfWork(propagation = UnitOfWorkPropagation.NESTED)
+        public void insertAndFail(final String token) {
+            this.insert(token);
+            throw new IllegalStateException("Nested unit of work failed");
+        }
+
+        @UnitOfWork
+        public void fail() {
+            throw new IllegalStateException("Joined unit of work failed");
+        }
+
+        public void insert(final String token) {
+            this.sessionFactory.getCurrentSession()
+                    .createSQLQuery("insert into user_sessions values (:token, 'nested')")
+                    .setParameter("token", token)
+                    .executeUpdate();
+        }
+    }
+
+    static class SessionService {
+        private final SessionStore sessionStore;
+
+        public SessionService(final SessionStore sessionStore) {
+            this.sessionStore = sessionStore;
+        }
+
+        private Session currentSession() {
+            return this.sessionStore.getSessionFactory().getCurrentSession();
+        }
+
+        @UnitOfWork
+        public boolean joinsTheSession() {
+            return this.sessionStore.joined() == this.currentSession();
+        }
+
+        @UnitOfWork
+        public boolean suspendsTheSession() {
+            final Session session = this.currentSession();
+            final Session separateSession = this.sessionStore.separate();
+            return separateSession != session && this.currentSession() == session;
+        }
+
+        @UnitOfWork
+        public void rollsBackTheSavepoint() {
+            this.sessionStore.insert("outer");
+            try {
+                this.sessionStore.insertAndFail("inner");
+            } catch (final IllegalStateException e) {
+                // Only the nested unit of work is rolled back.
+            }
+        }
+
+        @UnitOfWork
+        public void swallowsTheJoinedFailure() {
+            this.sessionStore.insert("swallowed");
+            try {
+                this.sessionStore.fail();
+            } catch (final IllegalStateException e) {
+                // The outer unit of work is rolled back anyway.
+            }
+        }
+    }
+
     static class PlainAuthenticator {
 
         public boolean authenticate(final String token) {
@@ -0,0 +1,52 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class UnitOfWorkCallbackExecutorTest {
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private final Runnable callback = mock(Runnable.class);
+
+    @Test
+    public void testRunsTheCallbacks() {
+        final Runnable failingCallback = mock(Runnable.class);
+        doThrow(new IllegalStateException("failed")).when(failingCallback).run();
+        final UnitOfWorkCallbackExecutor executor = new UnitOfWorkCallbackExecutor(
+                MoreExecutors.directExecutor(), new ArrayBlockingQueue<>(1),
+                this.metricRegistry, "hibernate");
+
+        executor.execute(Arrays.asList(failingCallback, this.callback));
+
+        verify(this.callback).run();
+        assertThat(this.metricRegistry.timer("hibernate.callbacks.executions").getCount())
+                .isEqualTo(2L);
+        assertThat(this.metricRegistry.meter("hibernate.callbacks.failed").getCount())
+                .isEqualTo(1L);
+    }
+
+    @Test
+    public void testCountsRejectedCallbacks() {
+        final UnitOfWorkCallbackExecutor executor = new UnitOfWorkCallbackExecutor(
+                command -> {
+                    throw new RejectedExecutionException("full");
+                }, new ArrayBlockingQueue<>(1), this.metricRegistry, "hibernate");
+
+        executor.execute(Arrays.asList(this.callback));
+
+        assertThat(this.metricRegistry.meter("hibernate.callbacks.rejected").getCount())
+                .isEqualTo(1L);
+        assertThat(this.metricRegistry.getGauges().get("hibernate.callbacks.queueDepth")
+                .getValue()).isEqualTo(0);
+    }
+}
@@ -0,0 +1,49 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class UnitOfWorkHintsTest {
+    private static class Resource {
+        @UnitOfWork(fetchSize = 500, batchSize = 50, clearAfterFlush = true)
+        public void export() {
+        }
+
+        @UnitOfWork(cacheable = true)
+        public void list() {
+        }
+
+        @UnitOfWork(fetchSize = 10, batchSize = 5)
+        public void find() {
+        }
+    }
+
+    private static UnitOfWorkHints hints(final String method) throws Exception {
+        return UnitOfWorkHints
+                .of(Resource.class.getDeclaredMethod(method).getAnnotation(UnitOfWork.class));
+    }
+
+    @Test
+    public void testOverriddenByKeepsTheHintsTheInnerOneDoesntSet() throws Exception {
+        final UnitOfWorkHints hints = hints("export").overriddenBy(hints("list"));
+
+        assertThat(hints.getFetchSize()).isEqualTo(500);
+        assertThat(hints.getBatchSize()).isEqualTo(50);
+        assertThat(hints.isClearAfterFlush()).isTrue();
+        assertThat(hints.isCacheable()).isTrue();
+    }
+
+    @Test
+    public void testOverriddenByReplacesTheHintsTheInnerOneSets() throws Exception {
+        final UnitOfWorkHints outer = hints("export");
+
+        final UnitOfWorkHints hints = outer.overriddenBy(hints("find"));
+
+        assertThat(hints.getFetchSize()).isEqualTo(10);
+        assertThat(hints.getBatchSize()).isEqualTo(5);
+        assertThat(hints.isClearAfterFlush()).isFalse();
+        assertThat(hints.isCacheable()).isFalse();
+        assertThat(outer.getFetchSize()).isEqualTo(500);
+    }
+}
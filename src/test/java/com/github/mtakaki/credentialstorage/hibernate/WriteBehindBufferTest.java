@@ -0,0 +1,271 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionBuilder;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+
+import io.dropwizard.util.Duration;
+
+public class WriteBehindBufferTest {
+    private final RemoteCredentialHibernateBundle<?> bundle = mock(
+            RemoteCredentialHibernateBundle.class);
+    private final SessionHolders sessionHolders = mock(SessionHolders.class);
+    private final SessionFactory sessionFactory = mock(SessionFactory.class);
+    private final Session session = mock(Session.class);
+    private final Transaction transaction = mock(Transaction.class);
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private final WriteBehindConfiguration configuration = new WriteBehindConfiguration();
+
+    @Before
+    public void setup() {
+        when(this.bundle.getSessionHolders()).thenReturn(this.sessionHolders);
+        when(this.sessionHolders.getSessionFactory()).thenReturn(this.sessionFactory);
+        when(this.sessionFactory.openSession()).thenReturn(this.session);
+        when(this.session.beginTransaction()).thenReturn(this.transaction);
+
+        this.configuration.setCapacity(3);
+        this.configuration.setBatchSize(2);
+    }
+
+    private WriteBehindBuffer createBuffer() {
+        return new WriteBehindBuffer(this.bundle, "audit", this.configuration,
+                this.metricRegistry);
+    }
+
+    @Test
+    public void testFlushWritesInBatches() throws Exception {
+        final WriteBehindBuffer buffer = this.createBuffer();
+        buffer.add("a");
+        buffer.add("b");
+        buffer.add("c");
+
+        buffer.flush();
+
+        assertThat(buffer.size()).isZero();
+        final InOrder inOrder = inOrder(this.session, this.transaction);
+        inOrder.verify(this.session).save("a");
+        inOrder.verify(this.session).save("b");
+        inOrder.verify(this.transaction).commit();
+        inOrder.verify(this.session).close();
+        inOrder.verify(this.session).save("c");
+        inOrder.verify(this.transaction).commit();
+        inOrder.verify(this.session).close();
+        verify(this.sessionHolders, times(2)).add(any());
+        verify(this.sessionHolders, times(2)).remove(any());
+    }
+
+    @Test
+    public void testWritesToTheDefaultTenant() throws Exception {
+        final SessionBuilder sessionBuilder = mock(SessionBuilder.class);
+        when(this.bundle.getDefaultTenant()).thenReturn("acme");
+        when(this.sessionFactory.withOptions()).thenReturn(sessionBuilder);
+        when(sessionBuilder.tenantIdentifier("acme")).thenReturn(sessionBuilder);
+        when(sessionBuilder.openSession()).thenReturn(this.session);
+        final WriteBehindBuffer buffer = this.createBuffer();
+        buffer.add("a");
+
+        buffer.flush();
+
+        verify(this.sessionFactory, never()).openSession();
+        verify(this.session).save("a");
+        verify(this.transaction).commit();
+    }
+
+    @Test
+    public void testStopFlushesTheBuffer() throws Exception {
+        final WriteBehindBuffer buffer = this.createBuffer();
+        buffer.add("a");
+
+        buffer.stop();
+
+        verify(this.session).save("a");
+        verify(this.transaction).commit();
+        try {
+            buffer.add("b");
+            failBecauseExceptionWasNotThrown(IllegalStateException.class);
+        } catch (final IllegalStateException e) {
+            assertThat(e.getMessage()).contains("audit");
+        }
+    }
+
+    @Test
+    public void testDropsWhenFull() {
+        this.configuration.setBackpressure(WriteBehindBackpressure.DROP);
+        final WriteBehindBuffer buffer = this.createBuffer();
+
+        assertThat(buffer.add("a")).isTrue();
+        assertThat(buffer.add("b")).isTrue();
+        assertThat(buffer.add("c")).isTrue();
+        assertThat(buffer.add("d")).isFalse();
+
+        assertThat(buffer.size()).isEqualTo(3);
+        assertThat(this.metricRegistry.meter("write-behind.audit.dropped").getCount())
+                .isEqualTo(1L);
+        verify(this.session, never()).save(any());
+    }
+
+    @Test
+    public void testCallerWritesWhenFull() {
+        this.configuration.setBackpressure(WriteBehindBackpressure.CALLER_RUNS);
+        final WriteBehindBuffer buffer = this.createBuffer();
+        buffer.add("a");
+        buffer.add("b");
+        buffer.add("c");
+
+        assertThat(buffer.add("d")).isTrue();
+
+        assertThat(buffer.size()).isEqualTo(2);
+        verify(this.session).save("a");
+        verify(this.session).save("d");
+        verify(this.transaction).commit();
+    }
+
+    @Test
+    public void testBlockedCallerIsWokenUpByTheWriter() throws Exception {
+        final WriteBehindBuffer buffer = this.createBuffer();
+        buffer.add("a");
+        buffer.add("b");
+        buffer.add("c");
+
+        final CompletableFuture<Boolean> blocked = CompletableFuture
+                .supplyAsync(() -> buffer.add("d"));
+        try {
+            blocked.get(100L, TimeUnit.MILLISECONDS);
+            failBecauseExceptionWasNotThrown(TimeoutException.class);
+        } catch (final TimeoutException e) {
+        }
+        buffer.flush();
+
+        assertThat(blocked.get(5L, TimeUnit.SECONDS)).isTrue();
+        verify(this.session).save("c");
+    }
+
+    @Test
+    public void testBlockedCallerFailsOnceStopped() throws Exception {
+        final WriteBehindBuffer buffer = this.createBuffer();
+        buffer.add("a");
+        buffer.add("b");
+        buffer.add("c");
+        final CompletableFuture<Boolean> blocked = CompletableFuture
+                .supplyAsync(() -> buffer.add("d"));
+
+        buffer.stop();
+
+        try {
+            blocked.get(5L, TimeUnit.SECONDS);
+            failBecauseExceptionWasNotThrown(ExecutionException.class);
+        } catch (final ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(IllegalStateException.class);
+        }
+        assertThat(buffer.size()).isZero();
+        verify(this.session, never()).save("d");
+    }
+
+    @Test
+    public void testCallerLeavesTheRetriesToTheWriter() throws Exception {
+        this.configuration.setBackpressure(WriteBehindBackpressure.CALLER_RUNS);
+        this.configuration.setRetryBackoff(Duration.milliseconds(1));
+        final List<String> threads = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            threads.add(Thread.currentThread().getName());
+            if (threads.size() == 1) {
+                throw new HibernateException("rotated");
+            }
+            return null;
+        }).when(this.transaction).commit();
+        final WriteBehindBuffer buffer = this.createBuffer();
+        buffer.start();
+        buffer.add("a");
+        buffer.add("b");
+        buffer.add("c");
+
+        assertThat(buffer.add("d")).isTrue();
+
+        verify(this.transaction, timeout(5000).times(2)).commit();
+        assertThat(threads.get(0)).isEqualTo(Thread.currentThread().getName());
+        assertThat(threads.get(1)).startsWith("write-behind-audit-");
+        buffer.stop();
+    }
+
+    @Test
+    public void testRollsBackFailedBatches() {
+        this.configuration.setMaxRetries(0);
+        doThrow(new HibernateException("failed")).when(this.session).save("a");
+        when(this.transaction.isActive()).thenReturn(true);
+        final WriteBehindBuffer buffer = this.createBuffer();
+        buffer.add("a");
+
+        buffer.flush();
+
+        verify(this.transaction).rollback();
+        verify(this.session).close();
+        verify(this.sessionHolders).remove(any());
+        assertThat(this.metricRegistry.meter("write-behind.audit.failed").getCount())
+                .isEqualTo(1L);
+    }
+
+    @Test
+    public void testRetriesFailedBatches() {
+        this.configuration.setRetryBackoff(Duration.milliseconds(1));
+        doThrow(new HibernateException("rotated")).doNothing().when(this.transaction).commit();
+        when(this.transaction.isActive()).thenReturn(true);
+        final WriteBehindBuffer buffer = this.createBuffer();
+        buffer.add("a");
+
+        buffer.flush();
+
+        verify(this.transaction).rollback();
+        verify(this.transaction, times(2)).commit();
+        verify(this.session, times(2)).save("a");
+        verify(this.bundle, times(2)).getSessionHolders();
+        assertThat(this.metricRegistry.meter("write-behind.audit.failed").getCount()).isZero();
+    }
+
+    @Test
+    public void testHandsTheBatchToTheFailureHandlerOnceTheRetriesAreExhausted() {
+        this.configuration.setMaxRetries(2);
+        this.configuration.setRetryBackoff(Duration.milliseconds(1));
+        final HibernateException failure = new HibernateException("failed");
+        doThrow(failure).when(this.transaction).commit();
+        final WriteBehindFailureHandler handler = mock(WriteBehindFailureHandler.class);
+        final WriteBehindBuffer buffer = this.createBuffer();
+        buffer.setFailureHandler(handler);
+        buffer.add("a");
+        buffer.add("b");
+
+        buffer.flush();
+
+        verify(this.transaction, times(3)).commit();
+        verify(handler).onFailure(ImmutableList.of("a", "b"), failure);
+        assertThat(this.metricRegistry.meter("write-behind.audit.failed").getCount())
+                .isEqualTo(2L);
+    }
+}
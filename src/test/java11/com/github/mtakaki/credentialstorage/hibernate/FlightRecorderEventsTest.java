@@ -0,0 +1,107 @@
+package com.github.mtakaki.credentialstorage.hibernate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import io.dropwizard.logging.BootstrapLogging;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Runs on Java 11 or newer, against the implementation in
+ * {@code META-INF/versions/11}.
+ */
+public class FlightRecorderEventsTest {
+    static {
+        BootstrapLogging.bootstrap();
+    }
+
+    private static final String PREFIX = "com.github.mtakaki.credentialstorage.hibernate.";
+
+    private OfflineBundleHarness harness;
+    private OfflineBundleHarnessTest.PersonService service;
+    private Recording recording;
+
+    @Before
+    public void setUp() throws Exception {
+        this.harness = new OfflineBundleHarness();
+        this.harness.start();
+        this.service = new UnitOfWorkAwareProxyFactory(RemoteCredentialHibernateBundle.DEFAULT_NAME,
+                this.harness.getBundle()).create(OfflineBundleHarnessTest.PersonService.class,
+                        JerseyIntegrationTest.PersonDAO.class,
+                        new JerseyIntegrationTest.PersonDAO(this.harness.getBundle()));
+        this.recording = new Recording();
+        for (final String event : new String[] { "UnitOfWork", "Session",
+                "ConnectionAcquisition", "SessionHolders", "CredentialRotation" }) {
+            this.recording.enable(PREFIX + event).withoutThreshold();
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.recording.close();
+        this.harness.close();
+    }
+
+    @Test
+    public void testRecordsTheUnitsOfWork() throws Exception {
+        this.recording.start();
+        this.service.save("ana", "ana@example.com");
+        final List<RecordedEvent> events = this.stop();
+
+        assertThat(phases(events, "UnitOfWork")).contains("beforeStart", "afterEnd");
+        assertThat(phases(events, "Session")).contains("open");
+        assertThat(events(events, "ConnectionAcquisition")).isNotEmpty();
+        assertThat(events(events, "SessionHolders")).isNotEmpty();
+        for (final RecordedEvent event : events(events, "UnitOfWork")) {
+            assertThat(event.getString("bundle"))
+                    .isEqualTo(RemoteCredentialHibernateBundle.DEFAULT_NAME);
+            assertThat(event.getString("method")).isEqualTo("PersonService.save");
+        }
+        for (final RecordedEvent event : events(events, "Session")) {
+            assertThat(event.getLong("generation")).isPositive();
+        }
+    }
+
+    @Test
+    public void testRecordsTheRotations() throws Exception {
+        this.recording.start();
+        this.harness.rotateCredentials();
+        final List<RecordedEvent> events = this.stop();
+
+        assertThat(phases(events, "CredentialRotation")).contains("retrieve");
+    }
+
+    private List<RecordedEvent> stop() throws Exception {
+        this.recording.stop();
+        final Path file = Files.createTempFile("flight-recorder-events", ".jfr");
+        try {
+            this.recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static List<RecordedEvent> events(final List<RecordedEvent> events,
+            final String name) {
+        return events.stream()
+                .filter(event -> event.getEventType().getName().equals(PREFIX + name))
+                .collect(Collectors.toList());
+    }
+
+    private static List<String> phases(final List<RecordedEvent> events, final String name) {
+        return events(events, name).stream()
+                .map(event -> event.getString("phase"))
+                .collect(Collectors.toList());
+    }
+}